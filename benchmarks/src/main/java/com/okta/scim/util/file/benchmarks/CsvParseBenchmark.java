@@ -0,0 +1,99 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Okta, Inc. and/or its affiliates. All rights reserved.
+ ******************************************************************************/
+package com.okta.scim.util.file.benchmarks;
+
+import com.okta.scim.util.file.CompactUserStore;
+import com.okta.scim.util.file.ConnectorConfig;
+import com.okta.scim.util.file.SCIMConnectorUtil;
+import com.okta.scim.util.file.UserLoad;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A full load of the users file by <code>readUsersFromCSV</code>, with each of the CSV readers. Besides the loads
+ * per second, the 'records' counter reports the CSV records parsed per second.
+ * <p>
+ * The 'merged' reader loads the same users split into {@value #MERGED_FILES} files of a drop directory, one file per
+ * thread.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g", "-Dlogback.configurationFile=logback-benchmark.xml"})
+@State(Scope.Benchmark)
+public class CsvParseBenchmark {
+    static final int MERGED_FILES = 4;
+
+    @Param({"10000", "100000", "1000000"})
+    public int rows;
+
+    @Param({"8"})
+    public int customColumns;
+
+    @Param({"commons", "mapped", "parallel", "parallelMapped", "merged"})
+    public String reader;
+
+    private UsersFixture fixture;
+    private ConnectorConfig config;
+    private List<File> mergedFiles;
+
+    /**
+     * The number of CSV records parsed.
+     */
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Records {
+        public long records;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        Map<String, String> settings = new HashMap<String, String>();
+        settings.put("csvMappedReader", String.valueOf(reader.equals("mapped") || reader.equals("parallelMapped")));
+        if (reader.startsWith("parallel")) {
+            settings.put("csvParallelLoad", "true");
+            settings.put("csvParallelLoadMinFileSize", "0");
+        }
+        fixture = UsersFixture.create(rows, customColumns, settings);
+        config = ConnectorConfig.get();
+        if (reader.equals("merged")) {
+            mergedFiles = SCIMConnectorUtil.listFiles(fixture.splitUsersFile(MERGED_FILES).getPath(), ".csv");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        fixture.delete();
+    }
+
+    @Benchmark
+    public CompactUserStore readUsersFromCSV(Records records) throws Exception {
+        UserLoad load = new UserLoad(null, false);
+        if (mergedFiles != null) {
+            records.records += SCIMConnectorUtil.readUsersFromCSV(load, mergedFiles, config);
+        } else {
+            records.records += SCIMConnectorUtil.readUsersFromCSV(load, fixture.getUsersFile().getPath(), config);
+        }
+        return load.getStore();
+    }
+}
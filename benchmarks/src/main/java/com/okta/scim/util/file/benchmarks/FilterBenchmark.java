@@ -0,0 +1,111 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Okta, Inc. and/or its affiliates. All rights reserved.
+ ******************************************************************************/
+package com.okta.scim.util.file.benchmarks;
+
+import com.okta.scim.util.file.CompactUserStore;
+import com.okta.scim.util.file.SCIMServiceImpl;
+import com.okta.scim.util.model.SCIMFilter;
+import com.okta.scim.util.model.SCIMUserQueryResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The latency of the filters Okta sends, through <code>getUsers(PaginationProperties, SCIMFilter)</code>. Every
+ * invocation looks up another random user. The custom attribute filters match about 2% of the users each;
+ * 'scannedCustom' filters on an attribute that is not indexed.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g", "-Dlogback.configurationFile=logback-benchmark.xml"})
+@State(Scope.Benchmark)
+public class FilterBenchmark {
+    private static final int FILTERS = 1024;
+
+    @Param({"10000", "100000", "1000000"})
+    public int rows;
+
+    @Param({"8"})
+    public int customColumns;
+
+    @Param({"id", "userName", "email", "familyName", "indexedCustom", "scannedCustom", "orEmails"})
+    public String filter;
+
+    private UsersFixture fixture;
+    private SCIMServiceImpl service;
+    private SCIMFilter[] filters;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        if (customColumns < 5 && filter.endsWith("Custom")) {
+            throw new IllegalArgumentException("The custom attribute filters need at least 5 custom columns");
+        }
+        fixture = UsersFixture.create(rows, customColumns, Collections.<String, String>emptyMap());
+        service = new SCIMServiceImpl();
+        service.afterCreation();
+
+        CompactUserStore store = service.getUserCache().getSnapshot().getStore();
+        Random random = new Random(1);
+        filters = new SCIMFilter[FILTERS];
+        for (int i = 0; i < FILTERS; i++) {
+            filters[i] = filter(store, random.nextInt(store.size()), random);
+        }
+    }
+
+    private SCIMFilter filter(CompactUserStore store, int row, Random random) {
+        if (filter.equals("id")) {
+            return Filters.equalsFilter(Filters.CORE_SCHEMA, "id", null, store.getId(row));
+        } else if (filter.equals("userName")) {
+            return Filters.equalsFilter(Filters.CORE_SCHEMA, "userName", null, store.getUserName(row));
+        } else if (filter.equals("email")) {
+            return Filters.equalsFilter(Filters.CORE_SCHEMA, "emails", null, store.getEmail(row).toUpperCase());
+        } else if (filter.equals("familyName")) {
+            return Filters.equalsFilter(Filters.CORE_SCHEMA, "name", "familyName", store.getFamilyName(row));
+        } else if (filter.equals("indexedCustom") || filter.equals("scannedCustom")) {
+            //Both are String attributes with the same values, the first one is indexed and the fifth one is not
+            String attribute = UsersCsvGenerator.customAttributeName(filter.equals("indexedCustom") ? 1 : 5);
+            return Filters.equalsFilter(UsersFixture.CUSTOM_SCHEMA_NAME, attribute, null,
+                    store.getCustomText(attribute, row));
+        } else if (filter.equals("orEmails")) {
+            List<SCIMFilter> expressions = new ArrayList<SCIMFilter>();
+            expressions.add(Filters.equalsFilter(Filters.CORE_SCHEMA, "emails", null, store.getEmail(row)));
+            expressions.add(Filters.equalsFilter(Filters.CORE_SCHEMA, "emails", null,
+                    store.getEmail(random.nextInt(store.size()))));
+            return Filters.orFilter(expressions);
+        }
+        throw new IllegalArgumentException("Unknown filter [" + filter + "]");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        service.beforeDestruction();
+        fixture.delete();
+    }
+
+    @Benchmark
+    public SCIMUserQueryResponse getUsers() throws Exception {
+        SCIMFilter nextFilter = filters[next];
+        next = (next + 1) % FILTERS;
+        return service.getUsers(null, nextFilter);
+    }
+}
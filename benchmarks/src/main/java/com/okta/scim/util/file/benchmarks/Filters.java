@@ -0,0 +1,86 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Okta, Inc. and/or its affiliates. All rights reserved.
+ ******************************************************************************/
+package com.okta.scim.util.file.benchmarks;
+
+import com.okta.scim.util.model.SCIMFilter;
+import com.okta.scim.util.model.SCIMFilterAttribute;
+import com.okta.scim.util.model.SCIMFilterType;
+
+import java.util.List;
+
+/**
+ * Builds the filters Okta sends, without going through the SCIM filter parser of the SDK.
+ */
+final class Filters {
+    static final String CORE_SCHEMA = "urn:scim:schemas:core:1.0";
+
+    private Filters() {
+    }
+
+    /**
+     * @return the filter "schema:attribute.subAttribute eq value"
+     */
+    static SCIMFilter equalsFilter(final String schema, final String attributeName, final String subAttributeName,
+                                   final String value) {
+        final SCIMFilterAttribute attribute = new SCIMFilterAttribute() {
+            @Override
+            public String getSchema() {
+                return schema;
+            }
+
+            @Override
+            public String getAttributeName() {
+                return attributeName;
+            }
+
+            @Override
+            public String getSubAttributeName() {
+                return subAttributeName;
+            }
+        };
+        return new SCIMFilter() {
+            @Override
+            public SCIMFilterType getFilterType() {
+                return SCIMFilterType.EQUALS;
+            }
+
+            @Override
+            public SCIMFilterAttribute getFilterAttribute() {
+                return attribute;
+            }
+
+            @Override
+            public String getFilterValue() {
+                return value;
+            }
+
+            @Override
+            public String toString() {
+                return attributeName + (subAttributeName == null ? "" : "." + subAttributeName) + " eq \"" + value + "\"";
+            }
+        };
+    }
+
+    /**
+     * @return the filter "expression or expression ..."
+     */
+    static SCIMFilter orFilter(final List<SCIMFilter> expressions) {
+        return new SCIMFilter() {
+            @Override
+            public SCIMFilterType getFilterType() {
+                return SCIMFilterType.OR;
+            }
+
+            @Override
+            public List<SCIMFilter> getFilterExpressions() {
+                return expressions;
+            }
+
+            @Override
+            public String toString() {
+                return expressions.toString();
+            }
+        };
+    }
+}
@@ -0,0 +1,95 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Okta, Inc. and/or its affiliates. All rights reserved.
+ ******************************************************************************/
+package com.okta.scim.util.file.benchmarks;
+
+import com.okta.scim.util.file.UserCache;
+import com.okta.scim.util.file.UserSnapshot;
+import com.okta.scim.util.model.SCIMUser;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The heap retained per user by a loaded {@link UserSnapshot}, its {@link com.okta.scim.util.file.CompactUserStore}
+ * and indexes, compared with the same users kept as a list of <code>SCIMUser</code>, as they were before the compact
+ * store. Both are measured after a full GC, against the heap used before the load.
+ * <p>
+ * The <code>SCIMUser</code> list shares the strings of the compact store and has no index, the previous loader also
+ * kept its indexes on top of it. Run it in its own JVM, with a heap large enough for both:
+ * <code>java -Xmx4g -cp benchmarks.jar com.okta.scim.util.file.benchmarks.HeapFootprint rows [customColumns]
+ * [maxBytesPerUser]</code>. With maxBytesPerUser, it exits with 1 if a snapshot retains more per user.
+ */
+public final class HeapFootprint {
+    private static final MemoryMXBean MEMORY = ManagementFactory.getMemoryMXBean();
+
+    //Kept reachable while the heap is measured
+    private static UserSnapshot snapshot;
+    private static List<SCIMUser> users;
+
+    private HeapFootprint() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: HeapFootprint rows [customColumns] [maxBytesPerUser]");
+            System.exit(1);
+        }
+        int rows = Integer.parseInt(args[0]);
+        int customColumns = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        long maxBytesPerUser = args.length > 2 ? Long.parseLong(args[2]) : 0;
+
+        UsersFixture fixture = UsersFixture.create(rows, customColumns, Collections.<String, String>emptyMap());
+        long snapshotPerUser;
+        try {
+            long baseline = usedHeapAfterGc();
+            List<String> indexedCustomAttributes = customColumns > 0
+                    ? Collections.singletonList(UsersCsvGenerator.customAttributeName(1))
+                    : Collections.<String>emptyList();
+            snapshot = new UserCache(fixture.getUsersFile().getPath(), 0, indexedCustomAttributes, false).refresh();
+            int userCount = snapshot.size();
+            long snapshotBytes = usedHeapAfterGc() - baseline;
+
+            users = snapshot.getAllUsers();
+            snapshot = null;
+            long usersBytes = usedHeapAfterGc() - baseline;
+            users = null;
+
+            snapshotPerUser = snapshotBytes / Math.max(1, userCount);
+            long usersPerUser = usersBytes / Math.max(1, userCount);
+            System.out.println("Loaded " + userCount + " active users of " + rows + " rows with " + customColumns
+                    + " custom attributes");
+            System.out.println("snapshot (compact store and indexes): " + snapshotBytes + " bytes, "
+                    + snapshotPerUser + " bytes per user");
+            System.out.println("SCIMUser list:                        " + usersBytes + " bytes, "
+                    + usersPerUser + " bytes per user");
+            System.out.println(String.format("ratio: %.1fx", (double) usersBytes / Math.max(1, snapshotBytes)));
+        } finally {
+            fixture.delete();
+        }
+        if (maxBytesPerUser > 0 && snapshotPerUser > maxBytesPerUser) {
+            System.err.println("The snapshot retains " + snapshotPerUser + " bytes per user, more than "
+                    + maxBytesPerUser);
+            System.exit(1);
+        }
+    }
+
+    /**
+     * @return the heap used once a full GC no longer frees anything
+     */
+    private static long usedHeapAfterGc() throws InterruptedException {
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 10; i++) {
+            System.gc();
+            Thread.sleep(100);
+            long after = MEMORY.getHeapMemoryUsage().getUsed();
+            if (after >= used) {
+                return after;
+            }
+            used = after;
+        }
+        return used;
+    }
+}
@@ -0,0 +1,79 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Okta, Inc. and/or its affiliates. All rights reserved.
+ ******************************************************************************/
+package com.okta.scim.util.file.benchmarks;
+
+import com.okta.scim.util.file.SCIMServiceImpl;
+import com.okta.scim.util.model.PaginationProperties;
+import com.okta.scim.util.model.SCIMUserQueryResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The latency of one page of <code>getUsers(PaginationProperties, null)</code>, at the first page and at the last
+ * one.
+ * <p>
+ * The same page is asked on every invocation, so the response cache is disabled by default to measure building the
+ * page. Set 'responseCacheMaxUsers' to measure a page served from the cache instead.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g", "-Dlogback.configurationFile=logback-benchmark.xml"})
+@State(Scope.Benchmark)
+public class PaginationBenchmark {
+    @Param({"10000", "100000", "1000000"})
+    public int rows;
+
+    @Param({"8"})
+    public int customColumns;
+
+    @Param({"shallow", "deep"})
+    public String offset;
+
+    @Param({"100"})
+    public int count;
+
+    @Param({"0"})
+    public int responseCacheMaxUsers;
+
+    private UsersFixture fixture;
+    private SCIMServiceImpl service;
+    private PaginationProperties page;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        fixture = UsersFixture.create(rows, customColumns,
+                Collections.singletonMap("responseCacheMaxUsers", String.valueOf(responseCacheMaxUsers)));
+        service = new SCIMServiceImpl();
+        service.afterCreation();
+        int users = service.getUserCache().getSnapshot().size();
+        page = new PaginationProperties(offset.equals("shallow") ? 1 : Math.max(1, users - count + 1), count);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        service.beforeDestruction();
+        fixture.delete();
+    }
+
+    @Benchmark
+    public SCIMUserQueryResponse getUsers() throws Exception {
+        return service.getUsers(page, null);
+    }
+}
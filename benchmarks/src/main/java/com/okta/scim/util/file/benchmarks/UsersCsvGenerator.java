@@ -0,0 +1,207 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Okta, Inc. and/or its affiliates. All rights reserved.
+ ******************************************************************************/
+package com.okta.scim.util.file.benchmarks;
+
+import com.okta.scim.util.file.CSVColumnMapping;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+
+/**
+ * Generates a synthetic users CSV file for a column mapping.
+ * <p>
+ * The header holds every column of the mapping, plus <code>customColumns</code> extra custom attributes (String,
+ * Integer, Boolean and Double in turn) and two columns that are not mapped. Ids, user names and emails are unique;
+ * names and String custom values are drawn from small pools, as in a real export, and about 2% of the users are
+ * inactive. The output only depends on the arguments and the seed.
+ * <p>
+ * Usage: <code>UsersCsvGenerator mapping.properties|- users.csv rows [customColumns] [seed]</code>. The mapping with
+ * the extra custom attributes is written next to the CSV file as CSVColumnMapping.properties.
+ */
+public final class UsersCsvGenerator {
+    private static final CSVColumnMapping.ValueType[] CUSTOM_TYPES = {CSVColumnMapping.ValueType.STRING,
+            CSVColumnMapping.ValueType.INTEGER, CSVColumnMapping.ValueType.BOOLEAN, CSVColumnMapping.ValueType.DOUBLE};
+    private static final String[] UNMAPPED_COLUMNS = {"benchNotes", "benchManager"};
+    private static final int FAMILY_NAMES = 5000;
+    private static final int GIVEN_NAMES = 1000;
+    private static final int STRING_VALUES = 50;
+
+    private final Properties mapping;
+    private final String inactiveValue;
+
+    /**
+     * @param baseMapping   the CSVColumnMapping.properties to generate the users for
+     * @param customColumns the number of custom attributes to add to the mapping
+     * @param inactiveValue the 'userInactiveValueInCSV'
+     */
+    public UsersCsvGenerator(Properties baseMapping, int customColumns, String inactiveValue) {
+        this.mapping = new Properties();
+        this.mapping.putAll(baseMapping);
+        for (int i = 1; i <= customColumns; i++) {
+            mapping.setProperty(customAttributeName(i), "benchColumn" + i + ","
+                    + CUSTOM_TYPES[(i - 1) % CUSTOM_TYPES.length].getMappingName() + ",isNotSCIMVariable,isNotMandatory");
+        }
+        this.inactiveValue = inactiveValue;
+    }
+
+    /**
+     * @return the name of the n-th generated custom attribute, starting at 1. Every fourth one, starting with the
+     * first, is a String.
+     */
+    public static String customAttributeName(int n) {
+        return "benchCustom" + n;
+    }
+
+    /**
+     * @return the mapping with the generated custom attributes
+     */
+    public Properties getMapping() {
+        return mapping;
+    }
+
+    /**
+     * @return the email (and user name) of a generated row
+     */
+    public static String email(int row) {
+        return "user" + row + "@example.com";
+    }
+
+    /**
+     * Write the CSV file.
+     *
+     * @param csvFile the file to write
+     * @param rows    the number of users
+     * @param seed    the seed of the random values
+     */
+    public void generate(File csvFile, int rows, long seed) throws IOException {
+        CSVColumnMapping columnMapping = CSVColumnMapping.parse(mapping);
+        //The first attribute mapped to a column decides its values, e.g. userName and email share a column
+        Map<String, CSVColumnMapping.Column> columns = new LinkedHashMap<String, CSVColumnMapping.Column>();
+        for (CSVColumnMapping.Column column : columnMapping.getColumns()) {
+            if (!columns.containsKey(column.getCsvColumnName())) {
+                columns.put(column.getCsvColumnName(), column);
+            }
+        }
+        List<String> header = new ArrayList<String>(columns.keySet());
+        for (String unmapped : UNMAPPED_COLUMNS) {
+            header.add(unmapped);
+        }
+
+        Random random = new Random(seed);
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(csvFile), "UTF-8"), 64 * 1024);
+        try {
+            writeRecord(writer, header);
+            List<String> values = new ArrayList<String>(header.size());
+            for (int row = 0; row < rows; row++) {
+                values.clear();
+                for (CSVColumnMapping.Column column : columns.values()) {
+                    values.add(value(column, row, random));
+                }
+                values.add("Note, " + row + " \"imported\"");
+                values.add(email(random.nextInt(rows)));
+                writeRecord(writer, values);
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    private String value(CSVColumnMapping.Column column, int row, Random random) {
+        String attribute = column.getAttributeName();
+        if (CSVColumnMapping.KEY_ID.equals(attribute)) {
+            return "E" + row;
+        } else if (CSVColumnMapping.KEY_USER_NAME.equals(attribute) || CSVColumnMapping.KEY_EMAIL.equals(attribute)) {
+            return email(row);
+        } else if (CSVColumnMapping.KEY_FAMILY_NAME.equals(attribute)) {
+            return "Family" + random.nextInt(FAMILY_NAMES);
+        } else if (CSVColumnMapping.KEY_GIVEN_NAME.equals(attribute)) {
+            return "Given" + random.nextInt(GIVEN_NAMES);
+        } else if (CSVColumnMapping.KEY_ACTIVE.equals(attribute)) {
+            return random.nextInt(50) == 0 ? inactiveValue : "T";
+        } else if (CSVColumnMapping.KEY_PASSWORD.equals(attribute)) {
+            return "Secret" + row;
+        }
+        switch (column.getType()) {
+            case BOOLEAN:
+                return String.valueOf(random.nextBoolean());
+            case INTEGER:
+                return String.valueOf(random.nextInt(1000));
+            case DOUBLE:
+                return String.valueOf(random.nextInt(100000) / 100.0);
+            default:
+                return "Value" + random.nextInt(STRING_VALUES);
+        }
+    }
+
+    private static void writeRecord(Writer writer, List<String> values) throws IOException {
+        for (int i = 0; i < values.size(); i++) {
+            if (i > 0) {
+                writer.write(',');
+            }
+            String value = values.get(i);
+            if (value.indexOf(',') >= 0 || value.indexOf('"') >= 0 || value.indexOf('\n') >= 0) {
+                writer.write('"');
+                writer.write(value.replace("\"", "\"\""));
+                writer.write('"');
+            } else {
+                writer.write(value);
+            }
+        }
+        writer.write("\r\n");
+    }
+
+    /**
+     * @param mappingFile a CSVColumnMapping.properties, or null for the one packaged with the connector
+     */
+    static Properties loadMapping(File mappingFile) throws IOException {
+        InputStream input = mappingFile == null
+                ? UsersCsvGenerator.class.getResourceAsStream("/CSVColumnMapping.properties")
+                : new FileInputStream(mappingFile);
+        if (input == null) {
+            throw new IOException("CSVColumnMapping.properties is not on the classpath");
+        }
+        try {
+            Properties properties = new Properties();
+            properties.load(input);
+            return properties;
+        } finally {
+            input.close();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.err.println("Usage: UsersCsvGenerator mapping.properties|- users.csv rows [customColumns] [seed]");
+            System.exit(1);
+        }
+        Properties baseMapping = loadMapping("-".equals(args[0]) ? null : new File(args[0]));
+        File csvFile = new File(args[1]).getAbsoluteFile();
+        int rows = Integer.parseInt(args[2]);
+        int customColumns = args.length > 3 ? Integer.parseInt(args[3]) : 0;
+        long seed = args.length > 4 ? Long.parseLong(args[4]) : 1;
+
+        UsersCsvGenerator generator = new UsersCsvGenerator(baseMapping, customColumns, "F");
+        generator.generate(csvFile, rows, seed);
+        OutputStreamWriter mappingWriter = new OutputStreamWriter(
+                new FileOutputStream(new File(csvFile.getParentFile(), "CSVColumnMapping.properties")), "ISO-8859-1");
+        try {
+            generator.getMapping().store(mappingWriter, "Generated by UsersCsvGenerator");
+        } finally {
+            mappingWriter.close();
+        }
+        System.out.println("Wrote " + rows + " users to [" + csvFile + "]");
+    }
+}
@@ -0,0 +1,129 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Okta, Inc. and/or its affiliates. All rights reserved.
+ ******************************************************************************/
+package com.okta.scim.util.file.benchmarks;
+
+import com.okta.scim.util.file.ConnectorConfig;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * A Tomcat base folder with a generated users file and its configuration, as the connector expects them.
+ * <p>
+ * The column mapping is the one packaged with the connector, or the file named by the 'benchmark.mapping' system
+ * property, with the generated custom attributes added. The first generated custom attribute is indexed.
+ */
+final class UsersFixture {
+    static final String CUSTOM_SCHEMA_NAME = "urn:okta:benchmark:1.0:user:custom";
+    static final String INACTIVE_VALUE = "F";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File baseFolder;
+    private final File usersFile;
+
+    private UsersFixture(File baseFolder, File usersFile) {
+        this.baseFolder = baseFolder;
+        this.usersFile = usersFile;
+    }
+
+    /**
+     * Generate the users and the configuration, and point 'catalina.base' at them.
+     *
+     * @param rows          the number of users
+     * @param customColumns the number of custom attributes to generate
+     * @param settings      extra application.properties settings
+     */
+    static UsersFixture create(int rows, int customColumns, Map<String, String> settings) throws IOException {
+        File baseFolder = Files.createTempDirectory("scim-benchmark").toFile();
+        File confFolder = new File(baseFolder, "conf");
+        if (!confFolder.mkdir()) {
+            throw new IOException("Cannot create [" + confFolder + "]");
+        }
+        String mappingFile = System.getProperty("benchmark.mapping");
+        UsersCsvGenerator generator = new UsersCsvGenerator(
+                UsersCsvGenerator.loadMapping(mappingFile == null ? null : new File(mappingFile)), customColumns,
+                INACTIVE_VALUE);
+        File usersFile = new File(baseFolder, "users.csv");
+        generator.generate(usersFile, rows, 1);
+
+        Properties application = new Properties();
+        application.setProperty("customSchemaName", CUSTOM_SCHEMA_NAME);
+        application.setProperty("userInactiveValueInCSV", INACTIVE_VALUE);
+        application.setProperty("usersFilePath", usersFile.getAbsolutePath());
+        application.setProperty("cacheMinRefreshIntervalMillis", "3600000");
+        if (customColumns > 0) {
+            application.setProperty("indexedCustomAttributes", UsersCsvGenerator.customAttributeName(1));
+        }
+        application.putAll(settings);
+        store(application, new File(confFolder, "application.properties"));
+        store(generator.getMapping(), new File(confFolder, "CSVColumnMapping.properties"));
+
+        System.setProperty("catalina.base", baseFolder.getAbsolutePath());
+        //Fail now rather than in the first measured call
+        ConnectorConfig.get();
+        return new UsersFixture(baseFolder, usersFile);
+    }
+
+    File getUsersFile() {
+        return usersFile;
+    }
+
+    /**
+     * Split the users file into files of about the same number of records, each with the header.
+     *
+     * @param files the number of files
+     * @return the directory of the files, named in record order
+     */
+    File splitUsersFile(int files) throws IOException {
+        File directory = new File(baseFolder, "drop");
+        if (!directory.mkdir()) {
+            throw new IOException("Cannot create [" + directory + "]");
+        }
+        //The generated records never have a line break in a value, so every line is a record
+        List<String> lines = Files.readAllLines(usersFile.toPath(), UTF_8);
+        int records = lines.size() - 1;
+        for (int i = 0; i < files; i++) {
+            int from = 1 + (int) ((long) records * i / files);
+            int to = 1 + (int) ((long) records * (i + 1) / files);
+            List<String> part = new ArrayList<String>();
+            part.add(lines.get(0));
+            part.addAll(lines.subList(from, to));
+            Files.write(new File(directory, "users-" + i + ".csv").toPath(), part, UTF_8);
+        }
+        return directory;
+    }
+
+    void delete() {
+        delete(baseFolder);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        if (!file.delete()) {
+            System.err.println("Cannot delete [" + file + "]");
+        }
+    }
+
+    private static void store(Properties properties, File file) throws IOException {
+        OutputStream output = new FileOutputStream(file);
+        try {
+            properties.store(output, null);
+        } finally {
+            output.close();
+        }
+    }
+}
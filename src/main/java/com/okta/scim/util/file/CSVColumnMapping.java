@@ -0,0 +1,204 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Okta, Inc. and/or its affiliates. All rights reserved.
+ ******************************************************************************/
+package com.okta.scim.util.file;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * The parsed content of CSVColumnMapping.properties.
+ * <p>
+ * Each line has the form <code>attribute=csvColumn,type,isSCIMVariable|isNotSCIMVariable,isMandatory|isNotMandatory</code>.
+ * The lines are parsed once into immutable {@link Column} entries so the loader never has to split the raw property
+ * values again. Use {@link CSVMappingPlan#compile} to resolve the columns against the header of a CSV file.
+ */
+public final class CSVColumnMapping {
+    public static final String KEY_ID = "id";
+    public static final String KEY_USER_NAME = "userName";
+    public static final String KEY_FAMILY_NAME = "familyName";
+    public static final String KEY_GIVEN_NAME = "givenName";
+    public static final String KEY_EMAIL = "email";
+    public static final String KEY_ACTIVE = "active";
+    public static final String KEY_PASSWORD = "password";
+
+    private static final String SCIM_VARIABLE = "isSCIMVariable";
+    private static final String NOT_SCIM_VARIABLE = "isNotSCIMVariable";
+    private static final String MANDATORY = "isMandatory";
+    private static final String NOT_MANDATORY = "isNotMandatory";
+    private static final String[] CORE_KEYS = {KEY_ID, KEY_USER_NAME, KEY_FAMILY_NAME, KEY_GIVEN_NAME, KEY_EMAIL, KEY_ACTIVE};
+
+    private final List<Column> columns;
+
+    private CSVColumnMapping(List<Column> columns) {
+        this.columns = Collections.unmodifiableList(columns);
+    }
+
+    /**
+     * Parse and validate the column mapping properties. Every malformed line is reported at once.
+     *
+     * @param csvColumnMappingProperties the content of CSVColumnMapping.properties
+     * @return the parsed mapping
+     * @throws IllegalArgumentException if a line does not have the four expected parts, names an unsupported type or
+     *                                  flag, or if one of the core attributes is not mapped
+     */
+    public static CSVColumnMapping parse(Properties csvColumnMappingProperties) {
+        List<Column> columns = new ArrayList<Column>();
+        List<String> errors = new ArrayList<String>();
+        Enumeration<?> e = csvColumnMappingProperties.propertyNames();
+        while (e.hasMoreElements()) {
+            String key = (String) e.nextElement();
+            String value = csvColumnMappingProperties.getProperty(key);
+            if (value.trim().isEmpty()) {
+                continue;
+            }
+            String[] parts = value.split(",");
+            if (parts.length != 4) {
+                errors.add("[" + key + "=" + value
+                        + "] Expected: csvColumn,type,isSCIMVariable|isNotSCIMVariable,isMandatory|isNotMandatory");
+                continue;
+            }
+            String csvColumnName = parts[0].trim();
+            ValueType type = ValueType.fromName(parts[1].trim());
+            String variable = parts[2].trim();
+            String mandatory = parts[3].trim();
+            if (csvColumnName.isEmpty()) {
+                errors.add("[" + key + "=" + value + "] The CSV column is empty");
+            }
+            if (type == null) {
+                errors.add("[" + key + "=" + value + "] Unsupported type [" + parts[1].trim()
+                        + "]. Expected: String, Boolean, Integer or Double");
+            }
+            if (!variable.equalsIgnoreCase(SCIM_VARIABLE) && !variable.equalsIgnoreCase(NOT_SCIM_VARIABLE)) {
+                errors.add("[" + key + "=" + value + "] Expected isSCIMVariable or isNotSCIMVariable, not [" + variable + "]");
+            }
+            if (!mandatory.equalsIgnoreCase(MANDATORY) && !mandatory.equalsIgnoreCase(NOT_MANDATORY)) {
+                errors.add("[" + key + "=" + value + "] Expected isMandatory or isNotMandatory, not [" + mandatory + "]");
+            }
+            columns.add(new Column(key, csvColumnName, type, variable.equalsIgnoreCase(SCIM_VARIABLE),
+                    variable.equalsIgnoreCase(NOT_SCIM_VARIABLE), mandatory.equalsIgnoreCase(MANDATORY)));
+        }
+        CSVColumnMapping mapping = new CSVColumnMapping(columns);
+        for (String coreKey : CORE_KEYS) {
+            if (mapping.getColumn(coreKey) == null) {
+                errors.add("The attribute [" + coreKey + "] is not mapped");
+            }
+        }
+        if (!errors.isEmpty()) {
+            throw new IllegalArgumentException("Invalid CSVColumnMapping.properties: " + errors);
+        }
+        return mapping;
+    }
+
+    public List<Column> getColumns() {
+        return columns;
+    }
+
+    /**
+     * @param attributeName the mapped attribute (the property key)
+     * @return the column for this attribute, or null if it is not mapped
+     */
+    public Column getColumn(String attributeName) {
+        for (Column column : columns) {
+            if (column.getAttributeName().equals(attributeName)) {
+                return column;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * One line of the column mapping.
+     */
+    public static final class Column {
+        private final String attributeName;
+        private final String csvColumnName;
+        private final ValueType type;
+        private final boolean scimVariable;
+        private final boolean custom;
+        private final boolean mandatory;
+
+        Column(String attributeName, String csvColumnName, ValueType type, boolean scimVariable, boolean custom,
+               boolean mandatory) {
+            this.attributeName = attributeName;
+            this.csvColumnName = csvColumnName;
+            this.type = type;
+            this.scimVariable = scimVariable;
+            this.custom = custom;
+            this.mandatory = mandatory;
+        }
+
+        public String getAttributeName() {
+            return attributeName;
+        }
+
+        public String getCsvColumnName() {
+            return csvColumnName;
+        }
+
+        /**
+         * @return the value type
+         */
+        public ValueType getType() {
+            return type;
+        }
+
+        public boolean isScimVariable() {
+            return scimVariable;
+        }
+
+        /**
+         * @return true if the attribute is a custom attribute (isNotSCIMVariable) stored under the custom schema
+         */
+        public boolean isCustom() {
+            return custom;
+        }
+
+        public boolean isMandatory() {
+            return mandatory;
+        }
+
+        /**
+         * @return true if the column must have a value for the row to be loaded. All SCIM variables are mandatory.
+         */
+        public boolean isRequired() {
+            return scimVariable || mandatory;
+        }
+    }
+
+    /**
+     * The supported value types of a column.
+     */
+    public enum ValueType {
+        STRING("String"),
+        BOOLEAN("Boolean"),
+        INTEGER("Integer"),
+        DOUBLE("Double");
+
+        private final String mappingName;
+
+        ValueType(String mappingName) {
+            this.mappingName = mappingName;
+        }
+
+        public String getMappingName() {
+            return mappingName;
+        }
+
+        /**
+         * @param mappingName the type as written in CSVColumnMapping.properties (String, Boolean, Integer or Double)
+         * @return the value type, or null if it is not supported
+         */
+        public static ValueType fromName(String mappingName) {
+            for (ValueType type : values()) {
+                if (type.mappingName.equals(mappingName)) {
+                    return type;
+                }
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Okta, Inc. and/or its affiliates. All rights reserved.
+ ******************************************************************************/
+package com.okta.scim.util.file;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+
+/**
+ * The character set of a users file and the length of its byte order mark.
+ * <p>
+ * The 'csvCharset' setting is either empty for the platform default, the name of a character set (e.g. UTF-8 or
+ * windows-1252), or 'auto' to take the character set from the byte order mark and use UTF-8 for a file without one.
+ * A byte order mark that matches the character set is always skipped, so it does not end up in the first header name.
+ */
+final class CSVEncoding {
+    static final String AUTO = "auto";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Charset UTF_16BE = Charset.forName("UTF-16BE");
+    private static final Charset UTF_16LE = Charset.forName("UTF-16LE");
+
+    private final Charset charset;
+    private final int bomLength;
+
+    private CSVEncoding(Charset charset, int bomLength) {
+        this.charset = charset;
+        this.bomLength = bomLength;
+    }
+
+    /**
+     * @param setting the 'csvCharset' setting
+     * @throws IllegalArgumentException if the setting names a character set that is not supported
+     */
+    static void validate(String setting) {
+        if (setting != null && !setting.trim().isEmpty() && !AUTO.equalsIgnoreCase(setting.trim())) {
+            Charset.forName(setting.trim());
+        }
+    }
+
+    /**
+     * @param file    the users file
+     * @param setting the 'csvCharset' setting
+     * @return the encoding to read the file with
+     * @throws IOException if the file cannot be read
+     */
+    static CSVEncoding detect(File file, String setting) throws IOException {
+        byte[] head = new byte[3];
+        int length = 0;
+        InputStream input = new FileInputStream(file);
+        try {
+            int read;
+            while (length < head.length && (read = input.read(head, length, head.length - length)) > 0) {
+                length += read;
+            }
+        } finally {
+            input.close();
+        }
+        Charset bomCharset = null;
+        int bomLength = 0;
+        if (length >= 3 && (head[0] & 0xFF) == 0xEF && (head[1] & 0xFF) == 0xBB && (head[2] & 0xFF) == 0xBF) {
+            bomCharset = UTF_8;
+            bomLength = 3;
+        } else if (length >= 2 && (head[0] & 0xFF) == 0xFE && (head[1] & 0xFF) == 0xFF) {
+            bomCharset = UTF_16BE;
+            bomLength = 2;
+        } else if (length >= 2 && (head[0] & 0xFF) == 0xFF && (head[1] & 0xFF) == 0xFE) {
+            bomCharset = UTF_16LE;
+            bomLength = 2;
+        }
+
+        String name = setting == null ? "" : setting.trim();
+        if (AUTO.equalsIgnoreCase(name)) {
+            return bomCharset == null ? new CSVEncoding(UTF_8, 0) : new CSVEncoding(bomCharset, bomLength);
+        }
+        Charset charset = name.isEmpty() ? Charset.defaultCharset() : Charset.forName(name);
+        boolean bomMatches = bomCharset != null && (bomCharset.equals(charset)
+                || (bomCharset != UTF_8 && charset.name().startsWith("UTF-16")));
+        return new CSVEncoding(charset, bomMatches ? bomLength : 0);
+    }
+
+    Charset getCharset() {
+        return charset;
+    }
+
+    /**
+     * @return the number of bytes to skip at the start of the file
+     */
+    int getBomLength() {
+        return bomLength;
+    }
+
+    /**
+     * @return true if the quote, delimiter and line break characters are single ASCII bytes that never occur inside
+     * the encoding of another character, so the file can be split and tokenized as bytes. True for UTF-8 and the
+     * single byte character sets.
+     */
+    boolean isAsciiCompatible() {
+        if (charset.equals(UTF_8)) {
+            return true;
+        }
+        if (!charset.canEncode()) {
+            return false;
+        }
+        CharsetEncoder encoder = charset.newEncoder();
+        if (encoder.maxBytesPerChar() != 1f) {
+            return false;
+        }
+        try {
+            ByteBuffer encoded = encoder.encode(CharBuffer.wrap("\",\r\n"));
+            return encoded.remaining() == 4 && encoded.get(0) == '"' && encoded.get(1) == ','
+                    && encoded.get(2) == '\r' && encoded.get(3) == '\n';
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return charset.name() + (bomLength > 0 ? " (with byte order mark)" : "");
+    }
+}
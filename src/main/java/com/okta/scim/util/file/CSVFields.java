@@ -0,0 +1,52 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Okta, Inc. and/or its affiliates. All rights reserved.
+ ******************************************************************************/
+package com.okta.scim.util.file;
+
+import org.apache.commons.csv.CSVRecord;
+
+/**
+ * The fields of one CSV record, as read by either commons-csv or {@link MappedCSVReader}.
+ */
+abstract class CSVFields {
+    /**
+     * @return the number of fields of the record
+     */
+    abstract int size();
+
+    /**
+     * @param index the index of a field
+     * @return the value of the field
+     * @throws ArrayIndexOutOfBoundsException if the record does not have that many fields
+     */
+    abstract String get(int index);
+
+    /**
+     * @return the values of all the fields, e.g. to write the record out again
+     */
+    String[] toArray() {
+        String[] values = new String[size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = get(i);
+        }
+        return values;
+    }
+
+    /**
+     * @param record a record parsed by commons-csv
+     * @return its fields
+     */
+    static CSVFields of(final CSVRecord record) {
+        return new CSVFields() {
+            @Override
+            int size() {
+                return record.size();
+            }
+
+            @Override
+            String get(int index) {
+                return record.get(index);
+            }
+        };
+    }
+}
@@ -0,0 +1,308 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Okta, Inc. and/or its affiliates. All rights reserved.
+ ******************************************************************************/
+package com.okta.scim.util.file;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * A {@link CSVColumnMapping} resolved against the header of one CSV file.
+ * <p>
+ * All column names are turned into record indexes up front, so checking a record and extracting its mapped values
+ * only does array lookups.
+ */
+public final class CSVMappingPlan {
+    //The positions in the array returned by values(), followed by the custom attributes in plan order
+    static final int ID = 0;
+    static final int USER_NAME = 1;
+    static final int FAMILY_NAME = 2;
+    static final int GIVEN_NAME = 3;
+    static final int EMAIL = 4;
+    static final int PASSWORD = 5;
+    static final int FIRST_CUSTOM = 6;
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final int idIndex;
+    private final int userNameIndex;
+    private final int familyNameIndex;
+    private final int givenNameIndex;
+    private final int emailIndex;
+    private final int activeIndex;
+    private final int passwordIndex;
+    private final int[] requiredIndexes;
+    private final String[] requiredColumns;
+    private final int[] mappedIndexes;
+    private final String[] header;
+    private final long contentHashSeed;
+
+    private final String[] customNames;
+    private final int[] customIndexes;
+    private final CSVColumnMapping.ValueType[] customTypes;
+
+    private final String userInactiveValue;
+    private final String customSchemaName;
+
+    private CSVMappingPlan(CSVColumnMapping mapping, Map<String, Integer> headerMap, String userInactiveValue,
+                           String customSchemaName) {
+        this.idIndex = requiredIndex(mapping, headerMap, CSVColumnMapping.KEY_ID);
+        this.userNameIndex = requiredIndex(mapping, headerMap, CSVColumnMapping.KEY_USER_NAME);
+        this.familyNameIndex = requiredIndex(mapping, headerMap, CSVColumnMapping.KEY_FAMILY_NAME);
+        this.givenNameIndex = requiredIndex(mapping, headerMap, CSVColumnMapping.KEY_GIVEN_NAME);
+        this.emailIndex = requiredIndex(mapping, headerMap, CSVColumnMapping.KEY_EMAIL);
+        this.activeIndex = requiredIndex(mapping, headerMap, CSVColumnMapping.KEY_ACTIVE);
+        CSVColumnMapping.Column password = mapping.getColumn(CSVColumnMapping.KEY_PASSWORD);
+        this.passwordIndex = password == null ? -1 : index(headerMap, password);
+
+        Map<Integer, String> required = new LinkedHashMap<Integer, String>();
+        List<CSVColumnMapping.Column> custom = new ArrayList<CSVColumnMapping.Column>();
+        for (CSVColumnMapping.Column column : mapping.getColumns()) {
+            if (column.isRequired()) {
+                required.put(index(headerMap, column), column.getCsvColumnName());
+            }
+            if (column.isCustom()) {
+                custom.add(column);
+            }
+        }
+        this.requiredIndexes = new int[required.size()];
+        this.requiredColumns = new String[required.size()];
+        int i = 0;
+        for (Map.Entry<Integer, String> index : required.entrySet()) {
+            requiredIndexes[i] = index.getKey();
+            requiredColumns[i++] = index.getValue();
+        }
+
+        this.customNames = new String[custom.size()];
+        this.customIndexes = new int[custom.size()];
+        this.customTypes = new CSVColumnMapping.ValueType[custom.size()];
+        for (i = 0; i < custom.size(); i++) {
+            CSVColumnMapping.Column column = custom.get(i);
+            customNames[i] = column.getAttributeName();
+            customIndexes[i] = index(headerMap, column);
+            customTypes[i] = column.getType();
+        }
+
+        this.userInactiveValue = userInactiveValue;
+        this.customSchemaName = customSchemaName;
+
+        //Every column the user is built from, and a seed describing how it is built. A row keeps the same content hash
+        //only if both its mapped values and the mapping itself are unchanged.
+        Set<Integer> mapped = new TreeSet<Integer>(required.keySet());
+        mapped.add(idIndex);
+        mapped.add(userNameIndex);
+        mapped.add(familyNameIndex);
+        mapped.add(givenNameIndex);
+        mapped.add(emailIndex);
+        mapped.add(activeIndex);
+        if (passwordIndex >= 0) {
+            mapped.add(passwordIndex);
+        }
+        StringBuilder definition = new StringBuilder().append(userInactiveValue).append('|').append(customSchemaName);
+        for (i = 0; i < customIndexes.length; i++) {
+            mapped.add(customIndexes[i]);
+            definition.append('|').append(customNames[i]).append('=').append(customIndexes[i]).append(':').append(customTypes[i]);
+        }
+        this.mappedIndexes = new int[mapped.size()];
+        i = 0;
+        for (Integer index : mapped) {
+            mappedIndexes[i++] = index;
+        }
+        definition.append("|id=").append(idIndex).append("|userName=").append(userNameIndex)
+                .append("|familyName=").append(familyNameIndex).append("|givenName=").append(givenNameIndex)
+                .append("|email=").append(emailIndex).append("|password=").append(passwordIndex);
+        this.contentHashSeed = hash(FNV_OFFSET_BASIS, definition.toString());
+
+        int columnCount = 0;
+        for (Integer index : headerMap.values()) {
+            columnCount = Math.max(columnCount, index + 1);
+        }
+        this.header = new String[columnCount];
+        for (Map.Entry<String, Integer> column : headerMap.entrySet()) {
+            header[column.getValue()] = column.getKey();
+        }
+    }
+
+    /**
+     * Resolve the column mapping against the header of a CSV file.
+     *
+     * @param mapping           the parsed column mapping
+     * @param headerMap         the CSV header (column name to record index)
+     * @param userInactiveValue the value of the 'active' column which marks a user as inactive
+     * @param customSchemaName  the schema the custom attributes are stored under
+     * @return the plan
+     * @throws IllegalArgumentException if a required attribute is not mapped or a mapped column is not in the header
+     */
+    public static CSVMappingPlan compile(CSVColumnMapping mapping, Map<String, Integer> headerMap,
+                                         String userInactiveValue, String customSchemaName) {
+        return new CSVMappingPlan(mapping, headerMap, userInactiveValue, customSchemaName);
+    }
+
+    /**
+     * @param record a CSV record
+     * @return true if the record is long enough to have all the mapped columns. The other methods may only be called
+     * with such a record.
+     */
+    public boolean hasMappedColumns(CSVFields record) {
+        return record.size() > mappedIndexes[mappedIndexes.length - 1];
+    }
+
+    /**
+     * @param record a CSV record
+     * @return false if the 'active' column holds the configured inactive value
+     */
+    public boolean isActive(CSVFields record) {
+        return !record.get(activeIndex).equals(userInactiveValue);
+    }
+
+    /**
+     * All SCIM variables and all columns marked 'isMandatory' must have a non blank value.
+     *
+     * @param record a CSV record
+     * @return true if all the mandatory fields are populated
+     */
+    public boolean hasAllMandatoryFields(CSVFields record) {
+        for (int index : requiredIndexes) {
+            if (record.get(index).trim().isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Check that a user can be built from a record: the mandatory fields are populated and the Integer and Double
+     * custom values are numbers.
+     *
+     * @param record a CSV record with all the mapped columns
+     * @return why the record cannot be loaded, or null if it can
+     */
+    public String validate(CSVFields record) {
+        for (int i = 0; i < requiredIndexes.length; i++) {
+            if (record.get(requiredIndexes[i]).trim().isEmpty()) {
+                return "The mandatory column [" + requiredColumns[i] + "] is empty";
+            }
+        }
+        for (int i = 0; i < customIndexes.length; i++) {
+            //Parsed the same way as when the value is stored
+            String value = record.get(customIndexes[i]);
+            try {
+                if (customTypes[i] == CSVColumnMapping.ValueType.INTEGER) {
+                    Integer.parseInt(value);
+                } else if (customTypes[i] == CSVColumnMapping.ValueType.DOUBLE) {
+                    Double.parseDouble(value);
+                }
+            } catch (NumberFormatException e) {
+                return "The column [" + header[customIndexes[i]] + "] of the " + customTypes[i].getMappingName()
+                        + " attribute [" + customNames[i] + "] is not a number: '" + value + "'";
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param record a CSV record
+     * @return the value of the 'id' column
+     */
+    public String getId(CSVFields record) {
+        return record.get(idIndex);
+    }
+
+    /**
+     * A 64 bit FNV-1a hash of the mapped columns of a record, used to tell whether a row changed between two loads.
+     * Columns that are not mapped do not contribute to it.
+     *
+     * @param record a CSV record
+     * @return the content hash
+     */
+    public long contentHash(CSVFields record) {
+        long hash = contentHashSeed;
+        for (int index : mappedIndexes) {
+            String value = record.get(index);
+            //Hash the length first, so that moving characters from one column to the next changes the hash
+            hash = (hash ^ value.length()) * FNV_PRIME;
+            hash = hash(hash, value);
+        }
+        return hash;
+    }
+
+    private static long hash(long hash, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            hash = (hash ^ value.charAt(i)) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    /**
+     * Extract the raw values a user is built from out of an active record. The typed custom values are converted
+     * when the values are added to a {@link CompactUserStore}.
+     *
+     * @param record a CSV record
+     * @return the values, at the positions ID to FIRST_CUSTOM and then the custom attributes in plan order. The
+     * password is null if it is not mapped.
+     */
+    String[] values(CSVFields record) {
+        String[] values = new String[FIRST_CUSTOM + customIndexes.length];
+        values[ID] = record.get(idIndex);
+        values[USER_NAME] = record.get(userNameIndex);
+        values[FAMILY_NAME] = record.get(familyNameIndex);
+        values[GIVEN_NAME] = record.get(givenNameIndex);
+        values[EMAIL] = record.get(emailIndex);
+        values[PASSWORD] = passwordIndex >= 0 ? record.get(passwordIndex) : null;
+        for (int i = 0; i < customIndexes.length; i++) {
+            values[FIRST_CUSTOM + i] = record.get(customIndexes[i]);
+        }
+        return values;
+    }
+
+    /**
+     * @return the names of the columns of the CSV header, in file order
+     */
+    String[] getHeader() {
+        return header.clone();
+    }
+
+    boolean hasPassword() {
+        return passwordIndex >= 0;
+    }
+
+    /**
+     * @return the names of the custom attributes, in plan order
+     */
+    String[] getCustomNames() {
+        return customNames.clone();
+    }
+
+    /**
+     * @return the types of the custom attributes, in plan order
+     */
+    CSVColumnMapping.ValueType[] getCustomTypes() {
+        return customTypes.clone();
+    }
+
+    String getCustomSchemaName() {
+        return customSchemaName;
+    }
+
+    private static int requiredIndex(CSVColumnMapping mapping, Map<String, Integer> headerMap, String attributeName) {
+        CSVColumnMapping.Column column = mapping.getColumn(attributeName);
+        if (column == null) {
+            throw new IllegalArgumentException("The attribute [" + attributeName + "] is not mapped in CSVColumnMapping.properties");
+        }
+        return index(headerMap, column);
+    }
+
+    private static int index(Map<String, Integer> headerMap, CSVColumnMapping.Column column) {
+        Integer index = headerMap.get(column.getCsvColumnName());
+        if (index == null) {
+            throw new IllegalArgumentException("The column [" + column.getCsvColumnName() + "] mapped to ["
+                    + column.getAttributeName() + "] is not in the CSV header " + headerMap.keySet());
+        }
+        return index;
+    }
+}
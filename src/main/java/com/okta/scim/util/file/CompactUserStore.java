@@ -0,0 +1,910 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Okta, Inc. and/or its affiliates. All rights reserved.
+ ******************************************************************************/
+package com.okta.scim.util.file;
+
+import com.okta.scim.util.model.Email;
+import com.okta.scim.util.model.Name;
+import com.okta.scim.util.model.SCIMUser;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The users of one snapshot, stored by column instead of as {@link SCIMUser} objects.
+ * <p>
+ * Every attribute is an array indexed by row, in file order. Repeated strings (names, custom values) are shared
+ * between rows, Boolean custom values are kept in a bit set and Integer and Double custom values in primitive arrays.
+ * A {@link SCIMUser} is only built, by {@link #toUser}, for the users a request actually returns. Compared to keeping
+ * a user with its Name, Email list and custom JsonNode tree for every row, this takes a few times less heap.
+ * <p>
+ * A store is immutable once built. Every loaded user is active, so there is no active column. It can be written to
+ * and read back from a {@link UserSnapshotFile} column by column.
+ */
+public final class CompactUserStore {
+    private static final CompactUserStore EMPTY = new Builder(new String[0], new CSVColumnMapping.ValueType[0],
+            false, null, false).build();
+
+    private final int size;
+    private final String[] ids;
+    private final String[] userNames;
+    private final String[] familyNames;
+    private final String[] givenNames;
+    private final String[] emails;
+    private final String[] passwords;
+    private final CustomColumn[] customColumns;
+    private final String customSchemaName;
+    private final long[] rowHashes;
+    private final RowIndex idIndex;
+
+    private CompactUserStore(Builder builder) {
+        this.size = builder.size;
+        this.ids = Arrays.copyOf(builder.ids, size);
+        this.userNames = Arrays.copyOf(builder.userNames, size);
+        this.familyNames = Arrays.copyOf(builder.familyNames, size);
+        this.givenNames = Arrays.copyOf(builder.givenNames, size);
+        this.emails = Arrays.copyOf(builder.emails, size);
+        this.passwords = builder.passwords == null ? null : Arrays.copyOf(builder.passwords, size);
+        this.customColumns = builder.customColumns;
+        for (CustomColumn column : customColumns) {
+            column.trim(size);
+        }
+        this.customSchemaName = builder.customSchemaName;
+        this.rowHashes = builder.rowHashes == null ? null : Arrays.copyOf(builder.rowHashes, size);
+        this.idIndex = RowIndex.build(size, column(ids), false, true);
+    }
+
+    private CompactUserStore(int size, String[] ids, String[] userNames, String[] familyNames, String[] givenNames,
+                             String[] emails, String[] passwords, CustomColumn[] customColumns,
+                             String customSchemaName, long[] rowHashes, RowIndex idIndex) {
+        this.size = size;
+        this.ids = ids;
+        this.userNames = userNames;
+        this.familyNames = familyNames;
+        this.givenNames = givenNames;
+        this.emails = emails;
+        this.passwords = passwords;
+        this.customColumns = customColumns;
+        this.customSchemaName = customSchemaName;
+        this.rowHashes = rowHashes;
+        this.idIndex = idIndex;
+    }
+
+    /**
+     * Read a store written by {@link #writeTo}.
+     *
+     * @throws IOException if the snapshot is truncated or not valid
+     */
+    static CompactUserStore readFrom(UserSnapshotFile.Input in) throws IOException {
+        int size = in.readInt();
+        String customSchemaName = in.readString();
+        String[] ids = in.readStrings();
+        String[] userNames = in.readStrings();
+        String[] familyNames = in.readStrings();
+        String[] givenNames = in.readStrings();
+        String[] emails = in.readStrings();
+        long[] rowHashes = in.readLongs();
+        CustomColumn[] customColumns = new CustomColumn[in.readInt()];
+        for (int i = 0; i < customColumns.length; i++) {
+            String name = in.readString();
+            customColumns[i] = CustomColumn.create(name, CSVColumnMapping.ValueType.valueOf(in.readString()), 0);
+            customColumns[i].readFrom(in);
+        }
+        for (String[] column : new String[][]{ids, userNames, familyNames, givenNames, emails}) {
+            if (column.length != size) {
+                throw new IOException("The snapshot has " + column.length + " values for " + size + " users");
+            }
+        }
+        return new CompactUserStore(size, ids, userNames, familyNames, givenNames, emails, null, customColumns,
+                customSchemaName, rowHashes, RowIndex.readFrom(in, column(ids)));
+    }
+
+    /**
+     * Write the store to a snapshot file. The passwords are never written, a store that has them is not persisted.
+     */
+    void writeTo(UserSnapshotFile.Output out) throws IOException {
+        out.writeInt(size);
+        out.writeString(customSchemaName);
+        out.writeStrings(ids, false);
+        out.writeStrings(userNames, false);
+        out.writeStrings(familyNames, true);
+        out.writeStrings(givenNames, true);
+        out.writeStrings(emails, false);
+        out.writeLongs(rowHashes);
+        out.writeInt(customColumns.length);
+        for (CustomColumn column : customColumns) {
+            out.writeString(column.name);
+            out.writeString(column.getType().name());
+            column.writeTo(out);
+        }
+        idIndex.writeTo(out);
+    }
+
+    /**
+     * @return a store without any users
+     */
+    public static CompactUserStore empty() {
+        return EMPTY;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param id the id of a user
+     * @return the row of the user, or -1 if there is no user with this id
+     */
+    public int rowOf(String id) {
+        return idIndex.findFirst(id);
+    }
+
+    /**
+     * Build the user of a row. Every call returns a new instance.
+     *
+     * @param row a row
+     * @return the user
+     */
+    public SCIMUser toUser(int row) {
+        SCIMUser user = new SCIMUser();
+        user.setUserName(userNames[row]);
+        user.setId(ids[row]);
+        user.setActive(true);
+
+        String familyName = familyNames[row];
+        String givenName = givenNames[row];
+        user.setName(new Name(familyName + " " + givenName, familyName, givenName));
+
+        Collection<Email> userEmails = new ArrayList<Email>(1);
+        userEmails.add(new Email(emails[row], "work", true));
+        user.setEmails(userEmails);
+
+        if (passwords != null) {
+            user.setPassword(passwords[row]);
+        }
+
+        for (CustomColumn column : customColumns) {
+            column.setCustomValue(user, customSchemaName, row);
+        }
+        return user;
+    }
+
+    /**
+     * Apply provisioned changes to a copy of the store. The replaced users keep their row, the added ones are
+     * appended in the order of the changes and the removed ones are dropped. When several changes have the same id,
+     * the last one wins. The changes must be of type PUT or REMOVE and have passed {@link #check}.
+     *
+     * @param changes the changes, in the order they were made
+     * @return the new store. This store is not modified.
+     */
+    CompactUserStore withChanges(Collection<UserChange> changes) {
+        Map<String, UserChange> latest = new LinkedHashMap<String, UserChange>();
+        for (UserChange change : changes) {
+            latest.remove(change.getId());
+            latest.put(change.getId(), change);
+        }
+        BitSet removed = new BitSet(size);
+        Map<Integer, UserChange> replaced = new HashMap<Integer, UserChange>();
+        List<UserChange> added = new ArrayList<UserChange>();
+        for (UserChange change : latest.values()) {
+            int row = rowOf(change.getId());
+            if (change.getType() == UserChange.Type.REMOVE) {
+                if (row >= 0) {
+                    removed.set(row);
+                }
+            } else if (row >= 0) {
+                replaced.put(row, change);
+            } else {
+                added.add(change);
+            }
+        }
+        //The old row of every kept user, in order
+        int[] kept = new int[size - removed.cardinality()];
+        int[] newRows = new int[size];
+        for (int row = 0, i = 0; row < size; row++) {
+            newRows[row] = removed.get(row) ? -1 : i;
+            if (!removed.get(row)) {
+                kept[i++] = row;
+            }
+        }
+        int newSize = kept.length + added.size();
+        String[] newPasswords = select(passwords, kept, newSize);
+        CustomColumn[] newCustomColumns = new CustomColumn[customColumns.length];
+        for (int i = 0; i < customColumns.length; i++) {
+            newCustomColumns[i] = customColumns[i].select(kept, newSize);
+        }
+        long[] newRowHashes = null;
+        if (rowHashes != null) {
+            newRowHashes = new long[newSize];
+            for (int i = 0; i < kept.length; i++) {
+                newRowHashes[i] = rowHashes[kept[i]];
+            }
+        }
+        String[] newIds = select(ids, kept, newSize);
+        for (int i = 0; i < added.size(); i++) {
+            newIds[kept.length + i] = added.get(i).getId();
+        }
+        CompactUserStore store = new CompactUserStore(newSize, newIds, select(userNames, kept, newSize),
+                select(familyNames, kept, newSize), select(givenNames, kept, newSize), select(emails, kept, newSize),
+                newPasswords, newCustomColumns, customSchemaName, newRowHashes,
+                RowIndex.build(newSize, column(newIds), false, true));
+        //The new store is not shared yet, so its columns can still be written
+        for (Map.Entry<Integer, UserChange> change : replaced.entrySet()) {
+            store.set(newRows[change.getKey()], change.getValue());
+        }
+        for (int i = 0; i < added.size(); i++) {
+            store.set(kept.length + i, added.get(i));
+        }
+        return store;
+    }
+
+    /**
+     * @return a store without any users that maps the same custom attributes, to hold the users provisioned over this
+     * one, see {@link UserOverlay}
+     */
+    CompactUserStore emptyCopy() {
+        String[] none = new String[0];
+        CustomColumn[] emptyColumns = new CustomColumn[customColumns.length];
+        for (int i = 0; i < customColumns.length; i++) {
+            emptyColumns[i] = customColumns[i].select(new int[0], 0);
+        }
+        return new CompactUserStore(0, none, none, none, none, none, null, emptyColumns, customSchemaName, null,
+                RowIndex.build(0, column(none), false, true));
+    }
+
+    /**
+     * Check that the custom values of a change can be stored.
+     *
+     * @throws IllegalArgumentException if an Integer or Double custom value is not a number
+     */
+    void check(UserChange change) {
+        for (CustomColumn column : customColumns) {
+            try {
+                column.select(new int[0], 1).set(0, customText(column, change), null);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("The custom attribute [" + column.name + "] of the user ["
+                        + change.getId() + "] is not a number", e);
+            }
+        }
+    }
+
+    /**
+     * @return true if the row holds exactly the values of a change that adds or replaces a user
+     */
+    boolean matches(UserChange change, int row) {
+        if (!ids[row].equals(change.getId()) || !userNames[row].equals(change.getUserName())
+                || !familyNames[row].equals(change.getFamilyName()) || !givenNames[row].equals(change.getGivenName())
+                || !emails[row].equals(change.getEmail())) {
+            return false;
+        }
+        for (CustomColumn column : customColumns) {
+            CustomColumn parsed = column.select(new int[0], 1);
+            parsed.set(0, customText(column, change), null);
+            String text = column.getText(row);
+            if (!parsed.getText(0).equals(text == null ? "" : text)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void set(int row, UserChange change) {
+        ids[row] = change.getId();
+        userNames[row] = change.getUserName();
+        familyNames[row] = change.getFamilyName();
+        givenNames[row] = change.getGivenName();
+        emails[row] = change.getEmail();
+        if (passwords != null) {
+            //Okta's password is not kept, the users file is the only source of passwords
+            passwords[row] = null;
+        }
+        for (CustomColumn column : customColumns) {
+            column.set(row, customText(column, change), null);
+        }
+        if (rowHashes != null) {
+            //A provisioned row has no content hash, so the next incremental reload converts its CSV row again
+            rowHashes[row] = 0;
+        }
+    }
+
+    /**
+     * @return the custom value of a change as the users file would hold it: a missing number is 0, a missing
+     * Boolean false and a missing String empty
+     */
+    private static String customText(CustomColumn column, UserChange change) {
+        String value = change.getCustomValue(column.name);
+        if (value != null && !value.trim().isEmpty()) {
+            return column.getType() == CSVColumnMapping.ValueType.STRING ? value : value.trim();
+        }
+        switch (column.getType()) {
+            case INTEGER:
+            case DOUBLE:
+                return "0";
+            case BOOLEAN:
+                return "false";
+            default:
+                return "";
+        }
+    }
+
+    private static String[] select(String[] values, int[] rows, int capacity) {
+        if (values == null) {
+            return null;
+        }
+        String[] selected = new String[capacity];
+        for (int i = 0; i < rows.length; i++) {
+            selected[i] = values[rows[i]];
+        }
+        return selected;
+    }
+
+    public String getId(int row) {
+        return ids[row];
+    }
+
+    public String getUserName(int row) {
+        return userNames[row];
+    }
+
+    public String getFamilyName(int row) {
+        return familyNames[row];
+    }
+
+    public String getGivenName(int row) {
+        return givenNames[row];
+    }
+
+    public String getEmail(int row) {
+        return emails[row];
+    }
+
+    /**
+     * @param attributeName the name of a custom attribute
+     * @return true if the attribute is mapped
+     */
+    public boolean hasCustomAttribute(String attributeName) {
+        return customColumn(attributeName) != null;
+    }
+
+    /**
+     * @param attributeName the name of a custom attribute
+     * @param row           a row
+     * @return the value as text, as JsonNode.asText() returns it, or null if the attribute is not mapped
+     */
+    public String getCustomText(String attributeName, int row) {
+        CustomColumn column = customColumn(attributeName);
+        return column == null ? null : column.getText(row);
+    }
+
+    /**
+     * @return the content hash of the row, or 0 if the store was not loaded incrementally
+     */
+    long getRowHash(int row) {
+        return rowHashes == null ? 0 : rowHashes[row];
+    }
+
+    /**
+     * @return true if the users file maps a password column
+     */
+    boolean hasPasswords() {
+        return passwords != null;
+    }
+
+    boolean hasRowHashes() {
+        return rowHashes != null;
+    }
+
+    RowIndex.Values userNameValues() {
+        return column(userNames);
+    }
+
+    RowIndex.Values familyNameValues() {
+        return column(familyNames);
+    }
+
+    RowIndex.Values givenNameValues() {
+        return column(givenNames);
+    }
+
+    RowIndex.Values emailValues() {
+        return column(emails);
+    }
+
+    /**
+     * @return the values of a custom attribute as text, or null if the attribute is not mapped
+     */
+    RowIndex.Values customValues(String attributeName) {
+        final CustomColumn column = customColumn(attributeName);
+        if (column == null) {
+            return null;
+        }
+        return new RowIndex.Values() {
+            public String get(int row) {
+                return column.getText(row);
+            }
+        };
+    }
+
+    private CustomColumn customColumn(String attributeName) {
+        for (CustomColumn column : customColumns) {
+            if (column.name.equals(attributeName)) {
+                return column;
+            }
+        }
+        return null;
+    }
+
+    private static RowIndex.Values column(final String[] values) {
+        return new RowIndex.Values() {
+            public String get(int row) {
+                return values[row];
+            }
+        };
+    }
+
+    /**
+     * Collects the rows of one load. A row added with an id that is already present replaces the earlier row in
+     * place, so the last row of a duplicate id wins while the first one keeps its position, as with a LinkedHashMap.
+     */
+    static final class Builder {
+        private static final int INITIAL_CAPACITY = 1024;
+
+        private final String customSchemaName;
+        private final CustomColumn[] customColumns;
+        private final Map<String, Integer> rowById = new HashMap<String, Integer>();
+        //Shares the instances of repeated values. Only used while building.
+        private final Map<String, String> dedup = new HashMap<String, String>();
+        private final BitSet reused = new BitSet();
+
+        private int size;
+        private String[] ids = new String[INITIAL_CAPACITY];
+        private String[] userNames = new String[INITIAL_CAPACITY];
+        private String[] familyNames = new String[INITIAL_CAPACITY];
+        private String[] givenNames = new String[INITIAL_CAPACITY];
+        private String[] emails = new String[INITIAL_CAPACITY];
+        private String[] passwords;
+        private long[] rowHashes;
+
+        /**
+         * @param plan      the plan the rows are extracted with
+         * @param hashRows  true to keep the content hash of every row
+         */
+        Builder(CSVMappingPlan plan, boolean hashRows) {
+            this(plan.getCustomNames(), plan.getCustomTypes(), plan.hasPassword(), plan.getCustomSchemaName(), hashRows);
+        }
+
+        private Builder(String[] customNames, CSVColumnMapping.ValueType[] customTypes, boolean hasPassword,
+                        String customSchemaName, boolean hashRows) {
+            this.customSchemaName = customSchemaName;
+            this.customColumns = new CustomColumn[customNames.length];
+            for (int i = 0; i < customNames.length; i++) {
+                customColumns[i] = CustomColumn.create(customNames[i], customTypes[i], INITIAL_CAPACITY);
+            }
+            this.passwords = hasPassword ? new String[INITIAL_CAPACITY] : null;
+            this.rowHashes = hashRows ? new long[INITIAL_CAPACITY] : null;
+        }
+
+        /**
+         * Add a row extracted by {@link CSVMappingPlan#values}.
+         *
+         * @throws NumberFormatException if an Integer or Double custom value is not a number
+         */
+        void add(String[] values, long rowHash) {
+            int row = row(values[CSVMappingPlan.ID]);
+            ids[row] = values[CSVMappingPlan.ID];
+            userNames[row] = values[CSVMappingPlan.USER_NAME];
+            familyNames[row] = dedup(values[CSVMappingPlan.FAMILY_NAME]);
+            givenNames[row] = dedup(values[CSVMappingPlan.GIVEN_NAME]);
+            emails[row] = values[CSVMappingPlan.EMAIL];
+            if (passwords != null) {
+                passwords[row] = values[CSVMappingPlan.PASSWORD];
+            }
+            for (int i = 0; i < customColumns.length; i++) {
+                customColumns[i].set(row, values[CSVMappingPlan.FIRST_CUSTOM + i], this);
+            }
+            if (rowHashes != null) {
+                rowHashes[row] = rowHash;
+            }
+            reused.clear(row);
+        }
+
+        /**
+         * Add a row of a previous store with the same layout, without converting its values again.
+         */
+        void copy(CompactUserStore previous, int previousRow) {
+            int row = row(previous.ids[previousRow]);
+            ids[row] = previous.ids[previousRow];
+            userNames[row] = previous.userNames[previousRow];
+            familyNames[row] = dedup(previous.familyNames[previousRow]);
+            givenNames[row] = dedup(previous.givenNames[previousRow]);
+            emails[row] = previous.emails[previousRow];
+            if (passwords != null) {
+                passwords[row] = previous.passwords[previousRow];
+            }
+            for (int i = 0; i < customColumns.length; i++) {
+                customColumns[i].copy(row, previous.customColumns[i], previousRow, this);
+            }
+            if (rowHashes != null) {
+                rowHashes[row] = previous.getRowHash(previousRow);
+            }
+            reused.set(row);
+        }
+
+        private int row(String id) {
+            Integer existing = rowById.get(id);
+            if (existing != null) {
+                return existing;
+            }
+            int row = size++;
+            if (row == ids.length) {
+                int capacity = ids.length * 2;
+                ids = Arrays.copyOf(ids, capacity);
+                userNames = Arrays.copyOf(userNames, capacity);
+                familyNames = Arrays.copyOf(familyNames, capacity);
+                givenNames = Arrays.copyOf(givenNames, capacity);
+                emails = Arrays.copyOf(emails, capacity);
+                if (passwords != null) {
+                    passwords = Arrays.copyOf(passwords, capacity);
+                }
+                if (rowHashes != null) {
+                    rowHashes = Arrays.copyOf(rowHashes, capacity);
+                }
+                for (CustomColumn column : customColumns) {
+                    column.grow(capacity);
+                }
+            }
+            rowById.put(id, row);
+            return row;
+        }
+
+        String dedup(String value) {
+            if (value == null) {
+                return null;
+            }
+            String shared = dedup.get(value);
+            if (shared == null) {
+                dedup.put(value, value);
+                return value;
+            }
+            return shared;
+        }
+
+        int size() {
+            return size;
+        }
+
+        /**
+         * @return the row of an id, or -1 if no row with this id was added
+         */
+        int rowOf(String id) {
+            Integer row = rowById.get(id);
+            return row == null ? -1 : row;
+        }
+
+        /**
+         * @return true if the row was copied from the previous store rather than converted
+         */
+        boolean isReused(int row) {
+            return reused.get(row);
+        }
+
+        String getId(int row) {
+            return ids[row];
+        }
+
+        CompactUserStore build() {
+            return new CompactUserStore(this);
+        }
+    }
+
+    /**
+     * The values of one custom attribute.
+     */
+    private abstract static class CustomColumn {
+        final String name;
+
+        CustomColumn(String name) {
+            this.name = name;
+        }
+
+        static CustomColumn create(String name, CSVColumnMapping.ValueType type, int capacity) {
+            switch (type) {
+                case BOOLEAN:
+                    return new BooleanColumn(name);
+                case INTEGER:
+                    return new IntegerColumn(name, capacity);
+                case DOUBLE:
+                    return new DoubleColumn(name, capacity);
+                default:
+                    return new StringColumn(name, capacity);
+            }
+        }
+
+        abstract void set(int row, String value, Builder builder);
+
+        /**
+         * Copy the value of a row of a column of the same type.
+         */
+        abstract void copy(int row, CustomColumn from, int fromRow, Builder builder);
+
+        abstract void grow(int capacity);
+
+        abstract void trim(int size);
+
+        /**
+         * @param rows     the rows to keep, in their new order
+         * @param capacity the number of rows of the new column, at least rows.length
+         * @return a new column with the values of the rows
+         */
+        abstract CustomColumn select(int[] rows, int capacity);
+
+        abstract void setCustomValue(SCIMUser user, String schemaName, int row);
+
+        abstract String getText(int row);
+
+        abstract CSVColumnMapping.ValueType getType();
+
+        abstract void writeTo(UserSnapshotFile.Output out) throws IOException;
+
+        /**
+         * Replace the values with the ones written by {@link #writeTo}.
+         */
+        abstract void readFrom(UserSnapshotFile.Input in) throws IOException;
+    }
+
+    private static final class StringColumn extends CustomColumn {
+        private String[] values;
+
+        StringColumn(String name, int capacity) {
+            super(name);
+            this.values = new String[capacity];
+        }
+
+        @Override
+        void set(int row, String value, Builder builder) {
+            values[row] = builder == null ? value : builder.dedup(value);
+        }
+
+        @Override
+        void copy(int row, CustomColumn from, int fromRow, Builder builder) {
+            values[row] = builder.dedup(((StringColumn) from).values[fromRow]);
+        }
+
+        @Override
+        void grow(int capacity) {
+            values = Arrays.copyOf(values, capacity);
+        }
+
+        @Override
+        void trim(int size) {
+            values = Arrays.copyOf(values, size);
+        }
+
+        @Override
+        CustomColumn select(int[] rows, int capacity) {
+            StringColumn column = new StringColumn(name, capacity);
+            for (int i = 0; i < rows.length; i++) {
+                column.values[i] = values[rows[i]];
+            }
+            return column;
+        }
+
+        @Override
+        void setCustomValue(SCIMUser user, String schemaName, int row) {
+            user.setCustomStringValue(schemaName, name, values[row]);
+        }
+
+        @Override
+        String getText(int row) {
+            return values[row];
+        }
+
+        @Override
+        CSVColumnMapping.ValueType getType() {
+            return CSVColumnMapping.ValueType.STRING;
+        }
+
+        @Override
+        void writeTo(UserSnapshotFile.Output out) throws IOException {
+            out.writeStrings(values, true);
+        }
+
+        @Override
+        void readFrom(UserSnapshotFile.Input in) throws IOException {
+            values = in.readStrings();
+        }
+    }
+
+    private static final class BooleanColumn extends CustomColumn {
+        private BitSet values = new BitSet();
+
+        BooleanColumn(String name) {
+            super(name);
+        }
+
+        @Override
+        void set(int row, String value, Builder builder) {
+            values.set(row, Boolean.parseBoolean(value));
+        }
+
+        @Override
+        void copy(int row, CustomColumn from, int fromRow, Builder builder) {
+            values.set(row, ((BooleanColumn) from).values.get(fromRow));
+        }
+
+        @Override
+        void grow(int capacity) {
+        }
+
+        @Override
+        void trim(int size) {
+        }
+
+        @Override
+        CustomColumn select(int[] rows, int capacity) {
+            BooleanColumn column = new BooleanColumn(name);
+            for (int i = 0; i < rows.length; i++) {
+                column.values.set(i, values.get(rows[i]));
+            }
+            return column;
+        }
+
+        @Override
+        void setCustomValue(SCIMUser user, String schemaName, int row) {
+            user.setCustomBooleanValue(schemaName, name, values.get(row));
+        }
+
+        @Override
+        String getText(int row) {
+            return String.valueOf(values.get(row));
+        }
+
+        @Override
+        CSVColumnMapping.ValueType getType() {
+            return CSVColumnMapping.ValueType.BOOLEAN;
+        }
+
+        @Override
+        void writeTo(UserSnapshotFile.Output out) throws IOException {
+            out.writeLongs(values.toLongArray());
+        }
+
+        @Override
+        void readFrom(UserSnapshotFile.Input in) throws IOException {
+            values = BitSet.valueOf(in.readLongs());
+        }
+    }
+
+    private static final class IntegerColumn extends CustomColumn {
+        private int[] values;
+
+        IntegerColumn(String name, int capacity) {
+            super(name);
+            this.values = new int[capacity];
+        }
+
+        @Override
+        void set(int row, String value, Builder builder) {
+            values[row] = Integer.parseInt(value);
+        }
+
+        @Override
+        void copy(int row, CustomColumn from, int fromRow, Builder builder) {
+            values[row] = ((IntegerColumn) from).values[fromRow];
+        }
+
+        @Override
+        void grow(int capacity) {
+            values = Arrays.copyOf(values, capacity);
+        }
+
+        @Override
+        void trim(int size) {
+            values = Arrays.copyOf(values, size);
+        }
+
+        @Override
+        CustomColumn select(int[] rows, int capacity) {
+            IntegerColumn column = new IntegerColumn(name, capacity);
+            for (int i = 0; i < rows.length; i++) {
+                column.values[i] = values[rows[i]];
+            }
+            return column;
+        }
+
+        @Override
+        void setCustomValue(SCIMUser user, String schemaName, int row) {
+            user.setCustomIntValue(schemaName, name, values[row]);
+        }
+
+        @Override
+        String getText(int row) {
+            return String.valueOf(values[row]);
+        }
+
+        @Override
+        CSVColumnMapping.ValueType getType() {
+            return CSVColumnMapping.ValueType.INTEGER;
+        }
+
+        @Override
+        void writeTo(UserSnapshotFile.Output out) throws IOException {
+            out.writeInts(values);
+        }
+
+        @Override
+        void readFrom(UserSnapshotFile.Input in) throws IOException {
+            values = in.readInts();
+        }
+    }
+
+    private static final class DoubleColumn extends CustomColumn {
+        private double[] values;
+
+        DoubleColumn(String name, int capacity) {
+            super(name);
+            this.values = new double[capacity];
+        }
+
+        @Override
+        void set(int row, String value, Builder builder) {
+            values[row] = Double.parseDouble(value);
+        }
+
+        @Override
+        void copy(int row, CustomColumn from, int fromRow, Builder builder) {
+            values[row] = ((DoubleColumn) from).values[fromRow];
+        }
+
+        @Override
+        void grow(int capacity) {
+            values = Arrays.copyOf(values, capacity);
+        }
+
+        @Override
+        void trim(int size) {
+            values = Arrays.copyOf(values, size);
+        }
+
+        @Override
+        CustomColumn select(int[] rows, int capacity) {
+            DoubleColumn column = new DoubleColumn(name, capacity);
+            for (int i = 0; i < rows.length; i++) {
+                column.values[i] = values[rows[i]];
+            }
+            return column;
+        }
+
+        @Override
+        void setCustomValue(SCIMUser user, String schemaName, int row) {
+            user.setCustomDoubleValue(schemaName, name, values[row]);
+        }
+
+        @Override
+        String getText(int row) {
+            return String.valueOf(values[row]);
+        }
+
+        @Override
+        CSVColumnMapping.ValueType getType() {
+            return CSVColumnMapping.ValueType.DOUBLE;
+        }
+
+        @Override
+        void writeTo(UserSnapshotFile.Output out) throws IOException {
+            out.writeDoubles(values);
+        }
+
+        @Override
+        void readFrom(UserSnapshotFile.Input in) throws IOException {
+            values = in.readDoubles();
+        }
+    }
+}
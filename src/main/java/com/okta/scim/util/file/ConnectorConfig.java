@@ -0,0 +1,189 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Okta, Inc. and/or its affiliates. All rights reserved.
+ ******************************************************************************/
+package com.okta.scim.util.file;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * An immutable, validated version of application.properties and CSVColumnMapping.properties.
+ * <p>
+ * {@link #get()} only reads the files again when the modification time of one of them changed, and publishes the new
+ * version with a single reference swap. The first load fails if a file is missing or the column mapping is invalid.
+ * A later edit that does not validate is logged and ignored, and the previous version stays in use until the files
+ * are fixed.
+ */
+public final class ConnectorConfig {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ConnectorConfig.class);
+
+    private static final String APPLICATION = "application";
+    private static final String COLUMN_MAPPING = "CSVColumnMapping";
+
+    private static final AtomicReference<ConnectorConfig> CURRENT = new AtomicReference<ConnectorConfig>();
+    private static final Object RELOAD_LOCK = new Object();
+
+    private final long version;
+    private final Properties applicationProperties;
+    private final CSVColumnMapping columnMapping;
+    private final long applicationLastModified;
+    private final long columnMappingLastModified;
+    private final int parallelLoadThreads;
+
+    private ConnectorConfig(long version, Properties applicationProperties, CSVColumnMapping columnMapping,
+                            long applicationLastModified, long columnMappingLastModified) {
+        this.version = version;
+        this.applicationProperties = applicationProperties;
+        this.parallelLoadThreads = parseParallelLoadThreads(
+                applicationProperties.getProperty("csvParallelLoadThreads"));
+        this.columnMapping = columnMapping;
+        this.applicationLastModified = applicationLastModified;
+        this.columnMappingLastModified = columnMappingLastModified;
+    }
+
+    /**
+     * Get the current configuration, reading the files again first if one of them was modified.
+     *
+     * @return the configuration
+     * @throws IllegalStateException if nothing could be loaded yet
+     */
+    public static ConnectorConfig get() {
+        ConnectorConfig current = CURRENT.get();
+        if (current != null && !current.isStale()) {
+            return current;
+        }
+        synchronized (RELOAD_LOCK) {
+            current = CURRENT.get();
+            if (current != null && !current.isStale()) {
+                return current;
+            }
+            long applicationLastModified = SCIMConnectorUtil.configFile(APPLICATION).lastModified();
+            long columnMappingLastModified = SCIMConnectorUtil.configFile(COLUMN_MAPPING).lastModified();
+            try {
+                Properties applicationProperties = read(APPLICATION);
+                CSVEncoding.validate(applicationProperties.getProperty("csvCharset"));
+                ConnectorConfig loaded = new ConnectorConfig(current == null ? 1 : current.version + 1,
+                        applicationProperties, CSVColumnMapping.parse(read(COLUMN_MAPPING)),
+                        applicationLastModified, columnMappingLastModified);
+                CURRENT.set(loaded);
+                LOGGER.info("Loaded the configuration version " + loaded.version + " from ["
+                        + SCIMConnectorUtil.configFile(APPLICATION).getParent() + "]");
+                return loaded;
+            } catch (Exception e) {
+                if (current == null) {
+                    throw new IllegalStateException("Cannot load the configuration from ["
+                            + SCIMConnectorUtil.configFile(APPLICATION).getParent() + "]", e);
+                }
+                //Do not read the broken files again until they are modified once more
+                LOGGER.error("Ignoring the modified configuration, keeping version " + current.version, e);
+                ConnectorConfig kept = new ConnectorConfig(current.version, current.applicationProperties,
+                        current.columnMapping, applicationLastModified, columnMappingLastModified);
+                CURRENT.set(kept);
+                return kept;
+            }
+        }
+    }
+
+    /**
+     * @param setting the 'csvParallelLoadThreads' setting
+     * @return the number of threads, by default the number of available processors
+     * @throws IllegalArgumentException if the setting is not a positive number
+     */
+    private static int parseParallelLoadThreads(String setting) {
+        if (setting == null || setting.trim().isEmpty()) {
+            return Runtime.getRuntime().availableProcessors();
+        }
+        int threads;
+        try {
+            threads = Integer.parseInt(setting.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("csvParallelLoadThreads is not a number: '" + setting + "'", e);
+        }
+        if (threads < 1) {
+            throw new IllegalArgumentException("csvParallelLoadThreads must be at least 1, not " + threads);
+        }
+        return threads;
+    }
+
+    /**
+     * A configuration of the given properties, which are not read from the conf folder, e.g. for the tests.
+     *
+     * @param applicationProperties the settings of application.properties
+     * @param columnMapping         the lines of CSVColumnMapping.properties
+     * @return the configuration, version 0
+     * @throws IllegalArgumentException if the properties are invalid
+     */
+    static ConnectorConfig of(Properties applicationProperties, Properties columnMapping) {
+        CSVEncoding.validate(applicationProperties.getProperty("csvCharset"));
+        return new ConnectorConfig(0, applicationProperties, CSVColumnMapping.parse(columnMapping), 0, 0);
+    }
+
+    private static Properties read(String name) throws IOException {
+        Properties properties = new Properties();
+        InputStream input = new FileInputStream(SCIMConnectorUtil.configFile(name));
+        try {
+            properties.load(input);
+        } finally {
+            input.close();
+        }
+        return properties;
+    }
+
+    private boolean isStale() {
+        return SCIMConnectorUtil.configFile(APPLICATION).lastModified() != applicationLastModified
+                || SCIMConnectorUtil.configFile(COLUMN_MAPPING).lastModified() != columnMappingLastModified;
+    }
+
+    /**
+     * @return increases by one every time modified files are loaded
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @param key a key of application.properties
+     * @return the value, or null if it is not set
+     */
+    public String getProperty(String key) {
+        return applicationProperties.getProperty(key);
+    }
+
+    /**
+     * @param key          a key of application.properties
+     * @param defaultValue the value to use if it is not set
+     * @return the value
+     */
+    public String getProperty(String key, String defaultValue) {
+        return applicationProperties.getProperty(key, defaultValue);
+    }
+
+    /**
+     * @return the parsed CSVColumnMapping.properties
+     */
+    public CSVColumnMapping getColumnMapping() {
+        return columnMapping;
+    }
+
+    /**
+     * @return the number of threads of a parallel load, 'csvParallelLoadThreads'
+     */
+    public int getParallelLoadThreads() {
+        return parallelLoadThreads;
+    }
+
+    public String getUserInactiveValue() {
+        return applicationProperties.getProperty("userInactiveValueInCSV");
+    }
+
+    public String getCustomSchemaName() {
+        return applicationProperties.getProperty("customSchemaName");
+    }
+}
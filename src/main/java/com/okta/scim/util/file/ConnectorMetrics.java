@@ -0,0 +1,385 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Okta, Inc. and/or its affiliates. All rights reserved.
+ ******************************************************************************/
+package com.okta.scim.util.file;
+
+import com.okta.scim.util.model.SCIMFilterType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latency histograms of the connector: the SCIM operations, their admission and the response cache,
+ * the filters, the loads of the users file and the commits of the provisioned users to the journal.
+ * <p>
+ * Recording only touches atomic counters, so the request threads never wait on each other or on a reader of the
+ * metrics. {@link #snapshot()} reads them all into a flat map, which is what the {@link MetricsController} and the
+ * <code>com.okta.scim:type=ConnectorMetrics</code> MBean report.
+ */
+public class ConnectorMetrics implements DynamicMBean {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ConnectorMetrics.class);
+
+    public static final String OBJECT_NAME = "com.okta.scim:type=ConnectorMetrics";
+
+    /**
+     * The timed SCIM operations.
+     */
+    public enum Operation {
+        GET_USERS("getUsers"),
+        GET_USER("getUser"),
+        CREATE_USER("createUser"),
+        UPDATE_USER("updateUser"),
+        GET_GROUPS("getGroups"),
+        GET_GROUP("getGroup");
+
+        private final String metricName;
+
+        Operation(String metricName) {
+            this.metricName = metricName;
+        }
+
+        public String getMetricName() {
+            return metricName;
+        }
+    }
+
+    private final UserCache userCache;
+
+    private final LatencyHistogram[] operationLatency = new LatencyHistogram[Operation.values().length];
+    private final AtomicLongArray operationErrors = new AtomicLongArray(Operation.values().length);
+
+    private final AtomicLongArray filterTypes = new AtomicLongArray(SCIMFilterType.values().length);
+    private final AtomicLong unsupportedFilters = new AtomicLong();
+    private final AtomicLong indexedLookups = new AtomicLong();
+    private final AtomicLong scannedLookups = new AtomicLong();
+
+    private final LatencyHistogram reloadLatency = new LatencyHistogram();
+    private final LatencyHistogram parseLatency = new LatencyHistogram();
+    private final AtomicLong reloadFailures = new AtomicLong();
+    private final AtomicLong rejectedLoads = new AtomicLong();
+    private final AtomicLong rowsParsed = new AtomicLong();
+    private final AtomicLong rowsAccepted = new AtomicLong();
+    private final AtomicLong rowsInactive = new AtomicLong();
+    private final AtomicLong rowsRejected = new AtomicLong();
+    private volatile RowCounts lastRowCounts = new RowCounts(0, 0, 0);
+    private volatile List<UserLoad.FileStats> lastFileStats = Collections.emptyList();
+
+    private final LatencyHistogram journalCommitLatency = new LatencyHistogram();
+    private final AtomicLong journalChanges = new AtomicLong();
+    private final AtomicLong journalCompactions = new AtomicLong();
+
+    private RequestAdmission admission;
+    private ResponseCache responseCache;
+    private MBeanServer registeredServer;
+
+    /**
+     * @param userCache the cache to report the users and the cache counters of
+     */
+    public ConnectorMetrics(UserCache userCache) {
+        this.userCache = userCache;
+        for (int i = 0; i < operationLatency.length; i++) {
+            operationLatency[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * @param admission the admission controller of the SCIM operations, to report its queue and rejections
+     */
+    public void setAdmission(RequestAdmission admission) {
+        this.admission = admission;
+    }
+
+    /**
+     * @param responseCache the cache of the pages and users served, to report its hits and size
+     */
+    public void setResponseCache(ResponseCache responseCache) {
+        this.responseCache = responseCache;
+    }
+
+    /**
+     * Record a finished SCIM operation.
+     *
+     * @param operation  the operation
+     * @param startNanos the {@link System#nanoTime()} when it started
+     * @param failed     true if it threw an exception
+     */
+    public void recordOperation(Operation operation, long startNanos, boolean failed) {
+        operationLatency[operation.ordinal()].recordSince(startNanos);
+        if (failed) {
+            operationErrors.incrementAndGet(operation.ordinal());
+        }
+    }
+
+    /**
+     * @param filterType the type of a filter of a getUsers request
+     * @param supported  false if the filter type is not supported and no user was returned
+     */
+    public void recordFilter(SCIMFilterType filterType, boolean supported) {
+        filterTypes.incrementAndGet(filterType.ordinal());
+        if (!supported) {
+            unsupportedFilters.incrementAndGet();
+        }
+    }
+
+    /**
+     * @param indexed true if a filter term was answered by an index, false if the users had to be scanned
+     */
+    public void recordLookup(boolean indexed) {
+        if (indexed) {
+            indexedLookups.incrementAndGet();
+        } else {
+            scannedLookups.incrementAndGet();
+        }
+    }
+
+    /**
+     * Record a load of the users file that was read, whether it was published or exceeded the rejected rows budget.
+     *
+     * @param startNanos the {@link System#nanoTime()} when the reload started
+     * @param parseNanos the time spent reading and converting the CSV records
+     * @param records    the number of CSV records read
+     * @param load       the finished load, with the records skipped and the counts of every file
+     */
+    public void recordReload(long startNanos, long parseNanos, long records, UserLoad load) {
+        long inactiveRows = load.getInactiveCount();
+        long rejectedRows = load.getRejectedCount();
+        reloadLatency.recordSince(startNanos);
+        parseLatency.record(TimeUnit.NANOSECONDS.toMicros(parseNanos));
+        long accepted = records - inactiveRows - rejectedRows;
+        rowsParsed.addAndGet(records);
+        rowsAccepted.addAndGet(accepted);
+        rowsInactive.addAndGet(inactiveRows);
+        rowsRejected.addAndGet(rejectedRows);
+        lastRowCounts = new RowCounts(records, inactiveRows, rejectedRows);
+        lastFileStats = load.getFileStats();
+    }
+
+    /**
+     * Record a load of the users file that failed.
+     */
+    public void recordReloadFailure() {
+        reloadFailures.incrementAndGet();
+    }
+
+    /**
+     * Record a load of the users file that was not published because too many records were rejected.
+     */
+    public void recordRejectedLoad() {
+        rejectedLoads.incrementAndGet();
+    }
+
+    /**
+     * Record a batch of provisioned users committed to the journal.
+     *
+     * @param changes    the number of changes of the batch
+     * @param startNanos the {@link System#nanoTime()} when the commit started
+     */
+    public void recordJournalCommit(int changes, long startNanos) {
+        journalCommitLatency.recordSince(startNanos);
+        journalChanges.addAndGet(changes);
+    }
+
+    /**
+     * Record a rewrite of the journal.
+     */
+    public void recordJournalCompaction() {
+        journalCompactions.incrementAndGet();
+    }
+
+    /**
+     * @return the current value of every metric, by name, in a stable order
+     */
+    public Map<String, Number> snapshot() {
+        Map<String, Number> metrics = new LinkedHashMap<String, Number>();
+        UserSnapshot users = userCache.getSnapshot();
+        metrics.put("users.count", users.size());
+        metrics.put("users.version", users.getVersion());
+        metrics.put("groups.count", users.getGroupCount());
+        metrics.put("users.cacheAgeMillis", users.getFingerprint() == null
+                ? -1 : System.currentTimeMillis() - users.getLoadedAtMillis());
+        metrics.put("cache.hits", userCache.getHitCount());
+        metrics.put("cache.misses", userCache.getMissCount());
+        metrics.put("cache.reloads", userCache.getReloadCount());
+        metrics.put("cache.reloadFailures", reloadFailures.get());
+        metrics.put("cache.rejectedLoads", rejectedLoads.get());
+        metrics.put("cache.sharedChecks", userCache.getSharedCheckCount());
+        putLatency(metrics, "reload", reloadLatency);
+        putLatency(metrics, "reload.parse", parseLatency);
+        RowCounts last = lastRowCounts;
+        metrics.put("reload.last.rowsParsed", last.parsed);
+        metrics.put("reload.last.rowsAccepted", last.parsed - last.inactive - last.rejected);
+        metrics.put("reload.last.rowsInactive", last.inactive);
+        metrics.put("reload.last.rowsRejected", last.rejected);
+        metrics.put("reload.last.usersAdded", userCache.getLastAddedCount());
+        metrics.put("reload.last.usersChanged", userCache.getLastChangedCount());
+        metrics.put("reload.last.usersRemoved", userCache.getLastRemovedCount());
+        List<UserLoad.FileStats> fileStats = lastFileStats;
+        metrics.put("reload.last.files", fileStats.isEmpty() ? 1 : fileStats.size());
+        for (UserLoad.FileStats file : fileStats) {
+            String prefix = "reload.last.file." + file.getFileName();
+            metrics.put(prefix + ".rowsParsed", file.getRecordCount());
+            metrics.put(prefix + ".rowsAccepted", file.getAcceptedCount());
+            metrics.put(prefix + ".rowsInactive", file.getInactiveCount());
+            metrics.put(prefix + ".rowsRejected", file.getRejectedCount());
+            metrics.put(prefix + ".millis", file.getElapsedMillis());
+        }
+        metrics.put("rows.parsed", rowsParsed.get());
+        metrics.put("rows.accepted", rowsAccepted.get());
+        metrics.put("rows.inactive", rowsInactive.get());
+        metrics.put("rows.rejected", rowsRejected.get());
+        putLatency(metrics, "journal.commit", journalCommitLatency);
+        metrics.put("journal.changes", journalChanges.get());
+        metrics.put("journal.compactions", journalCompactions.get());
+        metrics.put("journal.pendingUsers", userCache.getJournalSize());
+        if (admission != null) {
+            metrics.put("admission.maxConcurrent", admission.getMaxConcurrent());
+            metrics.put("admission.running", admission.getRunningCount());
+            metrics.put("admission.queued", admission.getQueuedCount());
+            metrics.put("admission.queued.peak", admission.getPeakQueuedCount());
+            metrics.put("admission.admitted", admission.getAdmittedCount());
+            metrics.put("admission.rejected.queueFull", admission.getQueueFullCount());
+            metrics.put("admission.rejected.timeout", admission.getTimeoutCount());
+            putLatency(metrics, "admission.wait", admission.getQueueLatency());
+        }
+        if (responseCache != null) {
+            metrics.put("responseCache.maxUsers", responseCache.getMaxUsers());
+            metrics.put("responseCache.users", responseCache.getUserCount());
+            metrics.put("responseCache.entries", responseCache.getEntryCount());
+            metrics.put("responseCache.hits", responseCache.getHitCount());
+            metrics.put("responseCache.misses", responseCache.getMissCount());
+            metrics.put("responseCache.evictions", responseCache.getEvictionCount());
+            metrics.put("responseCache.invalidations", responseCache.getInvalidationCount());
+        }
+        for (Operation operation : Operation.values()) {
+            String prefix = "operation." + operation.getMetricName();
+            putLatency(metrics, prefix, operationLatency[operation.ordinal()]);
+            metrics.put(prefix + ".errors", operationErrors.get(operation.ordinal()));
+        }
+        for (SCIMFilterType filterType : SCIMFilterType.values()) {
+            metrics.put("filter." + filterType.name().toLowerCase(), filterTypes.get(filterType.ordinal()));
+        }
+        metrics.put("filter.unsupported", unsupportedFilters.get());
+        metrics.put("filter.lookups.indexed", indexedLookups.get());
+        metrics.put("filter.lookups.scanned", scannedLookups.get());
+        return metrics;
+    }
+
+    private static void putLatency(Map<String, Number> metrics, String prefix, LatencyHistogram histogram) {
+        LatencyHistogram.Summary summary = histogram.summarize();
+        metrics.put(prefix + ".count", summary.getCount());
+        metrics.put(prefix + ".meanMicros", summary.getMeanMicros());
+        metrics.put(prefix + ".p50Micros", summary.getPercentileMicros(50));
+        metrics.put(prefix + ".p99Micros", summary.getPercentileMicros(99));
+        metrics.put(prefix + ".maxMicros", summary.getMaxMicros());
+    }
+
+    /**
+     * Register the metrics with the platform MBean server, replacing the MBean of a previous deployment. A failure is
+     * only logged, the connector works without it.
+     */
+    public void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+            registeredServer = server;
+        } catch (Exception e) {
+            LOGGER.warn("Cannot register the connector metrics MBean [" + OBJECT_NAME + "]", e);
+        }
+    }
+
+    /**
+     * Unregister the metrics MBean, if {@link #register()} registered it.
+     */
+    public void unregister() {
+        if (registeredServer == null) {
+            return;
+        }
+        try {
+            registeredServer.unregisterMBean(new ObjectName(OBJECT_NAME));
+        } catch (Exception e) {
+            LOGGER.warn("Cannot unregister the connector metrics MBean [" + OBJECT_NAME + "]", e);
+        }
+        registeredServer = null;
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Number value = snapshot().get(attribute);
+        if (value == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return value;
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        Map<String, Number> metrics = snapshot();
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            if (metrics.containsKey(attribute)) {
+                list.add(new Attribute(attribute, metrics.get(attribute)));
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("The connector metrics are read only");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) {
+        throw new UnsupportedOperationException("The connector metrics have no operations");
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+        for (Map.Entry<String, Number> metric : snapshot().entrySet()) {
+            attributes.add(new MBeanAttributeInfo(metric.getKey(), metric.getValue().getClass().getName(),
+                    metric.getKey(), true, false, false));
+        }
+        return new MBeanInfo(getClass().getName(), "Metrics of the SCIM CSV connector",
+                attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, new MBeanOperationInfo[0], null);
+    }
+
+    private static final class RowCounts {
+        private final long parsed;
+        private final long inactive;
+        private final long rejected;
+
+        RowCounts(long parsed, long inactive, long rejected) {
+            this.parsed = parsed;
+            this.inactive = inactive;
+            this.rejected = rejected;
+        }
+    }
+}
@@ -0,0 +1,18 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Okta, Inc. and/or its affiliates. All rights reserved.
+ ******************************************************************************/
+package com.okta.scim.util.file;
+
+/**
+ * Thrown by {@link UserCache#write} when Okta creates a user whose id is already served, the counterpart for users of
+ * the SDK's <code>DuplicateGroupException</code>.
+ */
+public class DuplicateUserException extends RuntimeException {
+
+    /**
+     * @param id the id of the user that already exists
+     */
+    public DuplicateUserException(String id) {
+        super("The user [" + id + "] already exists");
+    }
+}
@@ -0,0 +1,180 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Okta, Inc. and/or its affiliates. All rights reserved.
+ ******************************************************************************/
+package com.okta.scim.util.file;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Identifies a version of a file by its path, size, modification time and a digest of its content.
+ * <p>
+ * Size and modification time are cheap to read and are checked first. The content digest is only used to tell
+ * whether a file whose metadata changed (re-copied, touched, re-uploaded) actually has different content.
+ * <p>
+ * The files of a drop directory that are loaded together have a combined fingerprint, which keeps the fingerprint of
+ * every file.
+ */
+public final class FileFingerprint {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final String path;
+    private final long size;
+    private final long lastModified;
+    private final String contentHash;
+    //The fingerprints of the files of a combined fingerprint, null for a single file
+    private final List<FileFingerprint> files;
+
+    private FileFingerprint(String path, long size, long lastModified, String contentHash,
+                            List<FileFingerprint> files) {
+        this.path = path;
+        this.size = size;
+        this.lastModified = lastModified;
+        this.contentHash = contentHash;
+        this.files = files;
+    }
+
+    /**
+     * Compute the fingerprint of a file. This reads the whole file once.
+     *
+     * @param file the file to fingerprint
+     * @return the fingerprint
+     * @throws IOException if the file cannot be read
+     */
+    public static FileFingerprint of(File file) throws IOException {
+        long size = file.length();
+        long lastModified = file.lastModified();
+        MessageDigest digest = md5();
+        InputStream input = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int length;
+            while ((length = input.read(buffer)) > 0) {
+                digest.update(buffer, 0, length);
+            }
+        } finally {
+            input.close();
+        }
+        return new FileFingerprint(file.getAbsolutePath(), size, lastModified, toHex(digest.digest()), null);
+    }
+
+    /**
+     * Combine the fingerprints of the files of a directory that are loaded together. The combined content hash covers
+     * the name and content of every file, in the given order.
+     *
+     * @param directory the directory of the files
+     * @param files     the fingerprints of the files
+     * @return the combined fingerprint, whose size is the total size and last modification time the newest one
+     */
+    public static FileFingerprint combine(File directory, List<FileFingerprint> files) {
+        MessageDigest digest = md5();
+        Charset utf8 = Charset.forName("UTF-8");
+        long size = 0;
+        long lastModified = 0;
+        for (FileFingerprint file : files) {
+            size += file.size;
+            lastModified = Math.max(lastModified, file.lastModified);
+            digest.update((new File(file.path).getName() + "\n" + file.contentHash + "\n").getBytes(utf8));
+        }
+        return new FileFingerprint(directory.getAbsolutePath(), size, lastModified, toHex(digest.digest()),
+                Collections.unmodifiableList(new ArrayList<FileFingerprint>(files)));
+    }
+
+    /**
+     * Recreate a fingerprint that was computed earlier, e.g. one stored in a {@link UserSnapshotFile}.
+     */
+    static FileFingerprint restore(String path, long size, long lastModified, String contentHash) {
+        return new FileFingerprint(path, size, lastModified, contentHash, null);
+    }
+
+    /**
+     * @param file the file to compare with
+     * @return true if it is the same file and it still has the size and modification time this fingerprint was taken with
+     */
+    public boolean hasSameMetadata(File file) {
+        return file.getAbsolutePath().equals(path) && file.length() == size && file.lastModified() == lastModified;
+    }
+
+    /**
+     * @param files the files that would be loaded now, in load order
+     * @return true if they are the same files as this fingerprint was taken of, and all of them still have the same
+     * size and modification time. Always false for a combined fingerprint read back from a {@link UserSnapshotFile},
+     * which only keeps the combined values.
+     */
+    public boolean hasSameMetadata(List<File> files) {
+        if (this.files == null) {
+            return files.size() == 1 && hasSameMetadata(files.get(0));
+        }
+        if (files.size() != this.files.size()) {
+            return false;
+        }
+        for (int i = 0; i < files.size(); i++) {
+            if (!this.files.get(i).hasSameMetadata(files.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param other another fingerprint
+     * @return true if both fingerprints describe the same content, even if it is in another file
+     */
+    public boolean hasSameContent(FileFingerprint other) {
+        return other != null && size == other.size && contentHash.equals(other.contentHash);
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    /**
+     * @return the fingerprints of the files of a combined fingerprint, empty for the fingerprint of one file or a
+     * restored one
+     */
+    public List<FileFingerprint> getFiles() {
+        return files == null ? Collections.<FileFingerprint>emptyList() : files;
+    }
+
+    @Override
+    public String toString() {
+        return "[path=" + path + (files == null ? "" : ", files=" + files.size()) + ", size=" + size
+                + ", lastModified=" + lastModified + ", contentHash=" + contentHash + "]";
+    }
+
+    private static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is not available", e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,159 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Okta, Inc. and/or its affiliates. All rights reserved.
+ ******************************************************************************/
+package com.okta.scim.util.file;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The groups read from the groups CSV file ('groupsFilePath').
+ * <p>
+ * The file has a header and one row per group, or several rows for a group whose members are spread over them: the
+ * group id, its display name and the ids of members, separated by 'groupsMembershipSeparator'. A group is only
+ * resolved against the users when a {@link UserGroups} is built, so the file does not need to be read again when
+ * the users change.
+ */
+final class GroupsFile {
+    private static final Logger LOGGER = LoggerFactory.getLogger(GroupsFile.class);
+
+    private final FileFingerprint fingerprint;
+    //Group id to display name, in file order
+    private final Map<String, String> displayNames;
+    //The group id and the user id of every membership, in file order
+    private final String[] memberGroupIds;
+    private final String[] memberUserIds;
+    //The group ids of every member, built the first time they are needed
+    private volatile Map<String, List<String>> groupIdsByUserId;
+
+    private GroupsFile(FileFingerprint fingerprint, Map<String, String> displayNames, List<String> memberGroupIds,
+                       List<String> memberUserIds) {
+        this.fingerprint = fingerprint;
+        this.displayNames = displayNames;
+        this.memberGroupIds = memberGroupIds.toArray(new String[memberGroupIds.size()]);
+        this.memberUserIds = memberUserIds.toArray(new String[memberUserIds.size()]);
+    }
+
+    /**
+     * Read a groups file.
+     *
+     * @param file   the file
+     * @param config the configuration, for the column names, the member separator and the encoding
+     * @return the groups of the file
+     * @throws IOException if the file cannot be read, or a configured column is not in its header
+     */
+    static GroupsFile read(File file, ConnectorConfig config) throws IOException {
+        FileFingerprint fingerprint = FileFingerprint.of(file);
+        String idColumn = config.getProperty("groupsFileIdColumn", "id");
+        String nameColumn = config.getProperty("groupsFileNameColumn", "displayName");
+        String membersColumn = config.getProperty("groupsFileMembersColumn", "members");
+        String separator = UserGroups.separator(config);
+
+        Map<String, String> displayNames = new LinkedHashMap<String, String>();
+        List<String> memberGroupIds = new ArrayList<String>();
+        List<String> memberUserIds = new ArrayList<String>();
+        CSVEncoding encoding = CSVEncoding.detect(file, config.getProperty("csvCharset"));
+        FileInputStream input = new FileInputStream(file);
+        try {
+            long skipped = 0;
+            while (skipped < encoding.getBomLength()) {
+                skipped += input.skip(encoding.getBomLength() - skipped);
+            }
+            CSVParser parser = new CSVParser(new BufferedReader(new InputStreamReader(input, encoding.getCharset())),
+                    CSVFormat.RFC4180.withFirstRecordAsHeader());
+            Map<String, Integer> header = parser.getHeaderMap();
+            for (String column : new String[]{idColumn, nameColumn, membersColumn}) {
+                if (!header.containsKey(column)) {
+                    throw new IOException("The groups file [" + file + "] has no column [" + column + "]");
+                }
+            }
+            int idIndex = header.get(idColumn);
+            int nameIndex = header.get(nameColumn);
+            int membersIndex = header.get(membersColumn);
+            for (CSVRecord record : parser) {
+                if (record.size() <= Math.max(idIndex, Math.max(nameIndex, membersIndex))) {
+                    LOGGER.warn("Skipping the short record " + record.getRecordNumber() + " of the groups file ["
+                            + file + "]");
+                    continue;
+                }
+                String groupId = record.get(idIndex).trim();
+                if (groupId.isEmpty()) {
+                    continue;
+                }
+                String displayName = record.get(nameIndex).trim();
+                if (!displayNames.containsKey(groupId) || !displayName.isEmpty()) {
+                    displayNames.put(groupId, displayName.isEmpty() ? groupId : displayName);
+                }
+                for (String userId : UserGroups.split(record.get(membersIndex), separator)) {
+                    memberGroupIds.add(groupId);
+                    memberUserIds.add(userId);
+                }
+            }
+        } finally {
+            input.close();
+        }
+        LOGGER.info("Read " + displayNames.size() + " groups with " + memberUserIds.size() + " members from "
+                + fingerprint);
+        return new GroupsFile(fingerprint, displayNames, memberGroupIds, memberUserIds);
+    }
+
+    FileFingerprint getFingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * @return group id to display name, in file order
+     */
+    Map<String, String> getDisplayNames() {
+        return Collections.unmodifiableMap(displayNames);
+    }
+
+    int getMembershipCount() {
+        return memberUserIds.length;
+    }
+
+    String getMemberGroupId(int membership) {
+        return memberGroupIds[membership];
+    }
+
+    String getMemberUserId(int membership) {
+        return memberUserIds[membership];
+    }
+
+    /**
+     * @param userId the id of a user
+     * @return the ids of the groups the file lists the user in, in file order
+     */
+    List<String> getGroupIdsOf(String userId) {
+        Map<String, List<String>> byUserId = groupIdsByUserId;
+        if (byUserId == null) {
+            byUserId = new HashMap<String, List<String>>();
+            for (int i = 0; i < memberUserIds.length; i++) {
+                List<String> groupIds = byUserId.get(memberUserIds[i]);
+                if (groupIds == null) {
+                    groupIds = new ArrayList<String>(1);
+                    byUserId.put(memberUserIds[i], groupIds);
+                }
+                groupIds.add(memberGroupIds[i]);
+            }
+            groupIdsByUserId = byUserId;
+        }
+        List<String> groupIds = byUserId.get(userId);
+        return groupIds == null ? Collections.<String>emptyList() : Collections.unmodifiableList(groupIds);
+    }
+}
@@ -0,0 +1,335 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Okta, Inc. and/or its affiliates. All rights reserved.
+ ******************************************************************************/
+package com.okta.scim.util.file;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Reads RFC4180 records from a byte range of a memory mapped CSV file.
+ * <p>
+ * Records are tokenized on the bytes of the mapping: only the start and end offsets of every field are recorded, and
+ * a field is decoded into a String the first time {@link #get(int)} asks for it. Columns that are not mapped are
+ * therefore never copied or decoded. The reader accepts exactly what <code>CSVFormat.RFC4180</code> accepts and
+ * returns the same values, so it can only be used for character sets in which the quote, the comma and the line
+ * breaks are single ASCII bytes (see {@link CSVEncoding#isAsciiCompatible()}).
+ * <p>
+ * The file is mapped in windows of up to 256MB, so multi-GB files can be read on a 32 bit JVM as well. A record that
+ * runs past the end of a window is tokenized again from a new window starting at the record.
+ * <p>
+ * The fields of the current record are only valid until {@link #next()} is called again. A reader is not thread safe.
+ */
+final class MappedCSVReader extends CSVFields {
+    private static final int WINDOW_SIZE = 256 * 1024 * 1024;
+
+    private static final int RECORD = 0;
+    private static final int END = 1;
+    private static final int MORE = 2;
+
+    private final FileChannel channel;
+    private final long end;
+    private final Charset charset;
+    private final boolean utf8;
+
+    private MappedByteBuffer window;
+    private long windowStart;
+    private int windowLimit;
+    private boolean lastWindow;
+
+    //The offset of the next record
+    private long position;
+    private long recordNumber;
+    private long recordStart;
+
+    //Field offsets relative to the window. Quoted fields exclude the quotes.
+    private int fieldCount;
+    private int[] fieldStarts = new int[16];
+    private int[] fieldEnds = new int[16];
+    private boolean[] fieldEscaped = new boolean[16];
+    private String[] fieldValues = new String[16];
+    private byte[] scratch = new byte[256];
+
+    /**
+     * @param channel the file
+     * @param start   the offset of the first record, after any byte order mark
+     * @param end     the offset after the last record, usually the file size
+     * @param charset the encoding of the file
+     */
+    MappedCSVReader(FileChannel channel, long start, long end, Charset charset) {
+        this.channel = channel;
+        this.position = start;
+        this.end = end;
+        this.charset = charset;
+        this.utf8 = "UTF-8".equals(charset.name());
+    }
+
+    /**
+     * Read the first record as a header, like <code>CSVFormat.withFirstRecordAsHeader()</code> does.
+     *
+     * @return the column names mapped to their index, empty if there is no record
+     * @throws IllegalArgumentException if a column name appears twice
+     * @throws IOException              if the file cannot be read or the header is not valid CSV
+     */
+    Map<String, Integer> readHeader() throws IOException {
+        Map<String, Integer> headerMap = new LinkedHashMap<String, Integer>();
+        if (!next()) {
+            return headerMap;
+        }
+        String[] header = new String[fieldCount];
+        for (int i = 0; i < fieldCount; i++) {
+            header[i] = get(i);
+        }
+        for (int i = 0; i < header.length; i++) {
+            if (headerMap.containsKey(header[i])) {
+                throw new IllegalArgumentException("The header contains a duplicate name: \"" + header[i] + "\" in "
+                        + Arrays.toString(header));
+            }
+            headerMap.put(header[i], i);
+        }
+        //The header is not counted as a record
+        recordNumber = 0;
+        return headerMap;
+    }
+
+    /**
+     * Move to the next record.
+     *
+     * @return false if there are no more records
+     * @throws IOException if the file cannot be read or the record is not valid CSV
+     */
+    boolean next() throws IOException {
+        if (window != null || position < end) {
+            while (true) {
+                if (window == null || position >= windowStart + windowLimit && !lastWindow) {
+                    map(position, WINDOW_SIZE);
+                }
+                int result = tokenize();
+                if (result == RECORD) {
+                    recordNumber++;
+                    return true;
+                }
+                if (result == END) {
+                    break;
+                }
+                //The record runs past the end of the window. Start a window at the record, larger if it already did.
+                if (position == windowStart && windowLimit == Integer.MAX_VALUE) {
+                    throw new IOException("(record " + (recordNumber + 1) + ", offset " + position
+                            + ") The record is longer than 2GB");
+                }
+                map(position, position == windowStart ? windowLimit * 2L : WINDOW_SIZE);
+            }
+        }
+        fieldCount = 0;
+        return false;
+    }
+
+    /**
+     * @return the number of the current record, starting at 1 after the header
+     */
+    long getRecordNumber() {
+        return recordNumber;
+    }
+
+    @Override
+    int size() {
+        return fieldCount;
+    }
+
+    @Override
+    String get(int index) {
+        if (index >= fieldCount) {
+            throw new ArrayIndexOutOfBoundsException(index);
+        }
+        String value = fieldValues[index];
+        if (value == null) {
+            value = decode(fieldStarts[index], fieldEnds[index], fieldEscaped[index]);
+            fieldValues[index] = value;
+        }
+        return value;
+    }
+
+    private void map(long start, long size) throws IOException {
+        long length = Math.min(Math.min(size, Integer.MAX_VALUE), end - start);
+        window = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+        windowStart = start;
+        windowLimit = (int) length;
+        lastWindow = start + length >= end;
+    }
+
+    /**
+     * Tokenize the record at the current position.
+     *
+     * @return RECORD and advance the position, END if there is no record left, or MORE if the record does not end
+     * within the window
+     */
+    private int tokenize() throws IOException {
+        MappedByteBuffer bytes = window;
+        int limit = windowLimit;
+        int i = (int) (position - windowStart);
+        Arrays.fill(fieldValues, 0, fieldCount, null);
+        fieldCount = 0;
+        recordStart = position;
+        if (i >= limit) {
+            return lastWindow ? END : MORE;
+        }
+        while (true) {
+            //At the start of a field
+            if (i >= limit) {
+                if (!lastWindow) {
+                    return MORE;
+                }
+                //A delimiter followed by the end of the file ends the record with an empty field
+                addField(i, i, false);
+                break;
+            }
+            byte b = bytes.get(i);
+            if (b == '"') {
+                int start = ++i;
+                boolean escaped = false;
+                while (true) {
+                    if (i >= limit) {
+                        if (!lastWindow) {
+                            return MORE;
+                        }
+                        throw new IOException("(record " + (recordNumber + 1) + ", offset " + recordStart
+                                + ") EOF reached before encapsulated token finished");
+                    }
+                    if (bytes.get(i) == '"') {
+                        if (i + 1 >= limit && !lastWindow) {
+                            return MORE;
+                        }
+                        if (i + 1 < limit && bytes.get(i + 1) == '"') {
+                            escaped = true;
+                            i += 2;
+                            continue;
+                        }
+                        break;
+                    }
+                    i++;
+                }
+                addField(start, i, escaped);
+                i++;
+                //Only whitespace may follow the closing quote
+                while (true) {
+                    if (i >= limit) {
+                        if (!lastWindow) {
+                            return MORE;
+                        }
+                        position = windowStart + i;
+                        return RECORD;
+                    }
+                    b = bytes.get(i);
+                    if (b == ',' || b == '\n' || b == '\r') {
+                        break;
+                    }
+                    int length = whitespaceLength(i, limit);
+                    if (length < 0) {
+                        return MORE;
+                    }
+                    if (length == 0) {
+                        throw new IOException("(record " + (recordNumber + 1) + ", offset " + (windowStart + i)
+                                + ") invalid char between encapsulated token and delimiter");
+                    }
+                    i += length;
+                }
+            } else {
+                int start = i;
+                while (b != ',' && b != '\n' && b != '\r') {
+                    if (++i >= limit) {
+                        break;
+                    }
+                    b = bytes.get(i);
+                }
+                if (i >= limit) {
+                    if (!lastWindow) {
+                        return MORE;
+                    }
+                    addField(start, i, false);
+                    break;
+                }
+                addField(start, i, false);
+            }
+            //At a delimiter or a line break
+            if (b == ',') {
+                i++;
+                continue;
+            }
+            if (b == '\r') {
+                if (i + 1 >= limit && !lastWindow) {
+                    return MORE;
+                }
+                if (i + 1 < limit && bytes.get(i + 1) == '\n') {
+                    i++;
+                }
+            }
+            i++;
+            break;
+        }
+        position = windowStart + i;
+        return RECORD;
+    }
+
+    /**
+     * @return the number of bytes of the whitespace character at <code>i</code>, 0 if it is not whitespace, or -1 if
+     * the character does not end within the window
+     */
+    private int whitespaceLength(int i, int limit) {
+        int b = window.get(i) & 0xFF;
+        if (b < 0x80) {
+            return Character.isWhitespace((char) b) ? 1 : 0;
+        }
+        int length = 1;
+        if (utf8) {
+            length = b >= 0xF0 ? 4 : b >= 0xE0 ? 3 : b >= 0xC0 ? 2 : 1;
+        }
+        if (i + length > limit) {
+            return lastWindow ? 0 : -1;
+        }
+        String decoded = decode(i, i + length, false);
+        return decoded.length() == 1 && Character.isWhitespace(decoded.charAt(0)) ? length : 0;
+    }
+
+    private void addField(int start, int end, boolean escaped) {
+        if (fieldCount == fieldStarts.length) {
+            int capacity = fieldCount * 2;
+            fieldStarts = Arrays.copyOf(fieldStarts, capacity);
+            fieldEnds = Arrays.copyOf(fieldEnds, capacity);
+            fieldEscaped = Arrays.copyOf(fieldEscaped, capacity);
+            fieldValues = Arrays.copyOf(fieldValues, capacity);
+        }
+        fieldStarts[fieldCount] = start;
+        fieldEnds[fieldCount] = end;
+        fieldEscaped[fieldCount] = escaped;
+        fieldCount++;
+    }
+
+    private String decode(int start, int end, boolean escaped) {
+        int length = end - start;
+        if (length == 0) {
+            return "";
+        }
+        if (scratch.length < length) {
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+        }
+        window.position(start);
+        window.get(scratch, 0, length);
+        if (escaped) {
+            //Collapse every pair of quotes into one
+            int to = 0;
+            for (int from = 0; from < length; from++) {
+                scratch[to++] = scratch[from];
+                if (scratch[from] == '"') {
+                    from++;
+                }
+            }
+            length = to;
+        }
+        return new String(scratch, 0, length, charset);
+    }
+}
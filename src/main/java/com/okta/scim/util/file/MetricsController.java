@@ -0,0 +1,54 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Okta, Inc. and/or its affiliates. All rights reserved.
+ ******************************************************************************/
+package com.okta.scim.util.file;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Map;
+
+/**
+ * Serves the {@link ConnectorMetrics} of the connector on GET /metrics, one <code>name value</code> line per metric,
+ * or as a JSON object with <code>?format=json</code>.
+ */
+@Controller
+public class MetricsController {
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private SCIMServiceImpl service;
+
+    public void setService(SCIMServiceImpl service) {
+        this.service = service;
+    }
+
+    @RequestMapping(value = "/metrics", method = RequestMethod.GET)
+    public void getMetrics(@RequestParam(value = "format", defaultValue = "text") String format,
+                           HttpServletResponse response) throws IOException {
+        ConnectorMetrics metrics = service.getMetrics();
+        if (metrics == null) {
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "The connector is not started");
+            return;
+        }
+        Map<String, Number> values = metrics.snapshot();
+        response.setHeader("Cache-Control", "no-cache");
+        if ("json".equalsIgnoreCase(format)) {
+            response.setContentType("application/json;charset=UTF-8");
+            objectMapper.writeValue(response.getWriter(), values);
+            return;
+        }
+        response.setContentType("text/plain;charset=UTF-8");
+        PrintWriter writer = response.getWriter();
+        for (Map.Entry<String, Number> value : values.entrySet()) {
+            writer.print(value.getKey());
+            writer.print(' ');
+            writer.println(value.getValue());
+        }
+        writer.flush();
+    }
+}
@@ -0,0 +1,172 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Okta, Inc. and/or its affiliates. All rights reserved.
+ ******************************************************************************/
+package com.okta.scim.util.file;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads the users of several CSV files, e.g. the shards of an export dropped into one directory, with one file per
+ * worker thread.
+ * <p>
+ * Every file has its own header, so the columns may be in a different order in each of them, and its own encoding
+ * (see 'csvCharset'). The rows of the files are merged into the load in the order of the given list, so for an id
+ * found in several files the row of the last file wins, exactly as if the files had been concatenated.
+ */
+final class MultiFileCSVReader {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MultiFileCSVReader.class);
+
+    private static final int READER_BUFFER_SIZE = 64 * 1024;
+
+    private MultiFileCSVReader() {
+    }
+
+    /**
+     * Read the users of the files into a load using several threads.
+     *
+     * @param load        the load the active users are added to, in file order
+     * @param csvFiles    the CSV files, each with a header record
+     * @param config      the configuration to read the files with
+     * @param parallelism the maximum number of files to read at once
+     * @return the number of records read, not counting the headers
+     * @throws ExecutionException if a file cannot be read or parsed
+     * @throws InterruptedException if the calling thread is interrupted
+     */
+    static long readUsers(UserLoad load, List<File> csvFiles, ConnectorConfig config, int parallelism)
+            throws ExecutionException, InterruptedException {
+        boolean mapped = Boolean.parseBoolean(config.getProperty("csvMappedReader"));
+        List<Callable<FileResult>> tasks = new ArrayList<Callable<FileResult>>();
+        for (File csvFile : csvFiles) {
+            tasks.add(new FileTask(load, csvFile, config, mapped));
+        }
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, Math.min(parallelism, csvFiles.size())));
+        try {
+            long recordCount = 0;
+            for (Future<FileResult> future : pool.invokeAll(tasks)) {
+                FileResult result = future.get();
+                recordCount += result.recordCount;
+                for (UserRowConverter.Row row : result.rows) {
+                    load.add(row);
+                }
+                for (UserLoad.Rejection rejection : result.rejections) {
+                    load.reject(rejection);
+                }
+                load.countInactive(result.inactiveCount);
+                UserLoad.FileStats stats = new UserLoad.FileStats(result.file.getName(), result.recordCount,
+                        result.inactiveCount, result.rejections.size(), result.elapsedMillis);
+                load.addFileStats(stats);
+                LOGGER.info("Read {}", stats);
+            }
+            return recordCount;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static final class FileTask implements Callable<FileResult> {
+        private final UserLoad load;
+        private final File csvFile;
+        private final ConnectorConfig config;
+        private final boolean mapped;
+
+        FileTask(UserLoad load, File csvFile, ConnectorConfig config, boolean mapped) {
+            this.load = load;
+            this.csvFile = csvFile;
+            this.config = config;
+            this.mapped = mapped;
+        }
+
+        @Override
+        public FileResult call() throws IOException {
+            long startNanos = System.nanoTime();
+            FileResult result = new FileResult(csvFile);
+            CSVEncoding encoding = CSVEncoding.detect(csvFile, config.getProperty("csvCharset"));
+            FileInputStream input = new FileInputStream(csvFile);
+            try {
+                if (mapped && encoding.isAsciiCompatible()) {
+                    // Tokenize the memory mapped file and only decode the mapped columns
+                    FileChannel channel = input.getChannel();
+                    MappedCSVReader reader = new MappedCSVReader(channel, encoding.getBomLength(), channel.size(),
+                            encoding.getCharset());
+                    UserRowConverter converter = load.converter(compile(reader.readHeader()), csvFile.getName());
+                    while (reader.next()) {
+                        result.recordCount++;
+                        result.add(converter, reader);
+                    }
+                } else {
+                    long skipped = 0;
+                    while (skipped < encoding.getBomLength()) {
+                        skipped += input.skip(encoding.getBomLength() - skipped);
+                    }
+                    CSVParser parser = new CSVParser(new BufferedReader(
+                            new InputStreamReader(input, encoding.getCharset()), READER_BUFFER_SIZE),
+                            CSVFormat.RFC4180.withFirstRecordAsHeader());
+                    try {
+                        UserRowConverter converter = load.converter(compile(parser.getHeaderMap()),
+                                csvFile.getName());
+                        for (CSVRecord record : parser) {
+                            result.recordCount++;
+                            result.add(converter, CSVFields.of(record));
+                        }
+                    } finally {
+                        parser.close();
+                    }
+                }
+            } catch (RuntimeException e) {
+                throw new IOException("Cannot read the users of [" + csvFile + "]", e);
+            } finally {
+                input.close();
+            }
+            result.elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+            return result;
+        }
+
+        private CSVMappingPlan compile(Map<String, Integer> headerMap) {
+            return CSVMappingPlan.compile(config.getColumnMapping(), headerMap, config.getUserInactiveValue(),
+                    config.getCustomSchemaName());
+        }
+    }
+
+    private static final class FileResult {
+        private final File file;
+        private final List<UserRowConverter.Row> rows = new ArrayList<UserRowConverter.Row>();
+        private final List<UserLoad.Rejection> rejections = new ArrayList<UserLoad.Rejection>();
+        private long recordCount;
+        private long inactiveCount;
+        private long elapsedMillis;
+
+        FileResult(File file) {
+            this.file = file;
+        }
+
+        void add(UserRowConverter converter, CSVFields record) {
+            UserRowConverter.Row row = converter.convert(record, recordCount);
+            if (row == null) {
+                inactiveCount++;
+            } else if (row.isRejected()) {
+                rejections.add(row.getRejection());
+            } else {
+                rows.add(row);
+            }
+        }
+    }
+}
@@ -0,0 +1,379 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Okta, Inc. and/or its affiliates. All rights reserved.
+ ******************************************************************************/
+package com.okta.scim.util.file;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Reads a users CSV file by parsing record aligned byte ranges of the file on a fork-join pool.
+ * <p>
+ * The chunk boundaries are found without parsing the file. As in the RFC4180 parser, a quote only starts a quoted
+ * field at the start of a field, and is a plain character anywhere else in an unquoted field (e.g. O"Brien). Every
+ * worker runs the states of the parser (at the start of a field, in an unquoted field, in a quoted field, after a
+ * quote in a quoted field) over an equal share of the file, from each of the states it may start in. Chaining the
+ * shares from the header tells the state each share starts in, and each boundary is then moved forward to the first
+ * line break outside a quoted field. Quoted line breaks therefore never split a record.
+ * <p>
+ * The chunks are parsed and validated in parallel, and their rows and rejected records are merged into the load in
+ * file order as soon as the chunks before them are merged, so the result, including which row wins for a duplicate
+ * id, is the same as reading the file sequentially. Only one chunk per thread is parsed ahead of the merge, so the
+ * rows of the whole file are never held twice. The chunks are either parsed by commons-csv or tokenized by a
+ * {@link MappedCSVReader} each.
+ */
+public final class ParallelCSVReader {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ParallelCSVReader.class);
+
+    private static final int SCAN_BUFFER_SIZE = 256 * 1024;
+    private static final int READER_BUFFER_SIZE = 64 * 1024;
+    private static final int CHUNKS_PER_THREAD = 4;
+    //Large files are cut into more chunks, so that the chunks parsed ahead of the merge stay small
+    private static final long MAX_CHUNK_SIZE = 16 * 1024 * 1024;
+
+    //The states of the parser at a byte of the file
+    private static final int FIELD_START = 0;
+    private static final int UNQUOTED = 1;
+    private static final int QUOTED = 2;
+    private static final int QUOTE_IN_QUOTED = 3;
+    private static final int STATES = 4;
+    //The state after a byte, at [state * 256 + byte]
+    private static final int[] TRANSITIONS = transitions();
+
+    private ParallelCSVReader() {
+    }
+
+    /**
+     * Read the users from a CSV file into a load using several threads.
+     *
+     * @param load              the load the active users are added to
+     * @param csvFile           the CSV file, with a header record
+     * @param encoding          the encoding of the file. It must be ASCII compatible.
+     * @param mapped            true to tokenize the chunks with {@link MappedCSVReader}
+     * @param columnMapping     the column mapping
+     * @param userInactiveValue the value of the 'active' column which marks a user as inactive
+     * @param customSchemaName  the schema the custom attributes are stored under
+     * @param parallelism       the number of threads to use
+     * @return the number of records read, not counting the header
+     * @throws IOException if the file cannot be read
+     * @throws ExecutionException if a chunk cannot be parsed
+     * @throws InterruptedException if the calling thread is interrupted
+     */
+    static long readUsers(UserLoad load, File csvFile, CSVEncoding encoding, boolean mapped,
+                                 CSVColumnMapping columnMapping, String userInactiveValue, String customSchemaName,
+                                 int parallelism) throws IOException, ExecutionException, InterruptedException {
+        FileInputStream input = new FileInputStream(csvFile);
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            FileChannel channel = input.getChannel();
+            int chunks = (int) Math.max(parallelism * CHUNKS_PER_THREAD, channel.size() / MAX_CHUNK_SIZE);
+            long[] boundaries = findRecordBoundaries(channel, encoding.getBomLength(), pool, chunks);
+            if (boundaries.length == 0) {
+                return 0;
+            }
+
+            Charset charset = encoding.getCharset();
+            Map<String, Integer> headerMap;
+            if (mapped) {
+                headerMap = new MappedCSVReader(channel, encoding.getBomLength(), boundaries[0], charset).readHeader();
+            } else {
+                CSVParser headerParser = new CSVParser(reader(channel, encoding.getBomLength(), boundaries[0], charset),
+                        CSVFormat.RFC4180.withFirstRecordAsHeader());
+                try {
+                    headerMap = headerParser.getHeaderMap();
+                } finally {
+                    headerParser.close();
+                }
+            }
+            CSVMappingPlan mappingPlan = CSVMappingPlan.compile(columnMapping, headerMap, userInactiveValue,
+                    customSchemaName);
+
+            UserRowConverter converter = load.converter(mappingPlan, csvFile.getName());
+            List<Callable<ChunkResult>> tasks = new ArrayList<Callable<ChunkResult>>();
+            for (int i = 0; i + 1 < boundaries.length; i++) {
+                tasks.add(new ChunkTask(channel, boundaries[i], boundaries[i + 1], charset, mapped, converter));
+            }
+            LOGGER.debug("Parsing [{}] in {} chunks on {} threads", csvFile.getName(), tasks.size(), parallelism);
+
+            //Keep one chunk per thread parsing ahead of the merge, and drop every chunk once it is merged
+            long recordCount = 0;
+            Deque<Future<ChunkResult>> parsing = new ArrayDeque<Future<ChunkResult>>();
+            int next = 0;
+            while (next < tasks.size() || !parsing.isEmpty()) {
+                while (next < tasks.size() && parsing.size() < parallelism) {
+                    parsing.add(pool.submit(tasks.get(next)));
+                    tasks.set(next++, null);
+                }
+                ChunkResult result = parsing.poll().get();
+                for (UserRowConverter.Row row : result.rows) {
+                    load.add(row);
+                }
+                //The records were numbered within their chunk
+                for (UserLoad.Rejection rejection : result.rejections) {
+                    load.reject(rejection.withRecordOffset(recordCount));
+                }
+                load.countInactive(result.inactiveCount);
+                recordCount += result.recordCount;
+            }
+            return recordCount;
+        } finally {
+            pool.shutdown();
+            input.close();
+        }
+    }
+
+    private static int[] transitions() {
+        int[] transitions = new int[STATES * 256];
+        for (int b = 0; b < 256; b++) {
+            boolean separator = b == ',' || b == '\n' || b == '\r';
+            transitions[FIELD_START * 256 + b] = b == '"' ? QUOTED : separator ? FIELD_START : UNQUOTED;
+            transitions[UNQUOTED * 256 + b] = separator ? FIELD_START : UNQUOTED;
+            transitions[QUOTED * 256 + b] = b == '"' ? QUOTE_IN_QUOTED : QUOTED;
+            //Two quotes are an escaped quote. The parsers reject anything but whitespace after the closing quote.
+            transitions[QUOTE_IN_QUOTED * 256 + b] = b == '"' ? QUOTED : separator ? FIELD_START : UNQUOTED;
+        }
+        return transitions;
+    }
+
+    /**
+     * Find the offsets at which records start.
+     *
+     * @param bomLength the length of the byte order mark, which the header starts after
+     * @return the offset following the header record, then the start of every chunk, then the file size.
+     * Empty if the file has no complete header record.
+     */
+    static long[] findRecordBoundaries(FileChannel channel, int bomLength, ForkJoinPool pool, int chunks)
+            throws IOException, ExecutionException, InterruptedException {
+        long size = channel.size();
+        long headerEnd = nextRecordStart(channel, bomLength, FIELD_START, size);
+        if (headerEnd < 0) {
+            return new long[0];
+        }
+        int shares = (int) Math.max(1, Math.min(chunks, (size - headerEnd) / READER_BUFFER_SIZE));
+        long shareSize = (size - headerEnd) / shares;
+
+        //Run every share from each state in parallel, to know the state each share starts in
+        List<Callable<int[]>> scans = new ArrayList<Callable<int[]>>();
+        for (int i = 0; i < shares; i++) {
+            long start = headerEnd + i * shareSize;
+            long end = i == shares - 1 ? size : start + shareSize;
+            scans.add(new StateScanTask(channel, start, end));
+        }
+        List<Future<int[]>> endStates = pool.invokeAll(scans);
+
+        List<Long> boundaries = new ArrayList<Long>();
+        boundaries.add(headerEnd);
+        int state = FIELD_START;
+        for (int i = 1; i < shares; i++) {
+            state = endStates.get(i - 1).get()[state];
+            long start = nextRecordStart(channel, headerEnd + i * shareSize, state, size);
+            if (start > boundaries.get(boundaries.size() - 1) && start < size) {
+                boundaries.add(start);
+            }
+        }
+        if (boundaries.get(boundaries.size() - 1) < size) {
+            boundaries.add(size);
+        }
+
+        long[] result = new long[boundaries.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = boundaries.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * @param state the state of the parser at <code>from</code>
+     * @return the offset following the first line break outside a quoted field at or after <code>from</code>, the
+     * file size if there is none, or -1 if there is none and nothing to read.
+     */
+    private static long nextRecordStart(FileChannel channel, long from, int state, long size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+        long position = from;
+        while (position < size) {
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            if (read <= 0) {
+                break;
+            }
+            byte[] bytes = buffer.array();
+            for (int i = 0; i < read; i++) {
+                int b = bytes[i] & 0xFF;
+                if (b == '\n' && state != QUOTED) {
+                    return position + i + 1;
+                }
+                state = TRANSITIONS[state * 256 + b];
+            }
+            position += read;
+        }
+        return from < size ? size : -1;
+    }
+
+    private static Reader reader(FileChannel channel, long start, long end, Charset charset) {
+        return new BufferedReader(new InputStreamReader(new ChannelRangeInputStream(channel, start, end), charset),
+                READER_BUFFER_SIZE);
+    }
+
+    /**
+     * Runs the states of the parser over a share of the file.
+     */
+    private static final class StateScanTask implements Callable<int[]> {
+        private final FileChannel channel;
+        private final long start;
+        private final long end;
+
+        StateScanTask(FileChannel channel, long start, long end) {
+            this.channel = channel;
+            this.start = start;
+            this.end = end;
+        }
+
+        /**
+         * @return the state at the end of the share, for every state it may start in
+         */
+        @Override
+        public int[] call() throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+            int fromFieldStart = FIELD_START;
+            int fromUnquoted = UNQUOTED;
+            int fromQuoted = QUOTED;
+            int fromQuoteInQuoted = QUOTE_IN_QUOTED;
+            long position = start;
+            while (position < end) {
+                buffer.clear();
+                buffer.limit((int) Math.min(SCAN_BUFFER_SIZE, end - position));
+                int read = channel.read(buffer, position);
+                if (read <= 0) {
+                    break;
+                }
+                byte[] bytes = buffer.array();
+                for (int i = 0; i < read; i++) {
+                    int b = bytes[i] & 0xFF;
+                    fromFieldStart = TRANSITIONS[fromFieldStart * 256 + b];
+                    fromUnquoted = TRANSITIONS[fromUnquoted * 256 + b];
+                    fromQuoted = TRANSITIONS[fromQuoted * 256 + b];
+                    fromQuoteInQuoted = TRANSITIONS[fromQuoteInQuoted * 256 + b];
+                }
+                position += read;
+            }
+            return new int[]{fromFieldStart, fromUnquoted, fromQuoted, fromQuoteInQuoted};
+        }
+    }
+
+    private static final class ChunkTask implements Callable<ChunkResult> {
+        private final FileChannel channel;
+        private final long start;
+        private final long end;
+        private final Charset charset;
+        private final boolean mapped;
+        private final UserRowConverter converter;
+
+        ChunkTask(FileChannel channel, long start, long end, Charset charset, boolean mapped,
+                  UserRowConverter converter) {
+            this.channel = channel;
+            this.start = start;
+            this.end = end;
+            this.charset = charset;
+            this.mapped = mapped;
+            this.converter = converter;
+        }
+
+        @Override
+        public ChunkResult call() throws IOException {
+            ChunkResult result = new ChunkResult();
+            if (mapped) {
+                MappedCSVReader reader = new MappedCSVReader(channel, start, end, charset);
+                while (reader.next()) {
+                    result.recordCount++;
+                    result.add(converter, reader);
+                }
+                return result;
+            }
+            CSVParser parser = new CSVParser(reader(channel, start, end, charset), CSVFormat.RFC4180);
+            try {
+                for (CSVRecord record : parser) {
+                    result.recordCount++;
+                    result.add(converter, CSVFields.of(record));
+                }
+            } finally {
+                parser.close();
+            }
+            return result;
+        }
+    }
+
+    private static final class ChunkResult {
+        private final List<UserRowConverter.Row> rows = new ArrayList<UserRowConverter.Row>();
+        private final List<UserLoad.Rejection> rejections = new ArrayList<UserLoad.Rejection>();
+        private long recordCount;
+        private long inactiveCount;
+
+        void add(UserRowConverter converter, CSVFields record) {
+            UserRowConverter.Row row = converter.convert(record, recordCount);
+            if (row == null) {
+                inactiveCount++;
+            } else if (row.isRejected()) {
+                rejections.add(row.getRejection());
+            } else {
+                rows.add(row);
+            }
+        }
+    }
+
+    /**
+     * Reads a byte range of a file with positional reads, so several ranges can be read from one channel at once.
+     */
+    private static final class ChannelRangeInputStream extends InputStream {
+        private final FileChannel channel;
+        private final long end;
+        private long position;
+
+        ChannelRangeInputStream(FileChannel channel, long start, long end) {
+            this.channel = channel;
+            this.position = start;
+            this.end = end;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (position >= end) {
+                return -1;
+            }
+            int read = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, end - position)), position);
+            if (read <= 0) {
+                return -1;
+            }
+            position += read;
+            return read;
+        }
+    }
+}
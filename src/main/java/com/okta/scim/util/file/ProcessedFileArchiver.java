@@ -0,0 +1,238 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Okta, Inc. and/or its affiliates. All rights reserved.
+ ******************************************************************************/
+package com.okta.scim.util.file;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Keeps a copy of every loaded version of the users file in the 'csvProcessedFolder', on a background thread.
+ * <p>
+ * A version is only archived once: a load of a file whose content fingerprint matches the last archived version is
+ * skipped. The file is copied with {@link FileChannel#transferTo} (or gzipped if 'csvProcessedGzip' is true) to a
+ * temporary file which is then renamed, so the folder never holds a partial copy. If the users file changes while it
+ * is being copied, the copy is dropped; the next load archives the new version. After each copy, the oldest archives
+ * beyond 'csvProcessedRetainCount' or older than 'csvProcessedRetainDays' are deleted (0 keeps all of them).
+ */
+public class ProcessedFileArchiver {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ProcessedFileArchiver.class);
+
+    private static final String PREFIX = "users_";
+    private static final String EXTENSION = ".csv";
+    private static final String GZIP_EXTENSION = ".csv.gz";
+    private static final int GZIP_BUFFER_SIZE = 64 * 1024;
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "scim-processed-file-archiver");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    //Guarded by this
+    private FileFingerprint lastArchived;
+
+    /**
+     * Queue a loaded version of the users file for archival. Returns right away.
+     *
+     * @param usersFile   the file that was loaded
+     * @param fingerprint the fingerprint the file was loaded with
+     */
+    public void archive(final File usersFile, final FileFingerprint fingerprint) {
+        synchronized (this) {
+            if (fingerprint.hasSameContent(lastArchived)) {
+                LOGGER.debug("[" + usersFile + "] is already archived");
+                return;
+            }
+            lastArchived = fingerprint;
+        }
+        executor.execute(new Runnable() {
+            public void run() {
+                try {
+                    copy(usersFile, fingerprint, ConnectorConfig.get());
+                } catch (Exception e) {
+                    //Allow the same content to be archived by a later load
+                    synchronized (ProcessedFileArchiver.this) {
+                        if (lastArchived == fingerprint) {
+                            lastArchived = null;
+                        }
+                    }
+                    LOGGER.error("Cannot archive the processed file [" + usersFile + "]", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Stop accepting files and wait for the queued copies to finish.
+     */
+    public void shutdown() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+                LOGGER.warn("Gave up waiting for the processed files to be archived");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void copy(File usersFile, FileFingerprint fingerprint, ConnectorConfig config) throws IOException {
+        String folder = config.getProperty("csvProcessedFolder");
+        if (folder == null || folder.trim().isEmpty()) {
+            LOGGER.debug("No csvProcessedFolder configured, not archiving [" + usersFile + "]");
+            return;
+        }
+        File processedFolder = new File(folder.trim());
+        if (!processedFolder.isDirectory() && !processedFolder.mkdirs()) {
+            throw new IOException("Cannot create the processed folder [" + processedFolder + "]");
+        }
+        boolean gzip = Boolean.parseBoolean(config.getProperty("csvProcessedGzip"));
+
+        long start = System.currentTimeMillis();
+        File temp = File.createTempFile(PREFIX, ".tmp", processedFolder);
+        try {
+            FileInputStream input = new FileInputStream(usersFile);
+            try {
+                if (gzip) {
+                    gzip(input.getChannel(), temp);
+                } else {
+                    transfer(input.getChannel(), temp);
+                }
+            } finally {
+                input.close();
+            }
+            if (!fingerprint.hasSameMetadata(usersFile)) {
+                LOGGER.warn("[" + usersFile + "] changed while it was archived, the next load archives the new version");
+                return;
+            }
+            File destination = destination(processedFolder, gzip ? GZIP_EXTENSION : EXTENSION);
+            Files.move(temp.toPath(), destination.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            LOGGER.info("Archived [" + usersFile + "] to [" + destination + "] in "
+                    + (System.currentTimeMillis() - start) + "ms");
+        } finally {
+            if (temp.exists() && !temp.delete()) {
+                LOGGER.warn("Cannot delete the temporary file [" + temp + "]");
+            }
+        }
+        try {
+            applyRetention(processedFolder, config);
+        } catch (NumberFormatException e) {
+            //The file is archived, a bad retention setting must not make the next load archive it again
+            LOGGER.error("Cannot prune the processed folder [" + processedFolder
+                    + "], csvProcessedRetainCount and csvProcessedRetainDays must be numbers", e);
+        }
+    }
+
+    private static void transfer(FileChannel source, File target) throws IOException {
+        FileOutputStream output = new FileOutputStream(target);
+        try {
+            FileChannel channel = output.getChannel();
+            long size = source.size();
+            long position = 0;
+            while (position < size) {
+                long transferred = source.transferTo(position, size - position, channel);
+                if (transferred <= 0) {
+                    //Truncated while copying, caught by the metadata check
+                    break;
+                }
+                position += transferred;
+            }
+            channel.force(false);
+        } finally {
+            output.close();
+        }
+    }
+
+    private static void gzip(FileChannel source, File target) throws IOException {
+        FileOutputStream file = new FileOutputStream(target);
+        try {
+            GZIPOutputStream output = new GZIPOutputStream(file, GZIP_BUFFER_SIZE);
+            WritableByteChannel channel = Channels.newChannel(output);
+            long size = source.size();
+            long position = 0;
+            while (position < size) {
+                long transferred = source.transferTo(position, size - position, channel);
+                if (transferred <= 0) {
+                    //Truncated while copying, caught by the metadata check
+                    break;
+                }
+                position += transferred;
+            }
+            output.finish();
+            file.getChannel().force(false);
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * @return users_&lt;timestamp&gt;.csv as before, with a counter if a file with that name already exists
+     */
+    private static File destination(File processedFolder, String extension) {
+        DateFormat df = new SimpleDateFormat("dd_MM_yy__HH_mm_ss");
+        String name = PREFIX + df.format(new Date());
+        File destination = new File(processedFolder, name + extension);
+        for (int i = 1; destination.exists(); i++) {
+            destination = new File(processedFolder, name + "_" + i + extension);
+        }
+        return destination;
+    }
+
+    private static void applyRetention(File processedFolder, ConnectorConfig config) {
+        int retainCount = Integer.parseInt(config.getProperty("csvProcessedRetainCount", "0").trim());
+        int retainDays = Integer.parseInt(config.getProperty("csvProcessedRetainDays", "0").trim());
+        if (retainCount <= 0 && retainDays <= 0) {
+            return;
+        }
+        File[] archives = processedFolder.listFiles(new FileFilter() {
+            public boolean accept(File file) {
+                String name = file.getName();
+                return file.isFile() && name.startsWith(PREFIX) && (name.endsWith(EXTENSION) || name.endsWith(GZIP_EXTENSION));
+            }
+        });
+        if (archives == null) {
+            return;
+        }
+        //Newest first
+        Arrays.sort(archives, new Comparator<File>() {
+            public int compare(File a, File b) {
+                long difference = b.lastModified() - a.lastModified();
+                return difference > 0 ? 1 : difference < 0 ? -1 : 0;
+            }
+        });
+        long oldest = retainDays > 0 ? System.currentTimeMillis() - TimeUnit.DAYS.toMillis(retainDays) : Long.MIN_VALUE;
+        for (int i = 0; i < archives.length; i++) {
+            if ((retainCount > 0 && i >= retainCount) || archives[i].lastModified() < oldest) {
+                if (archives[i].delete()) {
+                    LOGGER.debug("Deleted the archived file [" + archives[i] + "]");
+                } else {
+                    LOGGER.warn("Cannot delete the archived file [" + archives[i] + "]");
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Okta, Inc. and/or its affiliates. All rights reserved.
+ ******************************************************************************/
+package com.okta.scim.util.file;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes the records a load rejected to the 'csvQuarantineFolder', so that they can be fixed and sent again.
+ * <p>
+ * Every users file with rejected records gets its own quarantine file, users_rejected_&lt;timestamp&gt;.csv for
+ * users.csv, in UTF-8. It has the columns of the users file, preceded by the number of the rejected record in the
+ * users file and the reason it was rejected. The file is written to a temporary file which is then renamed, so the
+ * folder never holds a partial quarantine file.
+ */
+final class QuarantineFile {
+    private static final Logger LOGGER = LoggerFactory.getLogger(QuarantineFile.class);
+
+    private static final String SUFFIX = "_rejected_";
+    private static final String EXTENSION = ".csv";
+    private static final String UTF_8 = "UTF-8";
+
+    private QuarantineFile() {
+    }
+
+    /**
+     * Write the rejected records of a load.
+     *
+     * @param folder     the quarantine folder, created if needed
+     * @param rejections the rejected records, in file order
+     * @return the quarantine files written
+     * @throws IOException if a quarantine file cannot be written
+     */
+    static List<File> write(File folder, List<UserLoad.Rejection> rejections) throws IOException {
+        if (!folder.isDirectory() && !folder.mkdirs()) {
+            throw new IOException("Cannot create the quarantine folder [" + folder + "]");
+        }
+        Map<String, List<UserLoad.Rejection>> byFile = new LinkedHashMap<String, List<UserLoad.Rejection>>();
+        for (UserLoad.Rejection rejection : rejections) {
+            List<UserLoad.Rejection> fileRejections = byFile.get(rejection.getFileName());
+            if (fileRejections == null) {
+                fileRejections = new ArrayList<UserLoad.Rejection>();
+                byFile.put(rejection.getFileName(), fileRejections);
+            }
+            fileRejections.add(rejection);
+        }
+
+        String timestamp = new SimpleDateFormat("dd_MM_yy__HH_mm_ss").format(new Date());
+        List<File> written = new ArrayList<File>();
+        for (Map.Entry<String, List<UserLoad.Rejection>> file : byFile.entrySet()) {
+            File destination = destination(folder, baseName(file.getKey()) + SUFFIX + timestamp);
+            write(folder, destination, file.getValue());
+            LOGGER.info("Wrote the " + file.getValue().size() + " rejected records of [" + file.getKey() + "] to ["
+                    + destination + "]");
+            written.add(destination);
+        }
+        return written;
+    }
+
+    private static void write(File folder, File destination, List<UserLoad.Rejection> rejections)
+            throws IOException {
+        File temp = File.createTempFile("rejected_", ".tmp", folder);
+        try {
+            FileOutputStream output = new FileOutputStream(temp);
+            try {
+                CSVPrinter printer = new CSVPrinter(new BufferedWriter(new OutputStreamWriter(output, UTF_8)),
+                        CSVFormat.RFC4180);
+                List<String> header = new ArrayList<String>();
+                header.add("rejectedRecord");
+                header.add("rejectedReason");
+                for (String column : rejections.get(0).getHeader()) {
+                    header.add(column == null ? "" : column);
+                }
+                printer.printRecord(header);
+                for (UserLoad.Rejection rejection : rejections) {
+                    List<String> record = new ArrayList<String>(rejection.getFields().length + 2);
+                    record.add(String.valueOf(rejection.getRecordNumber()));
+                    record.add(rejection.getReason());
+                    record.addAll(Arrays.asList(rejection.getFields()));
+                    printer.printRecord(record);
+                }
+                printer.flush();
+                output.getChannel().force(false);
+            } finally {
+                output.close();
+            }
+            Files.move(temp.toPath(), destination.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            if (temp.exists() && !temp.delete()) {
+                LOGGER.warn("Cannot delete the temporary file [" + temp + "]");
+            }
+        }
+    }
+
+    private static String baseName(String fileName) {
+        int extension = fileName.lastIndexOf('.');
+        return extension > 0 ? fileName.substring(0, extension) : fileName;
+    }
+
+    /**
+     * @return the file with this name, with a counter if a file with that name already exists
+     */
+    private static File destination(File folder, String name) {
+        File destination = new File(folder, name + EXTENSION);
+        for (int i = 1; destination.exists(); i++) {
+            destination = new File(folder, name + "_" + i + EXTENSION);
+        }
+        return destination;
+    }
+}
@@ -0,0 +1,183 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Okta, Inc. and/or its affiliates. All rights reserved.
+ ******************************************************************************/
+package com.okta.scim.util.file;
+
+import com.okta.scim.server.exception.OnPremUserManagementException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the number of SCIM requests that run at the same time, and the number that wait for their turn.
+ * <p>
+ * A request that finds all the slots taken waits for at most the queue timeout, behind the requests already waiting.
+ * A request that finds the queue full, or is still waiting at the timeout, is rejected right away with an
+ * {@link OnPremUserManagementException}, so that a burst of requests fails fast instead of piling up threads in the
+ * servlet container. Okta retries a failed request later.
+ * <p>
+ * With no concurrency limit every request is admitted, and only counted.
+ */
+public class RequestAdmission {
+    private static final Logger LOGGER = LoggerFactory.getLogger(RequestAdmission.class);
+
+    private final int maxConcurrent;
+    private final int maxQueued;
+    private final long queueTimeoutMillis;
+    //Null if the concurrency is not limited
+    private final Semaphore slots;
+
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger peakQueued = new AtomicInteger();
+    private final AtomicLong admittedCount = new AtomicLong();
+    private final AtomicLong queueFullCount = new AtomicLong();
+    private final AtomicLong timeoutCount = new AtomicLong();
+    private final LatencyHistogram queueLatency = new LatencyHistogram();
+    private final SampledLogger rejectionLog = new SampledLogger(LOGGER, 10000);
+
+    /**
+     * @param maxConcurrent      the maximum number of requests running at the same time, 0 for no limit
+     * @param maxQueued          the maximum number of requests waiting for a slot, 0 to reject a request as soon as
+     *                           all the slots are taken
+     * @param queueTimeoutMillis the maximum time a request waits for a slot
+     */
+    public RequestAdmission(int maxConcurrent, int maxQueued, long queueTimeoutMillis) {
+        this.maxConcurrent = Math.max(0, maxConcurrent);
+        this.maxQueued = Math.max(0, maxQueued);
+        this.queueTimeoutMillis = Math.max(0, queueTimeoutMillis);
+        this.slots = this.maxConcurrent == 0 ? null : new Semaphore(this.maxConcurrent, true);
+    }
+
+    /**
+     * @param config the configuration, with 'maxConcurrentRequests', 'maxQueuedRequests' and
+     *               'requestQueueTimeoutMillis'
+     * @return the admission controller of the configuration
+     */
+    public static RequestAdmission of(ConnectorConfig config) {
+        return new RequestAdmission(Integer.parseInt(config.getProperty("maxConcurrentRequests", "0")),
+                Integer.parseInt(config.getProperty("maxQueuedRequests", "100")),
+                Long.parseLong(config.getProperty("requestQueueTimeoutMillis", "10000")));
+    }
+
+    /**
+     * Take a slot for a request, waiting for one if they are all taken. Every successful call must be followed by a
+     * call to {@link #release()}.
+     *
+     * @param operation the name of the operation, for the error message
+     * @throws OnPremUserManagementException if the queue is full, or no slot was free in time
+     */
+    public void acquire(String operation) {
+        if (slots == null || slots.tryAcquire()) {
+            admitted();
+            return;
+        }
+        if (queued.incrementAndGet() > maxQueued) {
+            queued.decrementAndGet();
+            queueFullCount.incrementAndGet();
+            throw reject(operation, "the request queue is full");
+        }
+        long startNanos = System.nanoTime();
+        boolean acquired = false;
+        try {
+            int waiting = queued.get();
+            int peak;
+            while (waiting > (peak = peakQueued.get()) && !peakQueued.compareAndSet(peak, waiting)) {
+                //Retry with the new peak
+            }
+            acquired = slots.tryAcquire(queueTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            queued.decrementAndGet();
+            queueLatency.recordSince(startNanos);
+        }
+        if (!acquired) {
+            timeoutCount.incrementAndGet();
+            throw reject(operation, "no request finished within " + queueTimeoutMillis + " ms");
+        }
+        admitted();
+    }
+
+    private void admitted() {
+        running.incrementAndGet();
+        admittedCount.incrementAndGet();
+    }
+
+    private OnPremUserManagementException reject(String operation, String reason) {
+        rejectionLog.error("Rejected a {} request, {}. running={} queued={}", operation, reason, running.get(),
+                queued.get());
+        return new OnPremUserManagementException("o34572", "The connector is busy (" + maxConcurrent
+                + " concurrent requests), " + reason + ". Retry the " + operation + " request later");
+    }
+
+    /**
+     * Give back the slot of a finished request.
+     */
+    public void release() {
+        running.decrementAndGet();
+        if (slots != null) {
+            slots.release();
+        }
+    }
+
+    /**
+     * @return the maximum number of requests running at the same time, 0 if not limited
+     */
+    public int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    /**
+     * @return the number of requests running
+     */
+    public int getRunningCount() {
+        return running.get();
+    }
+
+    /**
+     * @return the number of requests waiting for a slot
+     */
+    public int getQueuedCount() {
+        return queued.get();
+    }
+
+    /**
+     * @return the highest number of requests that waited for a slot at the same time
+     */
+    public int getPeakQueuedCount() {
+        return peakQueued.get();
+    }
+
+    /**
+     * @return the number of requests admitted
+     */
+    public long getAdmittedCount() {
+        return admittedCount.get();
+    }
+
+    /**
+     * @return the number of requests rejected because the queue was full
+     */
+    public long getQueueFullCount() {
+        return queueFullCount.get();
+    }
+
+    /**
+     * @return the number of requests rejected because no slot was free within the queue timeout
+     */
+    public long getTimeoutCount() {
+        return timeoutCount.get();
+    }
+
+    /**
+     * @return the time the queued requests waited for a slot, admitted or not
+     */
+    public LatencyHistogram getQueueLatency() {
+        return queueLatency;
+    }
+}
@@ -0,0 +1,214 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Okta, Inc. and/or its affiliates. All rights reserved.
+ ******************************************************************************/
+package com.okta.scim.util.file;
+
+import com.okta.scim.util.model.SCIMUser;
+import com.okta.scim.util.model.SCIMUserQueryResponse;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The getUsers pages and the users built for the requests on one {@link UserSnapshot} version, so that the pages of a
+ * repeated import and the users of a reconciliation are not built again from the {@link CompactUserStore}.
+ * <p>
+ * A page is kept by its start index and count, and a user by its id. The entries are evicted least recently used
+ * first once they hold more than the maximum number of users, a page weighing as many users as it has. All the
+ * entries are dropped as soon as a newer version is looked up or put, so a reload or a provisioned user is never
+ * served from the cache. A request still running on an older version is neither served from nor put in the cache.
+ * <p>
+ * The cached objects are shared by the requests, and must not be changed once put.
+ */
+public class ResponseCache {
+    private final int maxUsers;
+
+    //Guarded by this
+    private final LinkedHashMap<Object, Entry> entries = new LinkedHashMap<Object, Entry>(64, 0.75f, true);
+    private long version = -1;
+    private int userCount;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+    private final AtomicLong invalidationCount = new AtomicLong();
+
+    /**
+     * @param maxUsers the maximum number of users held by the pages and users cached, 0 to cache nothing
+     */
+    public ResponseCache(int maxUsers) {
+        this.maxUsers = Math.max(0, maxUsers);
+    }
+
+    /**
+     * @param config the configuration, with 'responseCacheMaxUsers'
+     * @return the response cache of the configuration
+     */
+    public static ResponseCache of(ConnectorConfig config) {
+        return new ResponseCache(Integer.parseInt(config.getProperty("responseCacheMaxUsers", "10000")));
+    }
+
+    private static final class Entry {
+        private final Object value;
+        private final int weight;
+
+        private Entry(Object value, int weight) {
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    private static final class PageKey {
+        private final long startIndex;
+        private final int count;
+
+        private PageKey(long startIndex, int count) {
+            this.startIndex = startIndex;
+            this.count = count;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof PageKey)) {
+                return false;
+            }
+            PageKey other = (PageKey) o;
+            return startIndex == other.startIndex && count == other.count;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (int) (startIndex ^ (startIndex >>> 32)) + count;
+        }
+    }
+
+    /**
+     * @param version    the version of the snapshot the page is served from
+     * @param startIndex the start index of the page
+     * @param count      the count of the page
+     * @return the cached page, or null
+     */
+    public SCIMUserQueryResponse getPage(long version, long startIndex, int count) {
+        return (SCIMUserQueryResponse) get(version, new PageKey(startIndex, count));
+    }
+
+    /**
+     * @param version    the version of the snapshot the page was built from
+     * @param startIndex the start index of the page
+     * @param count      the count of the page
+     * @param page       the page, with the users of the snapshot from the start index
+     */
+    public void putPage(long version, long startIndex, int count, SCIMUserQueryResponse page) {
+        put(version, new PageKey(startIndex, count), page, Math.max(1, page.getScimUsers().size()));
+    }
+
+    /**
+     * @param version the version of the snapshot the user is served from
+     * @param id      the id of the user
+     * @return the cached user, or null
+     */
+    public SCIMUser getUser(long version, String id) {
+        return (SCIMUser) get(version, id);
+    }
+
+    /**
+     * @param version the version of the snapshot the user was built from
+     * @param id      the id of the user
+     * @param user    the user
+     */
+    public void putUser(long version, String id, SCIMUser user) {
+        put(version, id, user, 1);
+    }
+
+    private synchronized Object get(long requestVersion, Object key) {
+        if (maxUsers == 0) {
+            return null;
+        }
+        invalidateBefore(requestVersion);
+        Entry entry = requestVersion == version ? entries.get(key) : null;
+        if (entry == null) {
+            missCount.incrementAndGet();
+            return null;
+        }
+        hitCount.incrementAndGet();
+        return entry.value;
+    }
+
+    private synchronized void put(long requestVersion, Object key, Object value, int weight) {
+        if (weight > maxUsers) {
+            return;
+        }
+        invalidateBefore(requestVersion);
+        if (requestVersion != version) {
+            return;
+        }
+        Entry previous = entries.put(key, new Entry(value, weight));
+        userCount += weight - (previous == null ? 0 : previous.weight);
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (userCount > maxUsers) {
+            userCount -= eldest.next().weight;
+            eldest.remove();
+            evictionCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Drop the entries of the versions before this one.
+     */
+    private void invalidateBefore(long requestVersion) {
+        if (requestVersion <= version) {
+            return;
+        }
+        if (!entries.isEmpty()) {
+            entries.clear();
+            invalidationCount.incrementAndGet();
+        }
+        userCount = 0;
+        version = requestVersion;
+    }
+
+    /**
+     * @return the maximum number of users held, 0 if nothing is cached
+     */
+    public int getMaxUsers() {
+        return maxUsers;
+    }
+
+    /**
+     * @return the number of pages and users cached
+     */
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    /**
+     * @return the number of users held by the pages and users cached
+     */
+    public synchronized int getUserCount() {
+        return userCount;
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * @return the number of entries evicted to stay within the maximum number of users
+     */
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    /**
+     * @return the number of times the entries were dropped for a newer version
+     */
+    public long getInvalidationCount() {
+        return invalidationCount.get();
+    }
+}
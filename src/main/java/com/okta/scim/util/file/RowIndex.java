@@ -0,0 +1,189 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Okta, Inc. and/or its affiliates. All rights reserved.
+ ******************************************************************************/
+package com.okta.scim.util.file;
+
+import java.io.IOException;
+
+/**
+ * A hash index from the values of one column of a {@link CompactUserStore} to the rows holding them.
+ * <p>
+ * The index does not copy the values. An open addressing table of ints points at the first row of every distinct
+ * value, and the other rows with the same value are chained in row order through a second int array, so an index
+ * costs about 12 bytes per row instead of a map entry, a boxed key and a list per value.
+ */
+final class RowIndex {
+    private static final int[] NO_ROWS = new int[0];
+
+    /**
+     * The column values to index.
+     */
+    interface Values {
+        /**
+         * @return the value of a row, or null if the row should not be indexed
+         */
+        String get(int row);
+    }
+
+    private final Values values;
+    private final boolean ignoreCase;
+    //First row of every distinct value plus one, 0 for an empty slot
+    private final int[] table;
+    //The next row with the same value, -1 for the last one. Null for a unique index.
+    private final int[] next;
+
+    private RowIndex(Values values, boolean ignoreCase, int[] table, int[] next) {
+        this.values = values;
+        this.ignoreCase = ignoreCase;
+        this.table = table;
+        this.next = next;
+    }
+
+    /**
+     * Index the rows of a column.
+     *
+     * @param size       the number of rows
+     * @param values     the values of the rows
+     * @param ignoreCase true to match values ignoring case, as {@link String#equalsIgnoreCase} does
+     * @param unique     true if no two rows have the same value, which saves the row chains
+     * @return the index
+     */
+    static RowIndex build(int size, Values values, boolean ignoreCase, boolean unique) {
+        int[] table = new int[capacity(size)];
+        int[] next = unique ? null : new int[size];
+        //The last row of every chain, to keep the chains in row order. Only needed while building.
+        int[] tail = unique ? null : new int[table.length];
+        int mask = table.length - 1;
+        for (int row = 0; row < size; row++) {
+            String value = values.get(row);
+            if (value == null) {
+                continue;
+            }
+            if (next != null) {
+                next[row] = -1;
+            }
+            int slot = hash(value, ignoreCase) & mask;
+            while (true) {
+                int head = table[slot] - 1;
+                if (head < 0) {
+                    table[slot] = row + 1;
+                    if (tail != null) {
+                        tail[slot] = row;
+                    }
+                    break;
+                }
+                if (matches(values.get(head), value, ignoreCase)) {
+                    if (next == null) {
+                        throw new IllegalArgumentException("The value [" + value + "] is not unique");
+                    }
+                    next[tail[slot]] = row;
+                    tail[slot] = row;
+                    break;
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+        return new RowIndex(values, ignoreCase, table, next);
+    }
+
+    /**
+     * Read an index written by {@link #writeTo}.
+     *
+     * @param values the values of the rows it was built for
+     */
+    static RowIndex readFrom(UserSnapshotFile.Input in, Values values) throws IOException {
+        boolean ignoreCase = in.readBoolean();
+        int[] table = in.readInts();
+        int[] next = in.readInts();
+        if (table == null || Integer.bitCount(table.length) != 1) {
+            throw new IOException("The snapshot holds an invalid index");
+        }
+        return new RowIndex(values, ignoreCase, table, next);
+    }
+
+    /**
+     * Write the index tables, not the values, to a snapshot file.
+     */
+    void writeTo(UserSnapshotFile.Output out) throws IOException {
+        out.writeBoolean(ignoreCase);
+        out.writeInts(table);
+        out.writeInts(next);
+    }
+
+    private static int capacity(int size) {
+        int capacity = 2;
+        while (capacity < size * 2L && capacity < (1 << 30)) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    /**
+     * @param value a value
+     * @return the rows holding the value in row order, empty if there is none
+     */
+    int[] find(String value) {
+        int head = findFirst(value);
+        if (head < 0) {
+            return NO_ROWS;
+        }
+        if (next == null) {
+            return new int[]{head};
+        }
+        int count = 0;
+        for (int row = head; row >= 0; row = next[row]) {
+            count++;
+        }
+        int[] rows = new int[count];
+        count = 0;
+        for (int row = head; row >= 0; row = next[row]) {
+            rows[count++] = row;
+        }
+        return rows;
+    }
+
+    /**
+     * @param value a value
+     * @return the first row holding the value, or -1 if there is none
+     */
+    int findFirst(String value) {
+        if (value == null) {
+            return -1;
+        }
+        int mask = table.length - 1;
+        int slot = hash(value, ignoreCase) & mask;
+        while (true) {
+            int head = table[slot] - 1;
+            if (head < 0) {
+                return -1;
+            }
+            if (matches(values.get(head), value, ignoreCase)) {
+                return head;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private static boolean matches(String a, String b, boolean ignoreCase) {
+        return ignoreCase ? a.equalsIgnoreCase(b) : a.equals(b);
+    }
+
+    /**
+     * A hash that is equal for values that are equal ignoring case, compared character by character the way
+     * {@link String#equalsIgnoreCase} compares them.
+     */
+    private static int hash(String value, boolean ignoreCase) {
+        int hash;
+        if (ignoreCase) {
+            hash = 0;
+            for (int i = 0; i < value.length(); i++) {
+                hash = 31 * hash + Character.toLowerCase(Character.toUpperCase(value.charAt(i)));
+            }
+        } else {
+            hash = value.hashCode();
+        }
+        //Spread the bits, the table is indexed by the low bits only
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+}
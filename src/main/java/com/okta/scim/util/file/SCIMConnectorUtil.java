@@ -4,30 +4,20 @@
 package com.okta.scim.util.file;
 
 import com.okta.scim.util.exception.SCIMSerializationException;
-import com.okta.scim.util.model.Email;
-import com.okta.scim.util.model.Name;
-import com.okta.scim.util.model.SCIMUser;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.FileFilter;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.sql.Date;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
-import java.util.Calendar;
-import java.util.Collection;
-import java.util.Enumeration;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
-import java.util.Map;
-import java.util.Properties;
-import java.io.FileReader;
 
 import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVParser;
@@ -36,226 +26,208 @@ import org.apache.commons.csv.CSVRecord;
 public class SCIMConnectorUtil {
 		
     private static final Logger LOGGER = LoggerFactory.getLogger(SCIMConnectorUtil.class);
-    private static final String key_id = "id";
-    private static final String key_userName = "userName";
-    private static final String key_familyName = "familyName";
-    private static final String key_givenName = "givenName";
-    private static final String key_email = "email";
-    private static final String key_user_active = "active";
-    private static final String key_user_password = "password";
     
     /**
-     * Read the users from a file into a users map
+     * Read the users from a file into a load. For an incremental load, the users of unchanged rows are taken over from
+     * the previous snapshot instead of being built again.
      *
-     * @param userMap
+     * @param load
      * @param usersFilePath
+     * @return the number of CSV records read
      * @throws java.io.IOException
      */
-    public static void readUsersFromCSV(Map<String, SCIMUser> userMap, String usersFilePath) throws IOException, SCIMSerializationException {
+    public static long readUsersFromCSV(UserLoad load, String usersFilePath) throws IOException, SCIMSerializationException {
+        return readUsersFromCSV(load, usersFilePath, ConnectorConfig.get());
+    }
+    
+    /**
+     * Read the users from a file into a load, using a given version of the configuration.
+     *
+     * @param load
+     * @param usersFilePath
+     * @param config
+     * @return the number of CSV records read
+     * @throws java.io.IOException
+     */
+    public static long readUsersFromCSV(UserLoad load, String usersFilePath, ConnectorConfig config) throws IOException, SCIMSerializationException {
    	
-    	FileReader fileReader = null;
+    	FileInputStream fileInput = null;
+    	
+    	Reader fileReader = null;
 		
 		CSVParser csvFileParser = null;
 		        
         CSVFormat csvFileFormat = CSVFormat.RFC4180.withFirstRecordAsHeader();
         
-        // Load CSV Mapping
-        Properties csvColumnMappingProperties = loadProperties("CSVColumnMapping");
-        // Load Application properties
-        Properties applicationProperties = loadProperties("application");
+        // The CSV Mapping is parsed and validated once per configuration version
+        CSVColumnMapping columnMapping = config.getColumnMapping();
      
         try {
-        	LOGGER.debug("In 'readUsersFromCSV'. Reading the CSV. usersFilePath: " + usersFilePath);
+        	LOGGER.debug("In 'readUsersFromCSV'. Reading the CSV. usersFilePath: {}", usersFilePath);
         	
             //initialize FileReader object
         	File uploadedCSV = new File(usersFilePath);
         	
         	
-        	LOGGER.debug("In 'readUsersFromCSV'. CSV file: " + uploadedCSV.getName());
-        	fileReader = new FileReader(uploadedCSV);
-            
-            //initialize CSVParser object
-            csvFileParser = new CSVParser(fileReader, csvFileFormat);
+        	LOGGER.debug("In 'readUsersFromCSV'. CSV file: {}", uploadedCSV.getName());
+            String userInactiveValue = config.getUserInactiveValue();
+            String customSchemaName = config.getCustomSchemaName();
             
-            //Get a list of CSV file records
-            @SuppressWarnings("rawtypes")
-			List csvRecords = csvFileParser.getRecords();
-            
-            if(csvRecords.isEmpty())
-            {
-            	return;
+            long recordCount = 0;
+            int parallelism = getParallelLoadThreads(config, uploadedCSV);
+            boolean mapped = Boolean.parseBoolean(config.getProperty("csvMappedReader"));
+            CSVEncoding encoding = CSVEncoding.detect(uploadedCSV, config.getProperty("csvCharset"));
+            if ((parallelism > 1 || mapped) && !encoding.isAsciiCompatible()) {
+                // The byte level readers need the delimiters to be single bytes, which they are not in UTF-16
+                LOGGER.info("The CSV is encoded in {}, reading it sequentially", encoding);
+                parallelism = 1;
+                mapped = false;
             }
-            
-            LOGGER.info("Number of CSV records: " + csvRecords.size());
-            
-            //Read the CSV file records starting from the second record to skip the header
-            for (int i = 0; i < csvRecords.size(); i++) {
-            	CSVRecord record = (CSVRecord)csvRecords.get(i);
-            	
-            	// Loading Custom attributes
-                Enumeration e = csvColumnMappingProperties.propertyNames();
+            if (parallelism > 1) {
+                // Large files are split into record aligned chunks which are parsed on several threads
+                LOGGER.info("Reading the CSV in parallel on {} threads", parallelism);
+                recordCount = ParallelCSVReader.readUsers(load, uploadedCSV, encoding, mapped, columnMapping,
+                        userInactiveValue, customSchemaName, parallelism);
+            } else if (mapped) {
+                // Tokenize the memory mapped file and only decode the mapped columns
+                fileInput = new FileInputStream(uploadedCSV);
+                FileChannel channel = fileInput.getChannel();
+                MappedCSVReader csvReader = new MappedCSVReader(channel, encoding.getBomLength(), channel.size(),
+                        encoding.getCharset());
+                CSVMappingPlan mappingPlan = CSVMappingPlan.compile(columnMapping, csvReader.readHeader(),
+                        userInactiveValue, customSchemaName);
+                UserRowConverter converter = load.converter(mappingPlan, uploadedCSV.getName());
+                long inactive = 0;
+                while (csvReader.next()) {
+                    recordCount++;
+                    inactive += add(load, converter.convert(csvReader, recordCount));
+                }
+                load.countInactive(inactive);
+            } else {
+                fileInput = new FileInputStream(uploadedCSV);
+                long skipped = 0;
+                while (skipped < encoding.getBomLength()) {
+                    skipped += fileInput.skip(encoding.getBomLength() - skipped);
+                }
+                fileReader = new InputStreamReader(fileInput, encoding.getCharset());
                 
-                // Check if the user is active. Only load the user into the map if it they are an active user.
-                Boolean isUserActive = !(record.get(csvColumnMappingProperties.getProperty(key_user_active).split(",")[0]).equals(applicationProperties.getProperty("userInactiveValueInCSV")));
-                Boolean mandatoryFieldsPresent = checkIfAllMandatoryFieldsArePopulated(csvColumnMappingProperties, record);
+                //initialize CSVParser object
+                csvFileParser = new CSVParser(fileReader, csvFileFormat);
                 
-                if(isUserActive && mandatoryFieldsPresent){
-                	SCIMUser user = new SCIMUser();
-                    // Set UserName (SCIM Required)
-                    String userName = record.get(csvColumnMappingProperties.getProperty(key_userName).split(",")[0]);
-//                    LOGGER.info("Setting user's username.: " + csvColumnMappingProperties.getProperty(key_userName).split(",")[0]);
-                    LOGGER.debug("Setting user's username.: " + userName);
-                    user.setUserName(userName);
-                    LOGGER.debug("Finished setting username");
-                    
-                    // Set ID (SCIM Required)
-                    user.setId(record.get(csvColumnMappingProperties.getProperty(key_id).split(",")[0]));
-                    LOGGER.debug("Finished setting user's ID");
-                    
-                    // Set user 'Active' status - If the value in the Column for 'Active' matches the value defined in the application.properties 'userActiveValueInCSV' value
-                    // user.setActive(Boolean.parseBoolean(record.get(csvColumnMappingProperties.getProperty(key_user_active).split(",")[0])));
-                     
-                    user.setActive(isUserActive);
-                    LOGGER.debug("Finished setting user's Active status to: " + isUserActive);
-                    
-                    // Set user 'Name' status                
-                    Name name = new Name(record.get(csvColumnMappingProperties.getProperty(key_familyName).split(",")[0]) + " " + record.get(csvColumnMappingProperties.getProperty(key_givenName).split(",")[0]), 
-                    		record.get(csvColumnMappingProperties.getProperty(key_familyName).split(",")[0]), record.get(csvColumnMappingProperties.getProperty(key_givenName).split(",")[0]));
-                    user.setName(name);
-                    LOGGER.debug("Finished setting user's 'Name'");
-                    
-                    // Set user 'Email' status
-                    Email email = new Email(record.get(csvColumnMappingProperties.getProperty(key_email).split(",")[0]), "work", true);
-                    Collection<Email> emails = new ArrayList<Email>();
-                    emails.add(email);
-                    user.setEmails(emails);
-                    LOGGER.debug("Finished setting user's 'Email'");
-                                   
-                    // Set user 'Password'
-                    if((csvColumnMappingProperties.getProperty(key_user_password) != null) && (!csvColumnMappingProperties.getProperty(key_user_password).isEmpty())){
-                    	user.setPassword(record.get(csvColumnMappingProperties.getProperty(key_user_password).split(",")[0]));
-                        LOGGER.debug("Finished setting user's password");                	
-                    }
-                    
-                    
+                //Resolve the column mapping against the header once, instead of looking up and splitting the mapping for every field
+                CSVMappingPlan mappingPlan = CSVMappingPlan.compile(columnMapping, csvFileParser.getHeaderMap(),
+                        userInactiveValue, customSchemaName);
+                UserRowConverter converter = load.converter(mappingPlan, uploadedCSV.getName());
+                
+                //Stream the CSV file records one at a time (the header is consumed by the parser) so that only the users
+                //built so far are kept on the heap, never the whole file's worth of records.
+                long inactive = 0;
+                for (CSVRecord record : csvFileParser) {
+                    recordCount++;
                     
-                    while (e.hasMoreElements()) {
-                        String key = (String) e.nextElement();
-                        LOGGER.debug("Enumerating Custom elements. e: " + key);
-                        LOGGER.debug("SCIMVariable? : " + csvColumnMappingProperties.getProperty(key).split(",")[2]);
-                        if((!csvColumnMappingProperties.getProperty(key).isEmpty()) 
-                        		&& (csvColumnMappingProperties.getProperty(key).split(",")[2].toLowerCase().equals("isNotSCIMVariable".toLowerCase()))){
-                        	LOGGER.debug("Found a Custom column. e: " + key);
-                        	if(csvColumnMappingProperties.getProperty(key).split(",")[1].equals("String")){
-                        		user.setCustomStringValue(applicationProperties.getProperty("customSchemaName"), key,
-                        				record.get(csvColumnMappingProperties.getProperty(key).split(",")[0]));
-                        	}
-                        	else if(csvColumnMappingProperties.getProperty(key).split(",")[1].equals("Boolean")) {
-                        		user.setCustomBooleanValue(applicationProperties.getProperty("customSchemaName"), key,
-                        				Boolean.parseBoolean(record.get(csvColumnMappingProperties.getProperty(key).split(",")[0])));
-                        	}
-                        	else if(csvColumnMappingProperties.getProperty(key).split(",")[1].equals("Integer")){
-                        		user.setCustomIntValue(applicationProperties.getProperty("customSchemaName"), key,
-                        				Integer.parseInt(record.get(csvColumnMappingProperties.getProperty(key).split(",")[0])));
-                        	}
-                        	else if(csvColumnMappingProperties.getProperty(key).split(",")[1].equals("Double")){
-                        		user.setCustomDoubleValue(applicationProperties.getProperty("customSchemaName"), key,
-                        				Double.parseDouble(record.get(csvColumnMappingProperties.getProperty(key).split(",")[0])));
-                        	}
-                        }
-                      }
-                    userMap.put(user.getId(), user);
+                    // Only load the user if they are an active user and the record is valid, otherwise quarantine it.
+                    inactive += add(load, converter.convert(CSVFields.of(record), recordCount));
                 }
-            	
-                
-			}
-            saveProcessedFile(uploadedCSV);
+                load.countInactive(inactive);
+            }
+            load.finish();
+            
+            LOGGER.info("Number of CSV records: {}", recordCount);
+            return recordCount;
         } 
         catch (Exception e) {
         	LOGGER.error("Error in CsvFileReader !!!", e);
-            e.printStackTrace();
             throw new SCIMSerializationException(e);
         } finally {
             try {
-                fileReader.close();
-                csvFileParser.close();
+                if (csvFileParser != null) {
+                    csvFileParser.close();
+                }
+                if (fileReader != null) {
+                    fileReader.close();
+                }
+                if (fileInput != null) {
+                    fileInput.close();
+                }
             } catch (IOException e) {
-            	LOGGER.error("Error while closing fileReader/csvFileParser !!!");
-                e.printStackTrace();
+            	LOGGER.error("Error while closing fileReader/csvFileParser !!!", e);
             }
         }
     }
     
-    // All SCIM Variables and columns marked: 'isMandatory' are mandatory
-    private static Boolean checkIfAllMandatoryFieldsArePopulated(Properties csvColumnMappingProperties,
-			CSVRecord record) {
-    	LOGGER.debug("In 'checkIfAllMandatoryFieldsArePopulated'");
-    	 Enumeration e = csvColumnMappingProperties.propertyNames();
-    	 while (e.hasMoreElements()){
-    		 String key = (String) e.nextElement();
-             LOGGER.debug("Enumerating elements. e: " + key);
-             
-             // If The property is not empty AND (It is a SCIM Variable OR It is a mandatory field)
-             Boolean isPropertyEmpty = csvColumnMappingProperties.getProperty(key).isEmpty();
-             Boolean isSCIMVariable = csvColumnMappingProperties.getProperty(key).split(",")[2].toLowerCase().equals("isSCIMVariable".toLowerCase());
-             Boolean isMandatory = csvColumnMappingProperties.getProperty(key).split(",")[3].toLowerCase().equals("isMandatory".toLowerCase());
-             
-             
-             if((!isPropertyEmpty) && (isSCIMVariable || isMandatory)){
-            	 // Check that all the fields are not empty
-            	 String value = record.get(csvColumnMappingProperties.getProperty(key).split(",")[0]);
-            	 LOGGER.debug("Check to see if the field is empty. Value: " + value);
-            	 
-            	 if (value.trim().isEmpty()){
-            		 return false;
-            	 }
-             }
-    	 }
-		return true;
-	}
+    /**
+     * Add a converted record to a load, as a user or a rejected record.
+     *
+     * @return 1 if the record was skipped because the user is inactive, 0 otherwise
+     */
+    private static int add(UserLoad load, UserRowConverter.Row row) {
+        if (row == null) {
+            return 1;
+        }
+        if (row.isRejected()) {
+            load.reject(row.getRejection());
+        } else {
+            load.add(row);
+        }
+        return 0;
+    }
 
-	private static void saveProcessedFile(File uploadedCSV) {
-    	Properties applicationProperties = loadProperties("application");
-    	
-    	DateFormat df = new SimpleDateFormat("dd_MM_yy__HH_mm_ss");
-    	Calendar calobj = Calendar.getInstance();
-    	
-		String destination = applicationProperties.getProperty("csvProcessedFolder") + File.separator + "users_" + df.format(calobj.getTime()) + ".csv";
-    	File destFile = new File(destination);
-		
-	    InputStream is = null;
-	    OutputStream os = null;
-	    try {
-	        is = new FileInputStream(uploadedCSV);
-	        os = new FileOutputStream(destFile);
-	        byte[] buffer = new byte[1024];
-	        int length;
-	        while ((length = is.read(buffer)) > 0) {
-	            os.write(buffer, 0, length);
-	        }
-	    }
-	    catch (Exception ex)
-	    {
-	    	
-	    }
-	    finally {
-	        try {
-				is.close();
-				os.close();
-			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
-	    }
-	}
+    /**
+     * Read the users of several files into a load, one file per thread, e.g. the shards of an export. The rows are
+     * merged in the order of the list, so for an id found in several files the row of the last one wins.
+     *
+     * @param load
+     * @param usersFiles
+     * @param config
+     * @return the number of CSV records read
+     */
+    public static long readUsersFromCSV(UserLoad load, List<File> usersFiles, ConnectorConfig config) throws SCIMSerializationException {
+        try {
+            int parallelism = config.getParallelLoadThreads();
+            LOGGER.info("Reading {} CSV files on {} threads", usersFiles.size(), Math.min(parallelism, usersFiles.size()));
+            long recordCount = MultiFileCSVReader.readUsers(load, usersFiles, config, parallelism);
+            load.finish();
+            LOGGER.info("Number of CSV records: {}", recordCount);
+            return recordCount;
+        } catch (Exception e) {
+            LOGGER.error("Error in CsvFileReader !!!", e);
+            throw new SCIMSerializationException(e);
+        }
+    }
 
-	public static File lastFileModified(String dir) {
-        File fl = new File(dir);
-        File[] files = fl.listFiles(new FileFilter() {          
+    /**
+     * The parallel load is used when 'csvParallelLoad' is true and the file is at least 'csvParallelLoadMinFileSize'
+     * bytes long. 'csvParallelLoadThreads' defaults to the number of available processors.
+     *
+     * @return the number of threads to read the file with, 1 to read it sequentially
+     */
+    private static int getParallelLoadThreads(ConnectorConfig config, File uploadedCSV) {
+        if (!Boolean.parseBoolean(config.getProperty("csvParallelLoad"))) {
+            return 1;
+        }
+        long minFileSize = Long.parseLong(config.getProperty("csvParallelLoadMinFileSize", "16777216"));
+        if (uploadedCSV.length() < minFileSize) {
+            return 1;
+        }
+        return config.getParallelLoadThreads();
+    }
+    
+    /**
+     * Find the most recently modified file of a drop directory with the given extension.
+     *
+     * @param dir the directory
+     * @param extension the file extension, e.g. ".csv". Compared ignoring case.
+     * @return the newest matching file, or null if there is none or the directory cannot be read
+     */
+    public static File lastFileModified(String dir, final String extension) {
+        File[] files = new File(dir).listFiles(new FileFilter() {
             public boolean accept(File file) {
-                return file.isFile();
+                return file.isFile() && file.getName().toLowerCase().endsWith(extension.toLowerCase());
             }
         });
+        if (files == null) {
+            return null;
+        }
         long lastMod = Long.MIN_VALUE;
         File choice = null;
         for (File file : files) {
@@ -267,36 +239,35 @@ public class SCIMConnectorUtil {
         return choice;
     }
 
-    public static Properties loadProperties(String property){
-    	Properties prop = new Properties();
-    	InputStream input = null;
-    	//CSVColumnMapping
-
-    	try {
-//    		// What's the best way to have this as a property variable? 
-//    		input = new FileInputStream("C:\\Servers\\" + property + ".properties");
-//    		
-    		File configDir = new File(System.getProperty("catalina.base"), "conf");
-    		File configFile = new File(configDir, property + ".properties");
-    		input = new FileInputStream(configFile);
-    		LOGGER.info("Config file: " + configFile.getPath());
-
-    		// load a properties file
-    		prop.load(input);
-    		
-    		return prop;
+    /**
+     * List the files of a drop directory with the given extension.
+     *
+     * @param dir the directory
+     * @param extension the file extension, e.g. ".csv". Compared ignoring case.
+     * @return the matching files sorted by name, empty if there is none or the directory cannot be read
+     */
+    public static List<File> listFiles(String dir, final String extension) {
+        File[] files = new File(dir).listFiles(new FileFilter() {
+            public boolean accept(File file) {
+                return file.isFile() && file.getName().toLowerCase().endsWith(extension.toLowerCase());
+            }
+        });
+        if (files == null) {
+            return new ArrayList<File>();
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            public int compare(File a, File b) {
+                return a.getName().compareTo(b.getName());
+            }
+        });
+        return new ArrayList<File>(Arrays.asList(files));
+    }
 
-    	} catch (IOException ex) {
-    		ex.printStackTrace();
-    	} finally {
-    		if (input != null) {
-    			try {
-    				input.close();
-    			} catch (IOException e) {
-    				e.printStackTrace();
-    			}
-    		}
-    	}
-    	return null;
-    }    
+    /**
+     * @param name the name of a configuration file, without the .properties extension
+     * @return the file in the conf folder of the Tomcat instance
+     */
+    public static File configFile(String name) {
+        return new File(new File(System.getProperty("catalina.base"), "conf"), name + ".properties");
+    }
 }
@@ -8,8 +8,6 @@ import com.okta.scim.server.exception.DuplicateGroupException;
 import com.okta.scim.server.exception.EntityNotFoundException;
 import com.okta.scim.server.exception.OnPremUserManagementException;
 import com.okta.scim.server.service.SCIMService;
-import com.okta.scim.util.model.Email;
-import com.okta.scim.util.model.Name;
 import com.okta.scim.util.model.PaginationProperties;
 import com.okta.scim.util.model.SCIMFilter;
 import com.okta.scim.util.model.SCIMFilterType;
@@ -17,49 +15,132 @@ import com.okta.scim.util.model.SCIMGroup;
 import com.okta.scim.util.model.SCIMGroupQueryResponse;
 import com.okta.scim.util.model.SCIMUser;
 import com.okta.scim.util.model.SCIMUserQueryResponse;
-import org.codehaus.jackson.JsonNode;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.util.StringUtils;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 public class SCIMServiceImpl implements SCIMService {
     //Absolute path for users.json set in the dispatcher-servlet.xml
     private String usersFilePath;
     //Absolute path for groups.json set in the dispatcher-servlet.xml
     private String groupsFilePath;
-    private Map<String, SCIMUser> userMap = new HashMap<String, SCIMUser>();
-    private Map<String, SCIMGroup> groupMap = new HashMap<String, SCIMGroup>();
-    private String userCustomUrn;
     private boolean useFilePersistence = true;
+    private UserCache userCache;
+    private UsersFileWatcher usersFileWatcher;
+    private ProcessedFileArchiver processedFileArchiver;
+    private UserSnapshotFile userSnapshotFile;
+    private UserJournal userJournal;
+    private ConnectorMetrics metrics;
+    private RequestAdmission admission;
+    private ResponseCache responseCache;
+    private SampledLogger requestLog;
+    private final SampledLogger unsupportedFilterLog = new SampledLogger(LOGGER, 60000);
 
     private static final Logger LOGGER = LoggerFactory.getLogger(SCIMServiceImpl.class);
 
     @PostConstruct
     public void afterCreation() throws Exception {
     	LOGGER.debug("In 'afterCreation'");
-    	Properties applicationProperties = SCIMConnectorUtil.loadProperties("application");
-        userCustomUrn = applicationProperties.getProperty("customSchemaName");
-        String tmpUserFilePath = applicationProperties.getProperty("usersFilePath");
+    	ConnectorConfig config = ConnectorConfig.get();
+        String tmpUserFilePath = config.getProperty("usersFilePath");
         if(!tmpUserFilePath.isEmpty()){
         	setUsersFilePath(tmpUserFilePath);
         }
-        LOGGER.debug("userCustomUrn: " + userCustomUrn);
+        String tmpGroupsFilePath = config.getProperty("groupsFilePath", "");
+        if (!tmpGroupsFilePath.isEmpty()) {
+            setGroupsFilePath(tmpGroupsFilePath);
+        }
+        LOGGER.debug("customSchemaName: {}", config.getCustomSchemaName());
+        requestLog = new SampledLogger(LOGGER, Long.parseLong(config.getProperty("requestLogIntervalMillis", "0")));
+        long minRefreshIntervalMillis = Long.parseLong(config.getProperty("cacheMinRefreshIntervalMillis", "1000"));
+        List<String> indexedCustomAttributes = new ArrayList<String>();
+        for (String attribute : StringUtils.commaDelimitedListToStringArray(config.getProperty("indexedCustomAttributes", ""))) {
+            if (!attribute.trim().isEmpty()) {
+                indexedCustomAttributes.add(attribute.trim());
+            }
+        }
+        boolean incrementalReload = Boolean.parseBoolean(config.getProperty("incrementalReload"));
+        userCache = new UserCache(usersFilePath, minRefreshIntervalMillis, indexedCustomAttributes, incrementalReload);
+        processedFileArchiver = new ProcessedFileArchiver();
+        userCache.setArchiver(processedFileArchiver);
+        if (!StringUtils.isEmpty(groupsFilePath)) {
+            userCache.setGroupsFile(new File(groupsFilePath));
+        }
+        metrics = new ConnectorMetrics(userCache);
+        userCache.setMetrics(metrics);
+        admission = RequestAdmission.of(config);
+        metrics.setAdmission(admission);
+        responseCache = ResponseCache.of(config);
+        metrics.setResponseCache(responseCache);
+        metrics.register();
+        String userSnapshotPath = config.getProperty("userSnapshotFile");
+        if (userSnapshotPath != null && !userSnapshotPath.trim().isEmpty()) {
+            userSnapshotFile = new UserSnapshotFile(new File(userSnapshotPath.trim()));
+            userCache.setSnapshotFile(userSnapshotFile);
+        }
         initPersistence();
         if (useFilePersistence) {
-            updateCache();
+            //The provisioned users are applied over the users file from the first load on
+            if (!StringUtils.isEmpty(usersFilePath)) {
+                userJournal = new UserJournal(journalFile(config.getProperty("usersJournalFile")));
+                userCache.setJournal(userJournal,
+                        Integer.parseInt(config.getProperty("usersJournalCompactEntries", "1000")),
+                        Integer.parseInt(config.getProperty("usersJournalOverlayMaxUsers", "10000")));
+            }
+            //Serve the persisted users right away and only check the users file in the background
+            if (userCache.restore()) {
+                userCache.refreshInBackground();
+            } else {
+                updateCache();
+            }
+            if (Boolean.parseBoolean(config.getProperty("usersFileWatch"))) {
+                usersFileWatcher = new UsersFileWatcher(userCache, usersFilePath,
+                        Long.parseLong(config.getProperty("usersFileWatchPollMillis", "5000")),
+                        Long.parseLong(config.getProperty("usersFileQuietPeriodMillis", "2000")),
+                        config.getProperty("usersFileReadyMarkerSuffix"));
+                usersFileWatcher.start();
+            }
             return;
         }
     }
 
+    @PreDestroy
+    public void beforeDestruction() {
+        LOGGER.debug("In 'beforeDestruction'");
+        if (usersFileWatcher != null) {
+            usersFileWatcher.stop();
+        }
+        processedFileArchiver.shutdown();
+        userCache.closeJournal();
+        if (userSnapshotFile != null) {
+            userSnapshotFile.shutdown();
+        }
+        metrics.unregister();
+    }
+
+    /**
+     * @return the configured journal file, by default next to the users file, or in the drop folder
+     */
+    private File journalFile(String configuredPath) {
+        if (configuredPath != null && !configuredPath.trim().isEmpty()) {
+            return new File(configuredPath.trim());
+        }
+        File usersFile = new File(usersFilePath);
+        if (usersFile.isDirectory()) {
+            return new File(usersFile, "users.journal");
+        }
+        return new File(usersFilePath + ".journal");
+    }
+
     private void initPersistence() throws Exception {
         //Both the usersFilePath and groupsFilePath should be present to consider to use the files to read/write.
         if (!StringUtils.isEmpty(usersFilePath) && !StringUtils.isEmpty(groupsFilePath)) {
@@ -107,6 +188,14 @@ public class SCIMServiceImpl implements SCIMService {
         this.groupsFilePath = groupsFilePath;
     }
 
+    public UserCache getUserCache() {
+        return userCache;
+    }
+
+    public ConnectorMetrics getMetrics() {
+        return metrics;
+    }
+
     /**
      * Get all the users.
      * <p>
@@ -122,12 +211,61 @@ public class SCIMServiceImpl implements SCIMService {
      */
     @Override
     public SCIMUserQueryResponse getUsers(PaginationProperties pageProperties, SCIMFilter filter) throws OnPremUserManagementException {
-    	LOGGER.info("In 'SCIMUserQueryResponse - First 1'.");
+        admission.acquire("getUsers");
+        long startNanos = System.nanoTime();
+        SCIMUserQueryResponse response = null;
+        try {
+            response = getUsersTimed(pageProperties, filter);
+            return response;
+        } finally {
+            admission.release();
+            metrics.recordOperation(ConnectorMetrics.Operation.GET_USERS, startNanos, response == null);
+            logGetUsers(pageProperties, filter, response, startNanos);
+        }
+    }
+
+    /**
+     * Log one summary line per getUsers request, instead of a line per step.
+     */
+    private void logGetUsers(PaginationProperties pageProperties, SCIMFilter filter, SCIMUserQueryResponse response,
+                             long startNanos) {
+        if (!LOGGER.isInfoEnabled()) {
+            return;
+        }
+        long elapsedMicros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos);
+        requestLog.info("getUsers startIndex={} count={} filter={} returned={} total={} elapsedMicros={}",
+                pageProperties == null ? "-" : pageProperties.getStartIndex(),
+                pageProperties == null ? "-" : pageProperties.getCount(),
+                filter == null ? "-" : describe(filter),
+                response == null ? "failed" : response.getScimUsers().size(),
+                response == null ? "-" : response.getTotalResults(),
+                elapsedMicros);
+    }
+
+    /**
+     * @return the type and attributes of a filter, without its values
+     */
+    private static String describe(SCIMFilter filter) {
+        if (filter.getFilterExpressions() != null && !filter.getFilterExpressions().isEmpty()) {
+            StringBuilder description = new StringBuilder(filter.getFilterType().name()).append('(');
+            for (int i = 0; i < filter.getFilterExpressions().size(); i++) {
+                description.append(i == 0 ? "" : ",").append(describe(filter.getFilterExpressions().get(i)));
+            }
+            return description.append(')').toString();
+        }
+        String attribute = filter.getFilterAttribute() == null ? "?" : filter.getFilterAttribute().getAttributeName();
+        if (filter.getFilterAttribute() != null && filter.getFilterAttribute().getSubAttributeName() != null) {
+            attribute += "." + filter.getFilterAttribute().getSubAttributeName();
+        }
+        return filter.getFilterType().name() + "(" + attribute + ")";
+    }
+
+    private SCIMUserQueryResponse getUsersTimed(PaginationProperties pageProperties, SCIMFilter filter) {
         List<SCIMUser> users = null;
         // Update the cache if the file hasn't been modified
         //updateCache();
         if (filter != null) {
-        	LOGGER.info("Filter value: " + filter.getFilterValue());
+            LOGGER.debug("Filter value: {}", filter.getFilterValue());
             //Get users based on a filter
             users = getUserByFilter(filter);
             //Example to show how to construct a SCIMUserQueryResponse and how to set stuff.
@@ -140,7 +278,6 @@ public class SCIMServiceImpl implements SCIMService {
             //The input has some page properties => Set the start index.
             if (pageProperties != null) {
                 response.setStartIndex(pageProperties.getStartIndex());
-                LOGGER.info("pageProperties Start Index: " + pageProperties.getStartIndex());
             }
             return response;
         } else {
@@ -149,10 +286,8 @@ public class SCIMServiceImpl implements SCIMService {
     }
     
     private SCIMUserQueryResponse getUsers(PaginationProperties pageProperties) {
-    	LOGGER.info("In 'SCIMUserQueryResponse - Second'");
-    	
-    	// Update the cache if the file hasn't been modified
-        updateCache();
+    	// Update the cache if the file has been modified. The whole page is served from this one snapshot.
+        UserSnapshot snapshot = updateCache();
     	
         SCIMUserQueryResponse response = new SCIMUserQueryResponse();
         /**
@@ -162,46 +297,42 @@ public class SCIMServiceImpl implements SCIMService {
          * <b>Note:</b> You can throw this exception from all the CRUD (Create/Retrieve/Update/Delete) operations defined on
          * Users/Groups in the SCIM interface.
          */
-        if (userMap == null) {
+        if (snapshot == null) {
             //Note that the Error Code "o34567" is arbitrary - You can use any code that you want to.
-            throw new OnPremUserManagementException("o34567", "Cannot get the users. The userMap is null");
+            throw new OnPremUserManagementException("o34567", "Cannot get the users. The user snapshot is null");
+        }
+
+        //A page asked again on the same snapshot, e.g. by a repeated import, is not built again
+        if (pageProperties != null) {
+            SCIMUserQueryResponse cached = responseCache.getPage(snapshot.getVersion(),
+                    pageProperties.getStartIndex(), pageProperties.getCount());
+            if (cached != null) {
+                return cached;
+            }
         }
 
-        int totalResults = userMap.size();
+        //The total is taken from the same snapshot as the page, so they are always consistent
+        int totalResults = snapshot.size();
         response.setTotalResults(totalResults);
-        List<SCIMUser> users = new ArrayList<SCIMUser>();
+        List<SCIMUser> users;
         if (pageProperties != null) {
             //Set the start index to the response.
             response.setStartIndex(pageProperties.getStartIndex());
-            LOGGER.info("pageProperties Start Index: " + pageProperties.getStartIndex() + "\nCount: " + pageProperties.getCount());
-           
-            int startCount = (int)pageProperties.getStartIndex();
-            int endCount = startCount + pageProperties.getCount();
-            int count = 1;
-            for (String key : userMap.keySet()) {
-            	LOGGER.info(key + " count: " + count + " startCount: " + startCount + " endCount: " + endCount);
-            	if(count >= startCount && count < endCount){
-            		users.add(userMap.get(key));
-            		LOGGER.info("Adding this person: " +key);
-            	}
-            	else if (count > endCount){
-            		break;
-            	}
-            	count++;
-            }
+            //The page is a slice of the ordered users of the snapshot
+            users = snapshot.getPage(pageProperties.getStartIndex(), pageProperties.getCount());
         }
         else
         {
-        	LOGGER.info("pageProperties is null");
-            for (String key : userMap.keySet()) {
-            	users.add(userMap.get(key));
-        		LOGGER.info("Adding this person: " +key);
-            }
+            users = snapshot.getAllUsers();
         }
         
         
         //Set the actual results
         response.setScimUsers(users);
+        if (pageProperties != null) {
+            responseCache.putPage(snapshot.getVersion(), pageProperties.getStartIndex(), pageProperties.getCount(),
+                    response);
+        }
         return response;
     }
     
@@ -221,154 +352,39 @@ public class SCIMServiceImpl implements SCIMService {
      * Of the few multi valued attributes part of the SCIM Core Schema (Like email, address, phone number), only email would be supported as a UserIdField name on Okta.
      * So, you would have to deal with OR filters only if you choose email.
      * <p/>
-     * When you get a <code>SCIMFilter</code>, you should check the filter field name (And make sure it is the same field which was configured with Okta), value, condition, etc. as shown in the examples below.
+     * The filter is converted to a {@link UserFilter} and answered by a {@link UserFilterEngine}, from the indexes of the
+     * snapshot where one covers the attribute. The SDK only delivers EQUALS and OR filters, any other filter is UNKNOWN.
+     * Custom attributes are recognized by their schema, e.g.
+     * "urn:okta:onprem_app:1.0:user:custom:departmentName eq "someValue"".
      *
      * @param filter the SCIM filter
-     * @return list of users that match the filter
+     * @return list of users that match the filter, in snapshot order
      */
     private List<SCIMUser> getUserByFilter(SCIMFilter filter) {
-        List<SCIMUser> users = new ArrayList<SCIMUser>();
-
+        UserSnapshot snapshot = userCache.getSnapshot();
         SCIMFilterType filterType = filter.getFilterType();
 
-        if (filterType.equals(SCIMFilterType.EQUALS)) {
-            //Example to show how to deal with an Equality filter
-            users = getUsersByEqualityFilter(filter);
-        } else if (filterType.equals(SCIMFilterType.OR)) {
-            //Example to show how to deal with an OR filter containing multiple sub-filters.
-            users = getUsersByOrFilter(filter);
-        } else {
-            LOGGER.error("The Filter " + filter + " contains a condition that is not supported");
+        //Read on every request, customSchemaName can be changed without a restart
+        UserFilter userFilter = UserFilter.of(filter, ConnectorConfig.get().getCustomSchemaName());
+        if (userFilter == null) {
+            metrics.recordFilter(filterType, false);
+            unsupportedFilterLog.error("The Filter {} contains a condition that is not supported", describe(filter));
+            return new ArrayList<SCIMUser>();
         }
-        return users;
+        metrics.recordFilter(filterType, true);
+        LOGGER.debug("Filter : {}", userFilter);
+        return snapshot.getUsers(new UserFilterEngine(snapshot, metrics).find(userFilter));
     }
-    
-    /**
-     * This is an example of how to deal with an equality filter.<p>
-     * If you choose a custom field/complex field (name.familyName) or any other singular field (userName/externalId), you should get an equality filter here.
-     *
-     * @param filter the EQUALS filter
-     * @return list of users that match the filter
-     */
-    private List<SCIMUser> getUsersByEqualityFilter(SCIMFilter filter) {
-        String fieldName = filter.getFilterAttribute().getAttributeName();
-        String value = filter.getFilterValue();
-        LOGGER.info("Equality Filter : Field Name [ " + fieldName + " ]. Value [ " + value + " ]");
-        List<SCIMUser> users = new ArrayList<SCIMUser>();
-
-        //A basic example of how to return users that match the criteria
-        for (Map.Entry<String, SCIMUser> entry : userMap.entrySet()) {
-            SCIMUser user = entry.getValue();
-            boolean userFound = false;
-            //Ex : "userName eq "someUserName""
-            if (fieldName.equalsIgnoreCase("userName")) {
-                String userName = user.getUserName();
-                if (userName != null && userName.equals(value)) {
-                    userFound = true;
-                }
-            } else if (fieldName.equalsIgnoreCase("id")) {
-                //"id eq "someId""
-                String id = user.getId();
-                if (id != null && id.equals(value)) {
-                    userFound = true;
-                }
-            } else if (fieldName.equalsIgnoreCase("name")) {
-                String subFieldName = filter.getFilterAttribute().getSubAttributeName();
-                Name name = user.getName();
-                if (name == null || subFieldName == null) {
-                    continue;
-                }
-                if (subFieldName.equalsIgnoreCase("familyName")) {
-                    //"name.familyName eq "someFamilyName""
-                    String familyName = name.getLastName();
-                    if (familyName != null && familyName.equals(value)) {
-                        userFound = true;
-                    }
-                } else if (subFieldName.equalsIgnoreCase("givenName")) {
-                    //"name.givenName eq "someGivenName""
-                    String givenName = name.getFirstName();
-                    if (givenName != null && givenName.equals(value)) {
-                        userFound = true;
-                    }
-                }
-            } else if (filter.getFilterAttribute().getSchema().equalsIgnoreCase(userCustomUrn)) { //Check that the Schema name is the Custom Schema name to process the filter for custom fields
-                /**
-                 * The example below shows one of the two ways to get a custom property.<p>
-                 * The other way is to use the getter directly to get the value - user.getCustomStringProperty("urn:okta:onprem_app:1.0:user:custom", fieldName, null) will get the value
-                 * if the fieldName is a root element. If fieldName is a child of any other field, user.getCustomStringProperty("urn:okta:onprem_app:1.0:user:custom", fieldName, parentName)
-                 * will get the value.
-                 */
-                //"urn:okta:onprem_app:1.0:user:custom:departmentName eq "someValue""
-                Map<String, JsonNode> customPropertiesMap = user.getCustomPropertiesMap();
-                //Get the custom properties map (SchemaName -> JsonNode)
-                if (customPropertiesMap == null || !customPropertiesMap.containsKey(userCustomUrn)) {
-                    continue;
-                }
-                //Get the JsonNode having all the custom properties for this schema
-                JsonNode customNode = customPropertiesMap.get(userCustomUrn);
-                //Check if the node has that custom field
-                if (customNode.has(fieldName) && customNode.get(fieldName).asText().equalsIgnoreCase(value)) {
-                    userFound = true;
-                }
-            }
 
-            if (userFound) {
-                users.add(user);
-            }
-        }
-        return users;
-    }
-    
-    /**
-     * This is an example for how to deal with an OR filter. An OR filter consists of multiple sub equality filters.
-     *
-     * @param filter the OR filter with a set of sub filters expressions
-     * @return list of users that match any of the filters
-     */
-    private List<SCIMUser> getUsersByOrFilter(SCIMFilter filter) {
-        //An OR filter would contain a list of filter expression. Each expression is a SCIMFilter by itself.
-        //Ex : "email eq "abc@def.com" OR email eq "def@abc.com""
-        List<SCIMFilter> subFilters = filter.getFilterExpressions();
-        LOGGER.info("OR Filter : " + subFilters);
-        List<SCIMUser> users = new ArrayList<SCIMUser>();
-        //Loop through the sub filters to evaluate each of them.
-        //Ex : "email eq "abc@def.com""
-        for (SCIMFilter subFilter : subFilters) {
-            //Name of the sub filter (email)
-            String fieldName = subFilter.getFilterAttribute().getAttributeName();
-            //Value (abc@def.com)
-            String value = subFilter.getFilterValue();
-            //For all the users, check if any of them have this email
-            for (Map.Entry<String, SCIMUser> entry : userMap.entrySet()) {
-                boolean userFound = false;
-                SCIMUser user = entry.getValue();
-                //In this example, since we assume that the field name configured with Okta is "email", checking if we got the field name as "email" here
-                if (fieldName.equalsIgnoreCase("email")) {
-                    //Get the user's emails and check if the value is the same as in the filter
-                    Collection<Email> emails = user.getEmails();
-                    if (emails != null) {
-                        for (Email email : emails) {
-                            if (email.getValue().equalsIgnoreCase(value)) {
-                                userFound = true;
-                                break;
-                            }
-                        }
-                    }
-                }
-                if (userFound) {
-                    users.add(user);
-                }
-            }
-        }
-        return users;
-    }
-    
     /**
      * Get all the groups.
      * <p>
      * This method is invoked when a GET is made to /Groups
      * In order to support pagination (So that the client and the server) are not overwhelmed, this method supports querying based on a start index and the
-     * maximum number of results expected by the client. The implementation is responsible for maintaining indices for the SCIM groups.
+     * maximum number of results expected by the client.
+     * <p>
+     * The groups come from the 'groupsMembershipAttribute' of the users and from the groups file. The page is a slice
+     * of the groups of one snapshot, and the members of every group are read from its membership index.
      *
      * @param pageProperties @see com.okta.scim.util.model.PaginationProperties An object holding the properties needed for pagination - startindex and the count.
      * @return SCIMGroupQueryResponse the response from the server containing the total number of results, start index and the items per page along with a list of groups
@@ -377,22 +393,28 @@ public class SCIMServiceImpl implements SCIMService {
      */
     @Override
     public SCIMGroupQueryResponse getGroups(PaginationProperties pageProperties) throws OnPremUserManagementException {
-        SCIMGroupQueryResponse response = new SCIMGroupQueryResponse();
-        int totalResults = groupMap.size();
-        if (pageProperties != null) {
-            //Set the start index
-            response.setStartIndex(pageProperties.getStartIndex());
-        }
-        //In this example we are setting the total results to the number of results in this page. If there are more
-        //results than the number the client asked for (pageProperties.getCount()), then you need to set the total results correctly
-        response.setTotalResults(totalResults);
-        List<SCIMGroup> groups = new ArrayList<SCIMGroup>();
-        for (String key : groupMap.keySet()) {
-            groups.add(groupMap.get(key));
+        admission.acquire("getGroups");
+        long startNanos = System.nanoTime();
+        boolean failed = true;
+        try {
+            //The groups are built with the users, checking the users file also checks the groups file
+            UserSnapshot snapshot = updateCache();
+            SCIMGroupQueryResponse response = new SCIMGroupQueryResponse();
+            response.setTotalResults(snapshot.getGroupCount());
+            List<SCIMGroup> groups;
+            if (pageProperties != null) {
+                response.setStartIndex(pageProperties.getStartIndex());
+                groups = snapshot.getGroupPage(pageProperties.getStartIndex(), pageProperties.getCount());
+            } else {
+                groups = snapshot.getGroupPage(1, snapshot.getGroupCount());
+            }
+            response.setScimGroups(groups);
+            failed = false;
+            return response;
+        } finally {
+            admission.release();
+            metrics.recordOperation(ConnectorMetrics.Operation.GET_GROUPS, startNanos, failed);
         }
-        //Set the actual results
-        response.setScimGroups(groups);
-        return response;
     }
 
     /**
@@ -409,70 +431,238 @@ public class SCIMServiceImpl implements SCIMService {
      */
     @Override
     public UserManagementCapabilities[] getImplementedUserManagementCapabilities() {
-        return UserManagementCapabilities.values();
+        //The groups are read from the files, they cannot be pushed from Okta
+        List<UserManagementCapabilities> capabilities = new ArrayList<UserManagementCapabilities>();
+        for (UserManagementCapabilities capability : UserManagementCapabilities.values()) {
+            if (capability != UserManagementCapabilities.GROUP_PUSH) {
+                capabilities.add(capability);
+            }
+        }
+        return capabilities.toArray(new UserManagementCapabilities[capabilities.size()]);
     }
 
     /**
-     * Update the cache based on the data stored in the files
+     * Update the cache based on the data stored in the files. The file is only parsed again if it has changed.
+     * <p>
+     * Readers are never blocked by a reload: they keep getting the previously published snapshot until the new one is
+     * complete.
+     *
+     * @return the snapshot to serve the request from
      */
-    private synchronized void updateCache() {
-    	LOGGER.debug("In 'updateCache' function");
-        //Nothing to update if persistence is not enabled
-        if (!useFilePersistence) {
-            return;
+    private UserSnapshot updateCache() {
+    	LOGGER.trace("In 'updateCache' function");
+        //Nothing to update if persistence is not enabled, or if the watcher keeps the cache up to date
+        if (!useFilePersistence || (usersFileWatcher != null && usersFileWatcher.isRunning())) {
+            return userCache.getSnapshot();
         }
 
         try {
-        	LOGGER.debug("About to call the 'readUsersFromCSV' function. usersFilePath: " + usersFilePath);
-        	userMap.clear();
-        	SCIMConnectorUtil.readUsersFromCSV(userMap, usersFilePath);
+        	return userCache.refresh();
         } catch (Exception e) {
             throw new OnPremUserManagementException("Exception in building the user cache from the file [" + usersFilePath + "]", e);
         }
     }
 
+    /**
+     * The groups are read from the users file and the groups file, they cannot be pushed from Okta.
+     *
+     * @throws com.okta.scim.server.exception.DuplicateGroupException if the group already exists
+     * @throws com.okta.scim.server.exception.OnPremUserManagementException otherwise
+     */
 	@Override
-	public SCIMGroup createGroup(SCIMGroup arg0) throws OnPremUserManagementException, DuplicateGroupException {
-		// TODO Auto-generated method stub
-		return null;
+	public SCIMGroup createGroup(SCIMGroup group) throws OnPremUserManagementException, DuplicateGroupException {
+		if (group.getId() != null && userCache.getSnapshot().hasGroup(group.getId())) {
+			throw new DuplicateGroupException();
+		}
+		throw readOnlyGroups(group.getDisplayName());
 	}
 
+    private static OnPremUserManagementException readOnlyGroups(String group) {
+        return new OnPremUserManagementException("o34571", "Cannot change the group [" + group
+                + "]. The groups are read from the users file and the groups file");
+    }
+
+    /**
+     * Create a user.
+     * <p>
+     * This method is invoked when a POST is made to /Users. The user is written to the user journal and published
+     * right away, without reading the users file again. It keeps being applied over the users file until the file
+     * holds the same values. A user created inactive is only recorded as removed.
+     *
+     * @param user the user to create. A new id is generated if it has none.
+     * @return the created user
+     * @throws com.okta.scim.server.exception.OnPremUserManagementException
+     *          with the code o34568 if the user already exists, or if it misses a mandatory value or cannot be written
+     *          to the journal
+     */
 	@Override
-	public SCIMUser createUser(SCIMUser arg0) throws OnPremUserManagementException {
-		// TODO Auto-generated method stub
-		return null;
+	public SCIMUser createUser(SCIMUser user) throws OnPremUserManagementException {
+		admission.acquire("createUser");
+		long startNanos = System.nanoTime();
+		boolean failed = true;
+		try {
+			if (user.getId() == null || user.getId().trim().isEmpty()) {
+				user.setId(UUID.randomUUID().toString());
+			}
+			SCIMUser created = provision(user.getId(), user, false);
+			failed = false;
+			return created;
+		} finally {
+			admission.release();
+			metrics.recordOperation(ConnectorMetrics.Operation.CREATE_USER, startNanos, failed);
+		}
 	}
 
+    /**
+     * The groups are read from the users file and the groups file, they cannot be deleted from Okta.
+     *
+     * @throws com.okta.scim.server.exception.EntityNotFoundException if there is no group with this id
+     * @throws com.okta.scim.server.exception.OnPremUserManagementException otherwise
+     */
 	@Override
-	public void deleteGroup(String arg0) throws OnPremUserManagementException, EntityNotFoundException {
-		// TODO Auto-generated method stub
-		
+	public void deleteGroup(String id) throws OnPremUserManagementException, EntityNotFoundException {
+		if (!userCache.getSnapshot().hasGroup(id)) {
+			throw new EntityNotFoundException();
+		}
+		throw readOnlyGroups(id);
 	}
 
+    /**
+     * Get a particular group.
+     * <p>
+     * This method is invoked when a GET is made to /Groups/{id}. The group is looked up in the current snapshot, with
+     * all its members.
+     *
+     * @param id the Id of the SCIM Group
+     * @return the group corresponding to the id
+     * @throws com.okta.scim.server.exception.EntityNotFoundException
+     *          if there is no group with this id
+     */
 	@Override
-	public SCIMGroup getGroup(String arg0) throws OnPremUserManagementException, EntityNotFoundException {
-		// TODO Auto-generated method stub
-		return null;
+	public SCIMGroup getGroup(String id) throws OnPremUserManagementException, EntityNotFoundException {
+		admission.acquire("getGroup");
+		long startNanos = System.nanoTime();
+		boolean failed = true;
+		try {
+			SCIMGroup group = userCache.getSnapshot().getGroup(id);
+			if (group == null) {
+				LOGGER.debug("Cannot find the group [{}]", id);
+				throw new EntityNotFoundException();
+			}
+			failed = false;
+			return group;
+		} finally {
+			admission.release();
+			metrics.recordOperation(ConnectorMetrics.Operation.GET_GROUP, startNanos, failed);
+		}
 	}
 
+    /**
+     * The groups are read from the users file and the groups file, they cannot be changed from Okta.
+     *
+     * @throws com.okta.scim.server.exception.EntityNotFoundException if there is no group with this id
+     * @throws com.okta.scim.server.exception.OnPremUserManagementException otherwise
+     */
 	@Override
-	public SCIMGroup updateGroup(String arg0, SCIMGroup arg1)
+	public SCIMGroup updateGroup(String id, SCIMGroup group)
 			throws OnPremUserManagementException, EntityNotFoundException {
-		// TODO Auto-generated method stub
-		return null;
+		if (!userCache.getSnapshot().hasGroup(id)) {
+			throw new EntityNotFoundException();
+		}
+		throw readOnlyGroups(id);
 	}
 
+    /**
+     * Update a user.
+     * <p>
+     * This method is invoked when a PUT is made to /Users/{id}, with the whole user. Like {@link #createUser}, the
+     * user is written to the user journal and published right away. A user that Okta deactivates is removed from the
+     * users served, and can be activated again with another update.
+     *
+     * @param id   the id of the user
+     * @param user the new values of the user
+     * @return the updated user, or the user sent if it was deactivated
+     * @throws com.okta.scim.server.exception.OnPremUserManagementException
+     *          if the user misses a mandatory value or cannot be written to the journal
+     * @throws com.okta.scim.server.exception.EntityNotFoundException
+     *          if there is no user with this id
+     */
 	@Override
-	public SCIMUser updateUser(String arg0, SCIMUser arg1)
+	public SCIMUser updateUser(String id, SCIMUser user)
 			throws OnPremUserManagementException, EntityNotFoundException {
-		// TODO Auto-generated method stub
-		return null;
+		admission.acquire("updateUser");
+		long startNanos = System.nanoTime();
+		boolean failed = true;
+		try {
+			user.setId(id);
+			SCIMUser updated = provision(id, user, true);
+			failed = false;
+			return updated;
+		} finally {
+			admission.release();
+			metrics.recordOperation(ConnectorMetrics.Operation.UPDATE_USER, startNanos, failed);
+		}
 	}
 
+    private SCIMUser provision(String id, SCIMUser user, boolean update) throws EntityNotFoundException {
+        if (!userCache.hasJournal()) {
+            throw new OnPremUserManagementException("o34569", "Cannot provision the user [" + id
+                    + "]. There is no user journal, check usersFilePath");
+        }
+        try {
+            //A user without the active flag is kept active
+            UserChange change = Boolean.FALSE.equals(user.isActive())
+                    ? UserChange.remove(id) : UserChange.put(id, user, ConnectorConfig.get().getCustomSchemaName());
+            UserSnapshot written = userCache.write(change, update);
+            LOGGER.debug("Provisioned {} in version {}", change, written.getVersion());
+            return change.getType() == UserChange.Type.REMOVE ? user : written.getUser(id);
+        } catch (DuplicateUserException e) {
+            //The SDK has no conflict status for users, the code tells Okta the user is already there
+            throw new OnPremUserManagementException("o34568", e.getMessage(), e);
+        } catch (IllegalArgumentException e) {
+            throw new OnPremUserManagementException("o34570", e.getMessage());
+        } catch (IOException e) {
+            throw new OnPremUserManagementException("Cannot write the user [" + id + "] to the user journal ["
+                    + userJournal.getFile() + "]", e);
+        }
+    }
+
+    /**
+     * Get a particular user.
+     * <p>
+     * This method is invoked when a GET is made to /Users/{id}. The user is looked up by id in the current snapshot;
+     * the users file is not checked or reloaded for a single user. The users asked again on the same snapshot, e.g. by
+     * a reconciliation, are served from the {@link ResponseCache}.
+     *
+     * @param id the Id of the SCIM User
+     * @return the user corresponding to the id
+     * @throws com.okta.scim.server.exception.OnPremUserManagementException
+     *
+     * @throws com.okta.scim.server.exception.EntityNotFoundException
+     *          if there is no user with this id
+     */
 	@Override
-	public SCIMUser getUser(String arg0) throws OnPremUserManagementException, EntityNotFoundException {
-		// TODO Auto-generated method stub
-		return null;
+	public SCIMUser getUser(String id) throws OnPremUserManagementException, EntityNotFoundException {
+		admission.acquire("getUser");
+		long startNanos = System.nanoTime();
+		boolean failed = true;
+		try {
+			UserSnapshot snapshot = userCache.getSnapshot();
+			SCIMUser user = responseCache.getUser(snapshot.getVersion(), id);
+			if (user == null) {
+				user = snapshot.getUser(id);
+				if (user == null) {
+					LOGGER.debug("Cannot find the user [{}]", id);
+					throw new EntityNotFoundException();
+				}
+				responseCache.putUser(snapshot.getVersion(), id, user);
+			}
+			failed = false;
+			return user;
+		} finally {
+			admission.release();
+			metrics.recordOperation(ConnectorMetrics.Operation.GET_USER, startNanos, failed);
+		}
 	}
 }
 
@@ -0,0 +1,92 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Okta, Inc. and/or its affiliates. All rights reserved.
+ ******************************************************************************/
+package com.okta.scim.util.file;
+
+import org.slf4j.Logger;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Logs a message that is repeated on every request at most once per interval.
+ * <p>
+ * The messages in between are only counted, and the count is appended to the next message that is logged. The
+ * arguments of a message are only formatted when it is logged, so a suppressed message costs a clock read.
+ */
+final class SampledLogger {
+    private final Logger logger;
+    private final long intervalNanos;
+    private final AtomicLong nextLogNanos;
+    private final AtomicLong suppressedCount = new AtomicLong();
+
+    /**
+     * @param logger         the logger to log to
+     * @param intervalMillis the minimum time between two messages, 0 to log every message
+     */
+    SampledLogger(Logger logger, long intervalMillis) {
+        this.logger = logger;
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+        this.nextLogNanos = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * Log an INFO message, unless another one was logged less than the interval ago.
+     *
+     * @param format    the slf4j message format
+     * @param arguments the arguments of the format
+     */
+    void info(String format, Object... arguments) {
+        if (!logger.isInfoEnabled()) {
+            return;
+        }
+        long suppressed = acquire();
+        if (suppressed > 0) {
+            logger.info(format + " ({} similar messages not logged)", append(arguments, suppressed));
+        } else if (suppressed == 0) {
+            logger.info(format, arguments);
+        }
+    }
+
+    /**
+     * Log an ERROR message, unless another one was logged less than the interval ago.
+     *
+     * @param format    the slf4j message format
+     * @param arguments the arguments of the format
+     */
+    void error(String format, Object... arguments) {
+        if (!logger.isErrorEnabled()) {
+            return;
+        }
+        long suppressed = acquire();
+        if (suppressed > 0) {
+            logger.error(format + " ({} similar messages not logged)", append(arguments, suppressed));
+        } else if (suppressed == 0) {
+            logger.error(format, arguments);
+        }
+    }
+
+    /**
+     * @return the number of messages suppressed since the last one that was logged, or -1 if this one must be
+     * suppressed too
+     */
+    private long acquire() {
+        if (intervalNanos <= 0) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        long next = nextLogNanos.get();
+        if (now - next < 0 || !nextLogNanos.compareAndSet(next, now + intervalNanos)) {
+            suppressedCount.incrementAndGet();
+            return -1;
+        }
+        return suppressedCount.getAndSet(0);
+    }
+
+    private static Object[] append(Object[] arguments, Object argument) {
+        Object[] appended = new Object[arguments.length + 1];
+        System.arraycopy(arguments, 0, appended, 0, arguments.length);
+        appended[arguments.length] = argument;
+        return appended;
+    }
+}
@@ -0,0 +1,1091 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Okta, Inc. and/or its affiliates. All rights reserved.
+ ******************************************************************************/
+package com.okta.scim.util.file;
+
+import com.okta.scim.server.exception.EntityNotFoundException;
+import com.okta.scim.util.exception.SCIMSerializationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Caches the users read from the CSV file and only re-reads the file when it has actually changed.
+ * <p>
+ * The file is looked at no more than once every <code>minRefreshIntervalMillis</code>. If its size or modification
+ * time differ from the loaded version, a content fingerprint decides whether the users need to be reloaded. Until
+ * then the same snapshot is served to every caller.
+ * <p>
+ * A reload builds a new {@link UserSnapshot} off to the side and publishes it with a single reference swap. Readers
+ * never take a lock, and while one thread reloads, the others keep being served the previous snapshot instead of
+ * waiting for it. The callers that do have to wait, for the first load or a forced check, share the outcome of the
+ * check that ran while they waited instead of each checking the file again.
+ * <p>
+ * A new version of the {@link ConnectorConfig} also reloads the users, since the column mapping may have changed.
+ * <p>
+ * The records that cannot be loaded are written to the 'csvQuarantineFolder'. If there are more of them than the
+ * 'csvRejectedRowsMaxPercent' budget, the load is not published and the users file is not read again until it changes.
+ * <p>
+ * The users file path may also be a drop directory, in which case the most recently modified CSV file in it is used.
+ * With 'usersFileMergeAll', every CSV file of the drop directory is loaded instead, in parallel, and the users of all
+ * of them are merged in file name order: for an id found in several files, the file whose name sorts last wins.
+ * <p>
+ * With a {@link UserSnapshotFile}, every loaded snapshot is also persisted, and {@link #restore()} serves the
+ * persisted users right after a restart while the users file is checked on a background thread.
+ * <p>
+ * With a {@link UserJournal}, the users provisioned by Okta are {@link #write written} to the journal and published as
+ * a new snapshot, without reading the users file again. A single writer thread takes all the writes waiting at that
+ * time and commits them together, with one fsync. A commit only adds the changes to the {@link UserOverlay} of the
+ * snapshot; once it holds 'usersJournalOverlayMaxUsers' users, it is folded into a new store on a background thread.
+ * The changes in the journal are applied over every version of the users file that is loaded, until the file holds
+ * them itself.
+ * <p>
+ * Every published snapshot also has the {@link UserGroups} of its users, from the 'groupsMembershipAttribute' and
+ * the groups file. The groups file is checked with the users file, and only read again when it changed.
+ */
+public class UserCache {
+    private static final Logger LOGGER = LoggerFactory.getLogger(UserCache.class);
+
+    private final String usersFilePath;
+    private final long minRefreshIntervalMillis;
+    private final Collection<String> indexedCustomAttributes;
+    private final boolean incrementalReload;
+
+    private final AtomicReference<UserSnapshot> snapshot = new AtomicReference<UserSnapshot>(UserSnapshot.empty());
+    private final ReentrantLock reloadLock = new ReentrantLock();
+    private volatile long lastCheckMillis;
+    //Guarded by reloadLock
+    private long loadedConfigVersion;
+    //Only written under reloadLock: the checks of the file started and finished, and the outcome of the last one
+    private volatile long startedChecks;
+    private volatile long finishedChecks;
+    private UserSnapshot lastCheckResult;
+    private Exception lastCheckFailure;
+    //Guarded by reloadLock: the last version of the users file that was not published because too many records were
+    //rejected, so that it is not read again until it changes
+    private FileFingerprint rejectedFingerprint;
+    private long rejectedConfigVersion;
+    private String rejectedMessage;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong reloadCount = new AtomicLong();
+    private final AtomicLong sharedCheckCount = new AtomicLong();
+    private volatile int lastAddedCount;
+    private volatile int lastChangedCount;
+    private volatile int lastRemovedCount;
+
+    private ProcessedFileArchiver archiver;
+    private UserSnapshotFile snapshotFile;
+    private ConnectorMetrics metrics;
+    private File groupsFile;
+    //Guarded by reloadLock
+    private GroupsFile loadedGroupsFile;
+    //Only replaced under both locks, so a reload and the journal writer build the groups the same way
+    private volatile UserGroups.Source groupSource = UserGroups.Source.NONE;
+
+    private static final int MAX_JOURNAL_BATCH = 1000;
+
+    //Held to publish a snapshot once provisioned users may have to be applied to it
+    private final ReentrantLock publishLock = new ReentrantLock();
+    //Guarded by publishLock: the last change of every provisioned user that the users file does not hold yet
+    private final Map<String, UserChange> journalChanges = new LinkedHashMap<String, UserChange>();
+    private volatile int journalSize;
+    private UserJournal journal;
+    private int journalCompactEntries;
+    private int overlayMaxUsers;
+    //True while an overlay is folded in the background
+    private final AtomicBoolean folding = new AtomicBoolean();
+    private final BlockingQueue<PendingWrite> pendingWrites = new LinkedBlockingQueue<PendingWrite>();
+    private Thread journalWriter;
+    private volatile boolean journalClosed;
+
+    /**
+     * @param usersFilePath            the CSV file to read the users from
+     * @param minRefreshIntervalMillis the minimum time between two checks of the file
+     * @param indexedCustomAttributes  the custom attributes to build equality indexes for
+     * @param incrementalReload        true to only build the users of added or changed rows on a reload
+     */
+    public UserCache(String usersFilePath, long minRefreshIntervalMillis, Collection<String> indexedCustomAttributes,
+                     boolean incrementalReload) {
+        this.usersFilePath = usersFilePath;
+        this.minRefreshIntervalMillis = minRefreshIntervalMillis;
+        this.indexedCustomAttributes = new ArrayList<String>(indexedCustomAttributes);
+        this.incrementalReload = incrementalReload;
+    }
+
+    /**
+     * @param archiver archives every new version of the users file once it is loaded, or null not to archive
+     */
+    public void setArchiver(ProcessedFileArchiver archiver) {
+        this.archiver = archiver;
+    }
+
+    /**
+     * @param snapshotFile persists every loaded snapshot, or null not to persist them
+     */
+    public void setSnapshotFile(UserSnapshotFile snapshotFile) {
+        this.snapshotFile = snapshotFile;
+    }
+
+    /**
+     * @param metrics records the duration and the row counts of every load, or null not to record them
+     */
+    public void setMetrics(ConnectorMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * @param groupsFile the CSV file to read groups from, see {@link GroupsFile}, or null for only the groups of the
+     *                   'groupsMembershipAttribute'
+     */
+    public void setGroupsFile(File groupsFile) {
+        this.groupsFile = groupsFile;
+    }
+
+    /**
+     * Read the groups file again if it changed, and pick up the membership attribute of the configuration. Must hold
+     * the reload lock. If the groups file cannot be read, the groups read before are kept.
+     *
+     * @return true if the groups may have changed
+     */
+    private boolean updateGroupSource(ConnectorConfig config) {
+        GroupsFile file = loadedGroupsFile;
+        if (groupsFile == null || !groupsFile.isFile()) {
+            file = null;
+        } else if (file == null || !file.getFingerprint().hasSameMetadata(groupsFile)) {
+            try {
+                file = GroupsFile.read(groupsFile, config);
+            } catch (IOException e) {
+                LOGGER.error("Cannot read the groups file [" + groupsFile + "], keeping the groups read before", e);
+            }
+        }
+        loadedGroupsFile = file;
+
+        String attribute = config.getProperty("groupsMembershipAttribute", "").trim();
+        String separator = UserGroups.separator(config);
+        UserGroups.Source current = groupSource;
+        GroupsFile currentFile = current.getGroupsFile();
+        boolean sameFile = file == null ? currentFile == null
+                : currentFile != null && file.getFingerprint().hasSameContent(currentFile.getFingerprint());
+        boolean sameAttribute = attribute.isEmpty() ? current.getMembershipAttribute() == null
+                : attribute.equals(current.getMembershipAttribute()) && separator.equals(current.getSeparator());
+        if (sameFile && sameAttribute) {
+            return false;
+        }
+        publishLock.lock();
+        try {
+            groupSource = new UserGroups.Source(file, attribute.isEmpty() ? null : attribute, separator);
+        } finally {
+            publishLock.unlock();
+        }
+        return true;
+    }
+
+    /**
+     * Open the journal of the provisioned users and start committing the {@link #write writes}. Call it before the
+     * first load, so that the changes in the journal are applied over the users file.
+     *
+     * @param journal         the journal
+     * @param compactEntries  rewrite the journal once it has this many entries that were replaced by a later change
+     *                        or are held by the users file. 0 never rewrites it.
+     * @param overlayMaxUsers fold the provisioned users into a new store once this many users were provisioned
+     *                        since the store was built
+     * @throws IOException if the journal cannot be read
+     */
+    public void setJournal(UserJournal journal, int compactEntries, int overlayMaxUsers) throws IOException {
+        Map<String, UserChange> changes = journal.open();
+        publishLock.lock();
+        try {
+            journalChanges.putAll(changes);
+            journalSize = journalChanges.size();
+        } finally {
+            publishLock.unlock();
+        }
+        this.journal = journal;
+        this.journalCompactEntries = compactEntries;
+        this.overlayMaxUsers = overlayMaxUsers;
+        journalWriter = new Thread(new Runnable() {
+            public void run() {
+                writeJournal();
+            }
+        }, "scim-users-journal");
+        journalWriter.setDaemon(true);
+        journalWriter.start();
+    }
+
+    /**
+     * @return true if a journal was opened and users can be provisioned
+     */
+    public boolean hasJournal() {
+        return journal != null && !journalClosed;
+    }
+
+    /**
+     * Stop the journal writer and close the journal. Writes still waiting fail.
+     */
+    public void closeJournal() {
+        if (journal == null) {
+            return;
+        }
+        //Not interrupted, that would close the journal channel in the middle of a commit
+        journalClosed = true;
+        try {
+            journalWriter.join(10000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        List<PendingWrite> abandoned = new ArrayList<PendingWrite>();
+        pendingWrites.drainTo(abandoned);
+        for (PendingWrite write : abandoned) {
+            write.fail(new IOException("The user journal was closed"));
+        }
+        journal.close();
+    }
+
+    /**
+     * Write a provisioned user to the journal and publish it. Blocks until the change is on disk; the readers are
+     * not blocked and are served the new snapshot once it is published.
+     *
+     * @param change the change of the user
+     * @param update true if the user must exist, false if it must not
+     * @return the published snapshot holding the change
+     * @throws EntityNotFoundException  if the user of an update does not exist
+     * @throws DuplicateUserException   if the user of a creation already exists
+     * @throws IllegalArgumentException if a value cannot be stored
+     * @throws IOException              if the change cannot be written to the journal
+     */
+    public UserSnapshot write(UserChange change, boolean update) throws IOException, EntityNotFoundException {
+        if (!hasJournal()) {
+            throw new IOException("There is no user journal to write the user [" + change.getId() + "] to");
+        }
+        PendingWrite write = new PendingWrite(change, update);
+        pendingWrites.add(write);
+        if (journalClosed && pendingWrites.remove(write)) {
+            throw new IOException("The user journal was closed");
+        }
+        try {
+            write.done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while writing the user [" + change.getId()
+                    + "] to the journal. It may still be written");
+        }
+        if (write.failure instanceof IOException) {
+            throw (IOException) write.failure;
+        }
+        if (write.failure instanceof EntityNotFoundException) {
+            throw (EntityNotFoundException) write.failure;
+        }
+        if (write.failure != null) {
+            throw (RuntimeException) write.failure;
+        }
+        return write.published;
+    }
+
+    /**
+     * The loop of the journal writer: commit all the writes waiting, one batch at a time.
+     */
+    private void writeJournal() {
+        List<PendingWrite> batch = new ArrayList<PendingWrite>();
+        while (!journalClosed) {
+            try {
+                PendingWrite first = pendingWrites.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                pendingWrites.drainTo(batch, MAX_JOURNAL_BATCH - 1);
+                commit(batch);
+                compactJournal();
+            } catch (InterruptedException e) {
+                break;
+            } catch (RuntimeException e) {
+                LOGGER.error("Cannot commit " + batch.size() + " provisioned users to the journal", e);
+                for (PendingWrite write : batch) {
+                    write.fail(e);
+                }
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Check a batch of writes against the published users, append the accepted ones to the journal with one fsync
+     * and publish them in one new snapshot.
+     */
+    private void commit(List<PendingWrite> batch) {
+        long startNanos = System.nanoTime();
+        publishLock.lock();
+        try {
+            UserSnapshot current = snapshot.get();
+            //The changes of this batch, by id, so that a batch can create a user and then update it
+            Map<String, UserChange> batchChanges = new HashMap<String, UserChange>();
+            List<PendingWrite> accepted = new ArrayList<PendingWrite>(batch.size());
+            List<UserChange> changes = new ArrayList<UserChange>(batch.size());
+            for (PendingWrite write : batch) {
+                try {
+                    check(write, current, batchChanges);
+                } catch (Exception e) {
+                    write.fail(e);
+                    continue;
+                }
+                batchChanges.put(write.change.getId(), write.change);
+                accepted.add(write);
+                changes.add(write.change);
+            }
+            if (changes.isEmpty()) {
+                return;
+            }
+            try {
+                journal.append(changes);
+            } catch (IOException e) {
+                LOGGER.error("Cannot write " + changes.size() + " provisioned users to the journal ["
+                        + journal.getFile() + "]", e);
+                for (PendingWrite write : accepted) {
+                    write.fail(e);
+                }
+                return;
+            }
+            for (UserChange change : changes) {
+                journalChanges.remove(change.getId());
+                journalChanges.put(change.getId(), change);
+            }
+            journalSize = journalChanges.size();
+            UserSnapshot published = current.withChanges(changes, groupSource);
+            snapshot.set(published);
+            if (published.getOverlay().changedCount() >= overlayMaxUsers) {
+                foldInBackground();
+            }
+            if (metrics != null) {
+                metrics.recordJournalCommit(changes.size(), startNanos);
+            }
+            for (PendingWrite write : accepted) {
+                write.complete(published);
+            }
+            LOGGER.debug("Committed {} provisioned users, version={}", changes.size(), published.getVersion());
+        } finally {
+            publishLock.unlock();
+        }
+    }
+
+    private void check(PendingWrite write, UserSnapshot current, Map<String, UserChange> batchChanges)
+            throws EntityNotFoundException {
+        String id = write.change.getId();
+        UserChange previous = batchChanges.containsKey(id) ? batchChanges.get(id) : journalChanges.get(id);
+        boolean exists = batchChanges.containsKey(id)
+                ? previous.getType() == UserChange.Type.PUT : current.rowOf(id) >= 0;
+        if (write.update) {
+            //A user deactivated by Okta can be activated again
+            if (!exists && (previous == null || previous.getType() != UserChange.Type.REMOVE)) {
+                throw new EntityNotFoundException();
+            }
+        } else if (exists) {
+            throw new DuplicateUserException(id);
+        }
+        if (write.change.getType() == UserChange.Type.PUT) {
+            current.getStore().check(write.change);
+        }
+    }
+
+    /**
+     * Fold the overlay of the published snapshot into a new store on a new background thread, unless a fold is
+     * already running. The store and its indexes are built without holding up the writers; the changes committed in
+     * the meantime are then added over the new store. A fold is dropped if a reload or new groups replaced the store
+     * in the meantime, the next commit starts another one if still needed.
+     */
+    private void foldInBackground() {
+        if (!folding.compareAndSet(false, true)) {
+            return;
+        }
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    foldOverlay();
+                } catch (RuntimeException e) {
+                    LOGGER.error("Cannot fold the provisioned users into the loaded users", e);
+                } finally {
+                    folding.set(false);
+                }
+            }
+        }, "scim-users-fold");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void foldOverlay() {
+        long start = System.currentTimeMillis();
+        UserSnapshot current = snapshot.get();
+        UserGroups.Source source = groupSource;
+        UserSnapshot folded = current.fold(source);
+        publishLock.lock();
+        try {
+            UserSnapshot published = snapshot.get();
+            if (published.getStore() != current.getStore() || groupSource != source) {
+                LOGGER.debug("The users were reloaded while the provisioned users were folded, dropping the fold");
+                return;
+            }
+            //The overlay only grows until the store is replaced, so the changes not folded are the ones that differ
+            Map<String, UserChange> foldedChanges = current.getOverlay().getChanges();
+            List<UserChange> newer = new ArrayList<UserChange>();
+            for (UserChange change : published.getOverlay().getChanges().values()) {
+                if (foldedChanges.get(change.getId()) != change) {
+                    newer.add(change);
+                }
+            }
+            if (!newer.isEmpty()) {
+                folded = folded.withChanges(newer, groupSource);
+            }
+            folded = folded.after(published);
+            snapshot.set(folded);
+            LOGGER.info("Folded " + foldedChanges.size() + " provisioned users into the " + folded.getStore().size()
+                    + " users in " + (System.currentTimeMillis() - start) + "ms, version=" + folded.getVersion());
+        } finally {
+            publishLock.unlock();
+        }
+    }
+
+    /**
+     * Rewrite the journal with only the changes the users file does not hold yet, once enough entries are no longer
+     * needed, and persist the published users to the snapshot file.
+     */
+    private void compactJournal() {
+        if (journalCompactEntries <= 0) {
+            return;
+        }
+        publishLock.lock();
+        try {
+            if (journal.getEntryCount() - journalChanges.size() < journalCompactEntries) {
+                return;
+            }
+            journal.compact(new ArrayList<UserChange>(journalChanges.values()));
+            if (metrics != null) {
+                metrics.recordJournalCompaction();
+            }
+            if (snapshotFile != null) {
+                snapshotFile.save(snapshot.get(), ConnectorConfig.get());
+            }
+        } catch (IOException e) {
+            LOGGER.error("Cannot compact the user journal [" + journal.getFile() + "]", e);
+        } finally {
+            publishLock.unlock();
+        }
+    }
+
+    /**
+     * Publish the users of a loaded file with the provisioned changes applied over them. The indexes are built
+     * without holding up the writers, and only built again if users were provisioned in the meantime.
+     *
+     * @param fileStore      the users of the file
+     * @param fingerprint    the fingerprint of the file
+     * @param loadedAtMillis when the file was loaded
+     * @param forgetHeld     true to drop the changes the users file now holds from the journal
+     * @return the published snapshot
+     */
+    private UserSnapshot publish(CompactUserStore fileStore, FileFingerprint fingerprint, long loadedAtMillis,
+                                 boolean forgetHeld) {
+        UserSnapshot previous;
+        List<UserChange> changes;
+        publishLock.lock();
+        try {
+            previous = snapshot.get();
+            changes = new ArrayList<UserChange>(journalChanges.values());
+        } finally {
+            publishLock.unlock();
+        }
+        List<UserChange> held = new ArrayList<UserChange>();
+        if (forgetHeld) {
+            for (UserChange change : changes) {
+                int row = fileStore.rowOf(change.getId());
+                if (change.getType() == UserChange.Type.REMOVE ? row < 0 : row >= 0 && fileStore.matches(change, row)) {
+                    held.add(change);
+                }
+            }
+            changes.removeAll(held);
+        }
+        UserSnapshot loaded = UserSnapshot.build(previous.getVersion() + 1, applyChanges(fileStore, changes),
+                indexedCustomAttributes, groupSource, fingerprint, loadedAtMillis);
+        publishLock.lock();
+        try {
+            forget(held);
+            if (snapshot.get() != previous) {
+                loaded = UserSnapshot.build(snapshot.get().getVersion() + 1,
+                        applyChanges(fileStore, journalChanges.values()), indexedCustomAttributes, groupSource,
+                        fingerprint, loadedAtMillis);
+            }
+            snapshot.set(loaded);
+            return loaded;
+        } finally {
+            publishLock.unlock();
+        }
+    }
+
+    /**
+     * @return the store with the changes that can be applied to it. A change that no longer fits a changed column
+     * mapping is left out.
+     */
+    private CompactUserStore applyChanges(CompactUserStore store, Collection<UserChange> changes) {
+        if (changes.isEmpty()) {
+            return store;
+        }
+        List<UserChange> applied = new ArrayList<UserChange>(changes.size());
+        for (UserChange change : changes) {
+            try {
+                if (change.getType() == UserChange.Type.PUT) {
+                    store.check(change);
+                }
+                applied.add(change);
+            } catch (IllegalArgumentException e) {
+                LOGGER.warn("Cannot apply the provisioned user [" + change.getId() + "]: " + e.getMessage());
+            }
+        }
+        return store.withChanges(applied);
+    }
+
+    /**
+     * Drop the changes the users file now holds from the journal, unless a later change replaced them. Must hold
+     * the publish lock. If the journal cannot be written, the changes are kept and applied again.
+     */
+    private void forget(List<UserChange> held) {
+        List<UserChange> forgotten = new ArrayList<UserChange>(held.size());
+        for (UserChange change : held) {
+            if (journalChanges.get(change.getId()) == change) {
+                forgotten.add(UserChange.forget(change.getId()));
+            }
+        }
+        if (forgotten.isEmpty()) {
+            return;
+        }
+        try {
+            journal.append(forgotten);
+        } catch (IOException e) {
+            LOGGER.warn("Cannot record in the journal that the users file holds " + forgotten.size()
+                    + " provisioned users", e);
+            return;
+        }
+        for (UserChange change : forgotten) {
+            journalChanges.remove(change.getId());
+        }
+        journalSize = journalChanges.size();
+        LOGGER.info("The users file now holds " + forgotten.size() + " provisioned users, "
+                + journalChanges.size() + " are left in the journal");
+    }
+
+    /**
+     * @return the number of provisioned users the users file does not hold yet
+     */
+    public int getJournalSize() {
+        return journalSize;
+    }
+
+    /**
+     * A write waiting for the journal writer.
+     */
+    private static final class PendingWrite {
+        private final UserChange change;
+        private final boolean update;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile UserSnapshot published;
+        private volatile Exception failure;
+
+        private PendingWrite(UserChange change, boolean update) {
+            this.change = change;
+            this.update = update;
+        }
+
+        private void complete(UserSnapshot snapshot) {
+            published = snapshot;
+            done.countDown();
+        }
+
+        private void fail(Exception e) {
+            if (done.getCount() > 0) {
+                failure = e;
+                done.countDown();
+            }
+        }
+    }
+
+    /**
+     * Publish the users persisted in the snapshot file, if they were loaded with the current configuration. They are
+     * served until the next check of the users file, even if it changed in the meantime; call
+     * {@link #refreshInBackground()} to check it without holding up the caller.
+     *
+     * @return true if a snapshot was restored
+     */
+    public boolean restore() {
+        if (snapshotFile == null) {
+            return false;
+        }
+        reloadLock.lock();
+        try {
+            ConnectorConfig config = ConnectorConfig.get();
+            UserSnapshot restored = snapshotFile.load(config, indexedCustomAttributes);
+            if (restored == null) {
+                return false;
+            }
+            updateGroupSource(config);
+            if (getJournalSize() > 0) {
+                restored = publish(restored.getStore(), restored.getFingerprint(), restored.getLoadedAtMillis(),
+                        false);
+            } else {
+                publishLock.lock();
+                try {
+                    restored = restored.withGroups(groupSource);
+                    snapshot.set(restored);
+                } finally {
+                    publishLock.unlock();
+                }
+            }
+            loadedConfigVersion = config.getVersion();
+            lastCheckMillis = System.currentTimeMillis();
+            List<File> usersFiles = resolveUsersFiles(config);
+            if (usersFiles.isEmpty() || !restored.getFingerprint().hasSameMetadata(usersFiles)) {
+                LOGGER.warn("The users file changed since the user snapshot was written, serving the "
+                        + restored.size() + " users of the snapshot until it is reloaded");
+            }
+            return true;
+        } finally {
+            reloadLock.unlock();
+        }
+    }
+
+    /**
+     * Check the file, and reload it if it changed, on a new background thread.
+     */
+    public void refreshInBackground() {
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    refreshNow();
+                } catch (Exception e) {
+                    LOGGER.error("Cannot reload the users file in the background", e);
+                }
+            }
+        }, "scim-users-reload");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Get the currently published snapshot without looking at the file.
+     *
+     * @return the current snapshot, empty if nothing has been loaded yet
+     */
+    public UserSnapshot getSnapshot() {
+        return snapshot.get();
+    }
+
+    /**
+     * Get the users, reloading them from the CSV file first if it has changed since the last load.
+     * <p>
+     * If another thread is already checking or reloading the file, the current snapshot is returned right away.
+     * Only the very first load is waited for, and the callers waiting for it are all served its outcome.
+     *
+     * @return the snapshot to serve the request from
+     * @throws IOException if the file cannot be read
+     * @throws SCIMSerializationException if the file cannot be parsed
+     */
+    public UserSnapshot refresh() throws IOException, SCIMSerializationException {
+        UserSnapshot current = snapshot.get();
+        boolean loaded = current.getFingerprint() != null;
+        if (loaded && System.currentTimeMillis() - lastCheckMillis < minRefreshIntervalMillis) {
+            hitCount.incrementAndGet();
+            return current;
+        }
+
+        if (!loaded) {
+            //Every request waits for the first load, and they all share it
+            return sharedCheck(false);
+        }
+        if (!reloadLock.tryLock()) {
+            hitCount.incrementAndGet();
+            return current;
+        }
+        try {
+            return check();
+        } finally {
+            reloadLock.unlock();
+        }
+    }
+
+    /**
+     * Check the file right away, ignoring the minimum refresh interval, and reload it if it changed. Waits for a
+     * reload that is already running, and does not check the file again if another check started after this call.
+     * Used by the background {@link UsersFileWatcher}.
+     *
+     * @return the published snapshot
+     * @throws IOException if the file cannot be read
+     * @throws SCIMSerializationException if the file cannot be parsed
+     */
+    public UserSnapshot refreshNow() throws IOException, SCIMSerializationException {
+        return sharedCheck(true);
+    }
+
+    /**
+     * Check the file under the reload lock, unless another caller checked it while this one waited for the lock.
+     *
+     * @param fresh true to only share a check that started after this call, false to also share the check that was
+     *              running when it was made
+     * @return the published snapshot
+     */
+    private UserSnapshot sharedCheck(boolean fresh) throws IOException, SCIMSerializationException {
+        long started = startedChecks;
+        long finished = finishedChecks;
+        reloadLock.lock();
+        try {
+            //Every check ran under the lock, so the last one finished is also the last one started
+            if (fresh ? startedChecks > started : finishedChecks > finished) {
+                sharedCheckCount.incrementAndGet();
+                if (lastCheckFailure instanceof IOException) {
+                    throw (IOException) lastCheckFailure;
+                } else if (lastCheckFailure instanceof SCIMSerializationException) {
+                    throw (SCIMSerializationException) lastCheckFailure;
+                } else if (lastCheckFailure != null) {
+                    throw (RuntimeException) lastCheckFailure;
+                }
+                return lastCheckResult;
+            }
+            return check();
+        } finally {
+            reloadLock.unlock();
+        }
+    }
+
+    /**
+     * Check the file and record the outcome for the callers waiting for the reload lock. Must hold the reload lock.
+     */
+    private UserSnapshot check() throws IOException, SCIMSerializationException {
+        startedChecks++;
+        lastCheckResult = null;
+        lastCheckFailure = null;
+        try {
+            lastCheckResult = checkAndReload();
+            return lastCheckResult;
+        } catch (IOException e) {
+            lastCheckFailure = e;
+            throw e;
+        } catch (SCIMSerializationException e) {
+            lastCheckFailure = e;
+            throw e;
+        } catch (RuntimeException e) {
+            lastCheckFailure = e;
+            throw e;
+        } finally {
+            finishedChecks = startedChecks;
+        }
+    }
+
+    /**
+     * @return the users file, or the newest CSV file if the users file path is a drop directory. Null if the drop
+     * directory has no CSV file.
+     */
+    public File resolveUsersFile() {
+        File usersFile = new File(usersFilePath);
+        if (usersFile.isDirectory()) {
+            return SCIMConnectorUtil.lastFileModified(usersFilePath, ".csv");
+        }
+        return usersFile;
+    }
+
+    /**
+     * @return the files the users are loaded from: the users file or the newest CSV file of the drop directory, or
+     * with 'usersFileMergeAll' every CSV file of the drop directory in name order. Empty if there is none.
+     */
+    public List<File> resolveUsersFiles() {
+        return resolveUsersFiles(ConnectorConfig.get());
+    }
+
+    private List<File> resolveUsersFiles(ConnectorConfig config) {
+        if (isMergeAll(config)) {
+            return SCIMConnectorUtil.listFiles(usersFilePath, ".csv");
+        }
+        File usersFile = resolveUsersFile();
+        return usersFile == null ? Collections.<File>emptyList() : Collections.singletonList(usersFile);
+    }
+
+    private boolean isMergeAll(ConnectorConfig config) {
+        return Boolean.parseBoolean(config.getProperty("usersFileMergeAll")) && new File(usersFilePath).isDirectory();
+    }
+
+    private UserSnapshot checkAndReload() throws IOException, SCIMSerializationException {
+        UserSnapshot current = snapshot.get();
+        FileFingerprint loadedFingerprint = current.getFingerprint();
+        lastCheckMillis = System.currentTimeMillis();
+
+        ConnectorConfig config = ConnectorConfig.get();
+        boolean sameConfig = config.getVersion() == loadedConfigVersion;
+        boolean mergeAll = isMergeAll(config);
+        List<File> usersFiles = resolveUsersFiles(config);
+        if (usersFiles.isEmpty()) {
+            throw new FileNotFoundException("There is no CSV file in [" + usersFilePath + "]");
+        }
+        boolean groupsChanged = updateGroupSource(config);
+        if (sameConfig && loadedFingerprint != null && loadedFingerprint.hasSameMetadata(usersFiles)) {
+            hitCount.incrementAndGet();
+            return groupsChanged ? publishGroups() : current;
+        }
+        boolean sameRejectedConfig = rejectedFingerprint != null && config.getVersion() == rejectedConfigVersion;
+        if (sameRejectedConfig && rejectedFingerprint.hasSameMetadata(usersFiles)) {
+            hitCount.incrementAndGet();
+            return keepPublished(current, groupsChanged);
+        }
+
+        FileFingerprint currentFingerprint = fingerprint(usersFiles, mergeAll);
+        if (sameRejectedConfig && currentFingerprint.hasSameContent(rejectedFingerprint)) {
+            LOGGER.debug("The rejected users file {} was touched but its content did not change", usersFiles);
+            rejectedFingerprint = currentFingerprint;
+            hitCount.incrementAndGet();
+            return keepPublished(current, groupsChanged);
+        }
+        if (sameConfig && currentFingerprint.hasSameContent(loadedFingerprint)) {
+            LOGGER.debug("The users file {} was touched but its content did not change", usersFiles);
+            UserSnapshot touched;
+            publishLock.lock();
+            try {
+                touched = snapshot.get().withFingerprint(currentFingerprint);
+                if (groupsChanged) {
+                    touched = touched.withGroups(groupSource);
+                }
+                snapshot.set(touched);
+            } finally {
+                publishLock.unlock();
+            }
+            hitCount.incrementAndGet();
+            if (snapshotFile != null) {
+                snapshotFile.save(touched, config);
+            }
+            return touched;
+        }
+
+        missCount.incrementAndGet();
+        long startNanos = System.nanoTime();
+        //The store keeps the users in file order so that pages are stable
+        UserLoad load = new UserLoad(current, incrementalReload);
+        long recordCount;
+        boolean read = false;
+        try {
+            recordCount = mergeAll ? SCIMConnectorUtil.readUsersFromCSV(load, usersFiles, config)
+                    : SCIMConnectorUtil.readUsersFromCSV(load, usersFiles.get(0).getPath(), config);
+            read = true;
+        } finally {
+            if (!read && metrics != null) {
+                metrics.recordReloadFailure();
+            }
+        }
+        long parseNanos = System.nanoTime() - startNanos;
+        if (load.getRejectedCount() > 0) {
+            quarantine(load, config);
+        }
+        String overBudget = checkRejectedBudget(load, recordCount, config);
+        if (overBudget != null) {
+            if (metrics != null) {
+                metrics.recordReload(startNanos, parseNanos, recordCount, load);
+                metrics.recordRejectedLoad();
+            }
+            rejectedFingerprint = currentFingerprint;
+            rejectedConfigVersion = config.getVersion();
+            rejectedMessage = "Not publishing the users of " + currentFingerprint + ": " + overBudget;
+            LOGGER.error(rejectedMessage + ". " + (loadedFingerprint == null ? "No users are served"
+                    : "Serving the " + current.size() + " users of version " + current.getVersion())
+                    + " until the file changes");
+            return keepPublished(current, groupsChanged);
+        }
+        rejectedFingerprint = null;
+        UserSnapshot loaded = publish(load.getStore(), currentFingerprint, System.currentTimeMillis(), true);
+        loadedConfigVersion = config.getVersion();
+        reloadCount.incrementAndGet();
+        lastAddedCount = load.getAddedCount();
+        lastChangedCount = load.getChangedCount();
+        lastRemovedCount = load.getRemovedCount();
+        if (metrics != null) {
+            metrics.recordReload(startNanos, parseNanos, recordCount, load);
+        }
+        LOGGER.info("Reloaded " + loaded.size() + " users from " + currentFingerprint
+                + ". version=" + loaded.getVersion() + " configVersion=" + loadedConfigVersion + " added=" + lastAddedCount + " changed=" + lastChangedCount
+                + " removed=" + lastRemovedCount + " inactiveRows=" + load.getInactiveCount()
+                + " rejectedRows=" + load.getRejectedCount() + " hits=" + hitCount.get() + " misses=" + missCount.get()
+                + " reloads=" + reloadCount.get());
+        if (archiver != null && recordCount > 0) {
+            archive(usersFiles, currentFingerprint, loadedFingerprint, mergeAll);
+        }
+        if (snapshotFile != null) {
+            snapshotFile.save(loaded, config);
+        }
+        return loaded;
+    }
+
+    /**
+     * Log the first rejected records, and write them all to the 'csvQuarantineFolder' if there is one. A failure to
+     * write them is only logged.
+     */
+    private void quarantine(UserLoad load, ConnectorConfig config) {
+        List<UserLoad.Rejection> rejections = load.getRejections();
+        for (UserLoad.Rejection rejection : rejections.subList(0, Math.min(10, rejections.size()))) {
+            LOGGER.warn("Rejected " + rejection);
+        }
+        String folder = config.getProperty("csvQuarantineFolder");
+        if (folder == null || folder.trim().isEmpty()) {
+            LOGGER.warn(load.getRejectedCount() + " records were rejected. Set csvQuarantineFolder to keep them");
+            return;
+        }
+        try {
+            QuarantineFile.write(new File(folder.trim()), rejections);
+        } catch (IOException e) {
+            LOGGER.error("Cannot write the rejected records to the quarantine folder [" + folder.trim() + "]", e);
+        }
+    }
+
+    /**
+     * The rejected records of a load may be at most 'csvRejectedRowsMaxPercent' of its records, 100 by default.
+     *
+     * @return why the load exceeds the budget, or null if it can be published
+     */
+    private static String checkRejectedBudget(UserLoad load, long recordCount, ConnectorConfig config) {
+        String maxPercentProperty = config.getProperty("csvRejectedRowsMaxPercent", "");
+        double maxPercent = maxPercentProperty.trim().isEmpty() ? 100 : Double.parseDouble(maxPercentProperty.trim());
+        if (load.getRejectedCount() == 0) {
+            return null;
+        }
+        double percent = 100.0 * load.getRejectedCount() / recordCount;
+        if (percent <= maxPercent) {
+            return null;
+        }
+        return load.getRejectedCount() + " of the " + recordCount + " records were rejected ("
+                + String.format("%.2f", percent) + "%), more than csvRejectedRowsMaxPercent=" + maxPercentProperty.trim()
+                + "%";
+    }
+
+    /**
+     * Keep serving the published users instead of a version of the users file that exceeded the rejected records
+     * budget.
+     *
+     * @throws SCIMSerializationException if no users were published yet
+     */
+    private UserSnapshot keepPublished(UserSnapshot current, boolean groupsChanged)
+            throws IOException, SCIMSerializationException {
+        if (current.getFingerprint() == null) {
+            throw new SCIMSerializationException(rejectedMessage);
+        }
+        return groupsChanged ? publishGroups() : current;
+    }
+
+    /**
+     * Publish the same users with the groups built again, after the groups file changed.
+     */
+    private UserSnapshot publishGroups() throws IOException {
+        UserSnapshot published;
+        publishLock.lock();
+        try {
+            published = snapshot.get().withGroups(groupSource);
+            snapshot.set(published);
+        } finally {
+            publishLock.unlock();
+        }
+        LOGGER.info("Published " + published.getGroupCount() + " groups. version=" + published.getVersion());
+        if (snapshotFile != null) {
+            snapshotFile.save(published, ConnectorConfig.get());
+        }
+        return published;
+    }
+
+    private FileFingerprint fingerprint(List<File> usersFiles, boolean mergeAll) throws IOException {
+        if (!mergeAll) {
+            return FileFingerprint.of(usersFiles.get(0));
+        }
+        List<FileFingerprint> files = new ArrayList<FileFingerprint>(usersFiles.size());
+        for (File usersFile : usersFiles) {
+            files.add(FileFingerprint.of(usersFile));
+        }
+        return FileFingerprint.combine(new File(usersFilePath), files);
+    }
+
+    /**
+     * Archive the loaded file, or the files of a merged load that were not already part of the previous load.
+     */
+    private void archive(List<File> usersFiles, FileFingerprint loaded, FileFingerprint previous, boolean mergeAll) {
+        if (!mergeAll) {
+            archiver.archive(usersFiles.get(0), loaded);
+            return;
+        }
+        for (FileFingerprint file : loaded.getFiles()) {
+            boolean archived = false;
+            for (FileFingerprint previousFile : previous == null
+                    ? Collections.<FileFingerprint>emptyList() : previous.getFiles()) {
+                archived |= previousFile.getPath().equals(file.getPath()) && previousFile.hasSameContent(file);
+            }
+            if (!archived) {
+                archiver.archive(new File(file.getPath()), file);
+            }
+        }
+    }
+
+    /**
+     * @return the number of requests served from the cached users without reading the file
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * @return the number of requests that found the file changed and had to load it
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * @return the number of callers that waited for the check of another caller and were served its outcome
+     */
+    public long getSharedCheckCount() {
+        return sharedCheckCount.get();
+    }
+
+    /**
+     * @return the number of successful loads of the file
+     */
+    public long getReloadCount() {
+        return reloadCount.get();
+    }
+
+    /**
+     * @return the number of users added by the last reload
+     */
+    public int getLastAddedCount() {
+        return lastAddedCount;
+    }
+
+    /**
+     * @return the number of users rebuilt by the last reload. With incremental reloads, the users whose row changed.
+     */
+    public int getLastChangedCount() {
+        return lastChangedCount;
+    }
+
+    /**
+     * @return the number of users removed by the last reload
+     */
+    public int getLastRemovedCount() {
+        return lastRemovedCount;
+    }
+}
@@ -0,0 +1,198 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Okta, Inc. and/or its affiliates. All rights reserved.
+ ******************************************************************************/
+package com.okta.scim.util.file;
+
+import com.okta.scim.util.model.Email;
+import com.okta.scim.util.model.SCIMUser;
+import org.codehaus.jackson.JsonNode;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * One provisioned change of a user, as written to the {@link UserJournal}: the new values of an active user, the
+ * removal of a user that was deactivated, or the note that the users file now holds an earlier change of the user,
+ * which no longer needs to be applied over it.
+ * <p>
+ * The values are kept as text, the way they would appear in the users file, and the custom attributes by name, so a
+ * journal stays readable after a change of the column order. The password Okta sends is not kept, so it is never
+ * written to the journal.
+ */
+final class UserChange {
+
+    /**
+     * The kinds of change, with their name in the journal.
+     */
+    enum Type {
+        PUT("put"),
+        REMOVE("remove"),
+        FORGET("forget");
+
+        private final String journalName;
+
+        Type(String journalName) {
+            this.journalName = journalName;
+        }
+    }
+
+    private final String id;
+    private final Type type;
+    private final String userName;
+    private final String familyName;
+    private final String givenName;
+    private final String email;
+    private final Map<String, String> customValues;
+
+    private UserChange(String id, Type type, String userName, String familyName, String givenName, String email,
+                       Map<String, String> customValues) {
+        this.id = id;
+        this.type = type;
+        this.userName = userName;
+        this.familyName = familyName;
+        this.givenName = givenName;
+        this.email = email;
+        this.customValues = customValues;
+    }
+
+    /**
+     * @param id               the id to store the user under
+     * @param user             the user sent by Okta, active
+     * @param customSchemaName the schema of the custom attributes
+     * @return the change
+     * @throws IllegalArgumentException if userName, name.familyName, name.givenName or the email is missing
+     */
+    static UserChange put(String id, SCIMUser user, String customSchemaName) {
+        String familyName = user.getName() == null ? null : user.getName().getLastName();
+        String givenName = user.getName() == null ? null : user.getName().getFirstName();
+        String email = null;
+        if (user.getEmails() != null) {
+            for (Email candidate : user.getEmails()) {
+                if (email == null || candidate.isPrimary()) {
+                    email = candidate.getValue();
+                }
+            }
+        }
+        Map<String, String> customValues = new LinkedHashMap<String, String>();
+        JsonNode custom = user.getCustomPropertiesMap() == null || customSchemaName == null
+                ? null : user.getCustomPropertiesMap().get(customSchemaName);
+        if (custom != null) {
+            Iterator<Map.Entry<String, JsonNode>> fields = custom.getFields();
+            while (fields.hasNext()) {
+                Map.Entry<String, JsonNode> field = fields.next();
+                customValues.put(field.getKey(), field.getValue().isNull() ? null : field.getValue().asText());
+            }
+        }
+        UserChange change = new UserChange(id, Type.PUT, user.getUserName(), familyName, givenName, email,
+                customValues);
+        for (String[] value : new String[][]{{"userName", change.userName}, {"name.familyName", change.familyName},
+                {"name.givenName", change.givenName}, {"email", change.email}}) {
+            if (value[1] == null || value[1].trim().isEmpty()) {
+                throw new IllegalArgumentException("The user [" + id + "] has no " + value[0]);
+            }
+        }
+        return change;
+    }
+
+    /**
+     * @param id the id of a user that is no longer active
+     * @return the change
+     */
+    static UserChange remove(String id) {
+        return new UserChange(id, Type.REMOVE, null, null, null, null, Collections.<String, String>emptyMap());
+    }
+
+    /**
+     * @param id the id of a user whose last change the users file now holds
+     * @return the change
+     */
+    static UserChange forget(String id) {
+        return new UserChange(id, Type.FORGET, null, null, null, null, Collections.<String, String>emptyMap());
+    }
+
+    /**
+     * @return the change as a map, to write as one JSON line of the journal
+     */
+    Map<String, Object> toJson() {
+        Map<String, Object> json = new LinkedHashMap<String, Object>();
+        json.put("op", type.journalName);
+        json.put("id", id);
+        if (type == Type.PUT) {
+            json.put("userName", userName);
+            json.put("familyName", familyName);
+            json.put("givenName", givenName);
+            json.put("email", email);
+            json.put("custom", customValues);
+        }
+        return json;
+    }
+
+    /**
+     * @param json a map written by {@link #toJson()}
+     * @return the change
+     * @throws IllegalArgumentException if the map is not a change
+     */
+    @SuppressWarnings("unchecked")
+    static UserChange fromJson(Map<String, Object> json) {
+        Type type = null;
+        for (Type candidate : Type.values()) {
+            if (candidate.journalName.equals(json.get("op"))) {
+                type = candidate;
+            }
+        }
+        Object id = json.get("id");
+        if (!(id instanceof String) || type == null) {
+            throw new IllegalArgumentException("Not a user change: " + json.keySet());
+        }
+        if (type != Type.PUT) {
+            return new UserChange((String) id, type, null, null, null, null, Collections.<String, String>emptyMap());
+        }
+        Map<String, String> customValues = new LinkedHashMap<String, String>();
+        if (json.get("custom") instanceof Map) {
+            for (Map.Entry<String, Object> value : ((Map<String, Object>) json.get("custom")).entrySet()) {
+                customValues.put(value.getKey(), value.getValue() == null ? null : value.getValue().toString());
+            }
+        }
+        return new UserChange((String) id, Type.PUT, (String) json.get("userName"), (String) json.get("familyName"),
+                (String) json.get("givenName"), (String) json.get("email"), customValues);
+    }
+
+    String getId() {
+        return id;
+    }
+
+    Type getType() {
+        return type;
+    }
+
+    String getUserName() {
+        return userName;
+    }
+
+    String getFamilyName() {
+        return familyName;
+    }
+
+    String getGivenName() {
+        return givenName;
+    }
+
+    String getEmail() {
+        return email;
+    }
+
+    /**
+     * @param attributeName the name of a custom attribute
+     * @return the value as text, or null if the user does not have it
+     */
+    String getCustomValue(String attributeName) {
+        return customValues.get(attributeName);
+    }
+
+    @Override
+    public String toString() {
+        return type.journalName + "[" + id + "]";
+    }
+}
@@ -0,0 +1,164 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Okta, Inc. and/or its affiliates. All rights reserved.
+ ******************************************************************************/
+package com.okta.scim.util.file;
+
+import com.okta.scim.util.model.SCIMFilter;
+import com.okta.scim.util.model.SCIMFilterAttribute;
+import com.okta.scim.util.model.SCIMFilterType;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A SCIM filter over the users, as equality terms combined with OR.
+ * <p>
+ * These are the filters the SDK delivers: its {@link com.okta.scim.util.model.SCIMFilterType} only has EQUALS and OR,
+ * any other filter reaches the connector as UNKNOWN and is not supported. The attributes are resolved when the filter
+ * is built: core attributes are named by their path (id, userName, name.familyName, name.givenName or emails), custom
+ * attributes by their name in 'customSchemaName'. Use {@link UserFilterEngine} to find the users matching it.
+ */
+public final class UserFilter {
+
+    /**
+     * The SCIM filter operators the SDK delivers.
+     */
+    public enum Operator {
+        EQ, OR
+    }
+
+    private final Operator operator;
+    private final boolean custom;
+    private final String attribute;
+    private final String value;
+    private final List<UserFilter> expressions;
+
+    private UserFilter(Operator operator, boolean custom, String attribute, String value,
+                       List<UserFilter> expressions) {
+        this.operator = operator;
+        this.custom = custom;
+        this.attribute = attribute;
+        this.value = value;
+        this.expressions = expressions;
+    }
+
+    /**
+     * @param expressions the filters to combine with OR, at least one
+     * @return the filters combined. Nested OR expressions are flattened.
+     */
+    public static UserFilter or(List<UserFilter> expressions) {
+        if (expressions.isEmpty()) {
+            throw new IllegalArgumentException("An OR filter needs at least one expression");
+        }
+        List<UserFilter> flattened = new ArrayList<UserFilter>(expressions.size());
+        for (UserFilter expression : expressions) {
+            if (expression.operator == Operator.OR) {
+                flattened.addAll(expression.expressions);
+            } else {
+                flattened.add(expression);
+            }
+        }
+        if (flattened.size() == 1) {
+            return flattened.get(0);
+        }
+        return new UserFilter(Operator.OR, false, null, null, Collections.unmodifiableList(flattened));
+    }
+
+    /**
+     * Convert the filter of a request.
+     *
+     * @param filter           the filter, as built by the SDK
+     * @param customSchemaName the schema of the custom attributes
+     * @return the filter, or null if it is not an EQUALS filter or an OR of them
+     */
+    public static UserFilter of(SCIMFilter filter, String customSchemaName) {
+        SCIMFilterType filterType = filter.getFilterType();
+        if (filterType == SCIMFilterType.OR) {
+            List<UserFilter> expressions = new ArrayList<UserFilter>();
+            if (filter.getFilterExpressions() != null) {
+                for (SCIMFilter expression : filter.getFilterExpressions()) {
+                    UserFilter userFilter = of(expression, customSchemaName);
+                    if (userFilter == null) {
+                        return null;
+                    }
+                    expressions.add(userFilter);
+                }
+            }
+            return expressions.isEmpty() ? null : or(expressions);
+        } else if (filterType != SCIMFilterType.EQUALS) {
+            return null;
+        }
+        SCIMFilterAttribute attribute = filter.getFilterAttribute();
+        boolean custom = customSchemaName != null && customSchemaName.equalsIgnoreCase(attribute.getSchema());
+        String path = custom ? attribute.getAttributeName()
+                : corePath(attribute.getAttributeName(), attribute.getSubAttributeName());
+        return new UserFilter(Operator.EQ, custom, path, filter.getFilterValue(), Collections.<UserFilter>emptyList());
+    }
+
+    /**
+     * @return the canonical path of a core attribute, as given if it is not one the connector knows
+     */
+    private static String corePath(String attributeName, String subAttributeName) {
+        String path = subAttributeName == null ? attributeName : attributeName + "." + subAttributeName;
+        String lowerCase = path.toLowerCase(Locale.ENGLISH);
+        if (lowerCase.equals("id")) {
+            return "id";
+        } else if (lowerCase.equals("username")) {
+            return "userName";
+        } else if (lowerCase.equals("name.familyname")) {
+            return "name.familyName";
+        } else if (lowerCase.equals("name.givenname")) {
+            return "name.givenName";
+        } else if (lowerCase.equals("email") || lowerCase.equals("emails") || lowerCase.equals("emails.value")) {
+            return "emails";
+        }
+        return path;
+    }
+
+    public Operator getOperator() {
+        return operator;
+    }
+
+    /**
+     * @return true if the attribute of the term is an attribute of 'customSchemaName'
+     */
+    public boolean isCustom() {
+        return custom;
+    }
+
+    /**
+     * @return the path of the core attribute or the name of the custom attribute of a term, null for OR
+     */
+    public String getAttribute() {
+        return attribute;
+    }
+
+    /**
+     * @return the value of a term, null for OR
+     */
+    public String getValue() {
+        return value;
+    }
+
+    /**
+     * @return the expressions of an OR filter, empty for a term
+     */
+    public List<UserFilter> getExpressions() {
+        return expressions;
+    }
+
+    @Override
+    public String toString() {
+        if (operator == Operator.OR) {
+            StringBuilder text = new StringBuilder("(");
+            for (int i = 0; i < expressions.size(); i++) {
+                text.append(i == 0 ? "" : " or ").append(expressions.get(i));
+            }
+            return text.append(')').toString();
+        }
+        String text = (custom ? "custom:" : "") + attribute + " " + operator.name().toLowerCase(Locale.ENGLISH);
+        return value == null ? text : text + " \"" + value + "\"";
+    }
+}
@@ -0,0 +1,137 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Okta, Inc. and/or its affiliates. All rights reserved.
+ ******************************************************************************/
+package com.okta.scim.util.file;
+
+import java.util.Arrays;
+
+/**
+ * Finds the rows of a {@link UserSnapshot} that match a {@link UserFilter}.
+ * <p>
+ * An equality term on id, userName, emails, name.familyName, name.givenName or an indexed custom attribute is a hash
+ * index lookup, see {@link UserIndex}. An equality term on a custom attribute that is not indexed scans the column of
+ * the attribute, one value after the other, without building any user. The users provisioned since the snapshot
+ * was built are looked up the same way in its {@link UserOverlay}. An OR merges the rows of its terms, so a user
+ * matching several of them is only returned once.
+ * <p>
+ * Values are compared as the equality filters always were: emails and custom attributes ignoring case, the other
+ * attributes exactly. An engine answers the filters of one request, it is not thread safe.
+ */
+final class UserFilterEngine {
+    private static final int[] NO_ROWS = new int[0];
+
+    private final UserSnapshot snapshot;
+    private final UserOverlay overlay;
+    private final ConnectorMetrics metrics;
+
+    /**
+     * @param snapshot the users to search
+     * @param metrics  records whether a term was answered by an index or a scan
+     */
+    UserFilterEngine(UserSnapshot snapshot, ConnectorMetrics metrics) {
+        this.snapshot = snapshot;
+        this.overlay = snapshot.getOverlay();
+        this.metrics = metrics;
+    }
+
+    /**
+     * @param filter a filter
+     * @return the rows matching the filter, in snapshot order
+     */
+    int[] find(UserFilter filter) {
+        if (filter.getOperator() == UserFilter.Operator.OR) {
+            int[] rows = NO_ROWS;
+            for (UserFilter expression : filter.getExpressions()) {
+                rows = union(rows, find(expression));
+            }
+            return rows;
+        }
+        String attribute = filter.getAttribute();
+        String value = filter.getValue();
+        CompactUserStore store = snapshot.getStore();
+        UserIndex index = snapshot.getIndex();
+        if (value == null) {
+            return NO_ROWS;
+        } else if (attribute.equals("id")) {
+            metrics.recordLookup(true);
+            int row = snapshot.rowOf(value);
+            return row < 0 ? NO_ROWS : new int[]{row};
+        } else if (filter.isCustom() && !store.hasCustomAttribute(attribute)) {
+            return NO_ROWS;
+        }
+        int[] rows = find(filter, store, index);
+        if (rows == null) {
+            return NO_ROWS;
+        }
+        metrics.recordLookup(!filter.isCustom() || index.isCustomAttributeIndexed(attribute));
+        return overlay.isEmpty() ? rows : overlay.merge(rows, find(filter, overlay.getStore(), overlay.getIndex()));
+    }
+
+    /**
+     * @return the rows of a store matching an equality term, or null if the attribute cannot be filtered on
+     */
+    private static int[] find(UserFilter filter, CompactUserStore store, UserIndex index) {
+        String attribute = filter.getAttribute();
+        String value = filter.getValue();
+        if (filter.isCustom()) {
+            if (!index.isCustomAttributeIndexed(attribute)) {
+                return scan(store, store.customValues(attribute), value);
+            }
+            return index.findByCustomAttribute(attribute, value);
+        }
+        if (attribute.equals("userName")) {
+            return index.findByUserName(value);
+        } else if (attribute.equals("emails")) {
+            return index.findByEmail(value);
+        } else if (attribute.equals("name.familyName")) {
+            return index.findByFamilyName(value);
+        } else if (attribute.equals("name.givenName")) {
+            return index.findByGivenName(value);
+        }
+        return null;
+    }
+
+    /**
+     * @return the rows whose value of a custom column equals a value ignoring case
+     */
+    private static int[] scan(CompactUserStore store, RowIndex.Values column, String value) {
+        int[] rows = new int[16];
+        int found = 0;
+        for (int row = 0; row < store.size(); row++) {
+            String text = column.get(row);
+            if (text != null && text.equalsIgnoreCase(value)) {
+                if (found == rows.length) {
+                    rows = Arrays.copyOf(rows, found * 2);
+                }
+                rows[found++] = row;
+            }
+        }
+        return Arrays.copyOf(rows, found);
+    }
+
+    /**
+     * @return the rows in either array, both in row order
+     */
+    private static int[] union(int[] a, int[] b) {
+        if (a.length == 0) {
+            return b;
+        } else if (b.length == 0) {
+            return a;
+        }
+        int[] rows = new int[a.length + b.length];
+        int i = 0;
+        int j = 0;
+        int count = 0;
+        while (i < a.length || j < b.length) {
+            if (j == b.length || i < a.length && a[i] < b[j]) {
+                rows[count++] = a[i++];
+            } else if (i == a.length || b[j] < a[i]) {
+                rows[count++] = b[j++];
+            } else {
+                rows[count++] = a[i++];
+                j++;
+            }
+        }
+        return Arrays.copyOf(rows, count);
+    }
+}
@@ -0,0 +1,279 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Okta, Inc. and/or its affiliates. All rights reserved.
+ ******************************************************************************/
+package com.okta.scim.util.file;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The groups of one {@link UserSnapshot}, with the members of every group and the groups of every user.
+ * <p>
+ * The groups come from the 'groupsMembershipAttribute' custom attribute of the users, which lists the names of the
+ * groups of a user, and from the {@link GroupsFile}. A group of the attribute has its name as id and display name.
+ * <p>
+ * Both directions are kept as arrays of rows: the members of a group are a range of one int array, in row order, and
+ * so are the groups of a user. Resolving a group of 100k members or a page of it never looks at the other users.
+ */
+public final class UserGroups {
+    private static final Logger LOGGER = LoggerFactory.getLogger(UserGroups.class);
+
+    private static final String DEFAULT_SEPARATOR = ";";
+    private static final UserGroups EMPTY = new UserGroups(new String[0], new String[0], new HashMap<String, Integer>(),
+            new int[]{0}, new int[0], new int[]{0}, new int[0]);
+
+    private final String[] ids;
+    private final String[] displayNames;
+    private final Map<String, Integer> groupsById;
+    //The members of group g are members[memberOffsets[g], memberOffsets[g + 1])
+    private final int[] memberOffsets;
+    private final int[] members;
+    //The groups of row r are userGroups[userGroupOffsets[r], userGroupOffsets[r + 1])
+    private final int[] userGroupOffsets;
+    private final int[] userGroups;
+
+    private UserGroups(String[] ids, String[] displayNames, Map<String, Integer> groupsById, int[] memberOffsets,
+                       int[] members, int[] userGroupOffsets, int[] userGroups) {
+        this.ids = ids;
+        this.displayNames = displayNames;
+        this.groupsById = groupsById;
+        this.memberOffsets = memberOffsets;
+        this.members = members;
+        this.userGroupOffsets = userGroupOffsets;
+        this.userGroups = userGroups;
+    }
+
+    /**
+     * @return no groups
+     */
+    public static UserGroups empty() {
+        return EMPTY;
+    }
+
+    /**
+     * Where the groups come from. Kept by the {@link UserCache} to build the groups of every snapshot it publishes.
+     */
+    static final class Source {
+        static final Source NONE = new Source(null, null, DEFAULT_SEPARATOR);
+
+        private final GroupsFile groupsFile;
+        private final String membershipAttribute;
+        private final String separator;
+
+        /**
+         * @param groupsFile          the groups file, or null
+         * @param membershipAttribute the custom attribute listing the groups of a user, or null
+         * @param separator           the separator of the group names in the attribute
+         */
+        Source(GroupsFile groupsFile, String membershipAttribute, String separator) {
+            this.groupsFile = groupsFile;
+            this.membershipAttribute = membershipAttribute;
+            this.separator = separator;
+        }
+
+        GroupsFile getGroupsFile() {
+            return groupsFile;
+        }
+
+        String getMembershipAttribute() {
+            return membershipAttribute;
+        }
+
+        String getSeparator() {
+            return separator;
+        }
+
+        /**
+         * @return the groups of the users of a store
+         */
+        UserGroups build(CompactUserStore store) {
+            if (groupsFile == null && membershipAttribute == null) {
+                return EMPTY;
+            }
+            return UserGroups.build(store, this);
+        }
+    }
+
+    private static UserGroups build(CompactUserStore store, Source source) {
+        List<String> ids = new ArrayList<String>();
+        List<String> displayNames = new ArrayList<String>();
+        Map<String, Integer> groupsById = new HashMap<String, Integer>();
+        int[] pairGroups = new int[Math.max(16, store.size())];
+        int[] pairRows = new int[pairGroups.length];
+        int pairCount = 0;
+        int unknownMembers = 0;
+
+        if (source.groupsFile != null) {
+            for (Map.Entry<String, String> group : source.groupsFile.getDisplayNames().entrySet()) {
+                groupsById.put(group.getKey(), ids.size());
+                ids.add(group.getKey());
+                displayNames.add(group.getValue());
+            }
+            for (int i = 0; i < source.groupsFile.getMembershipCount(); i++) {
+                int row = store.rowOf(source.groupsFile.getMemberUserId(i));
+                if (row < 0) {
+                    //Inactive, not in the users file yet or removed by Okta
+                    unknownMembers++;
+                    continue;
+                }
+                if (pairCount == pairGroups.length) {
+                    pairGroups = Arrays.copyOf(pairGroups, pairCount * 2);
+                    pairRows = Arrays.copyOf(pairRows, pairCount * 2);
+                }
+                pairGroups[pairCount] = groupsById.get(source.groupsFile.getMemberGroupId(i));
+                pairRows[pairCount++] = row;
+            }
+        }
+        if (source.membershipAttribute != null && store.hasCustomAttribute(source.membershipAttribute)) {
+            for (int row = 0; row < store.size(); row++) {
+                for (String name : split(store.getCustomText(source.membershipAttribute, row), source.separator)) {
+                    Integer group = groupsById.get(name);
+                    if (group == null) {
+                        group = ids.size();
+                        groupsById.put(name, group);
+                        ids.add(name);
+                        displayNames.add(name);
+                    }
+                    if (pairCount == pairGroups.length) {
+                        pairGroups = Arrays.copyOf(pairGroups, pairCount * 2);
+                        pairRows = Arrays.copyOf(pairRows, pairCount * 2);
+                    }
+                    pairGroups[pairCount] = group;
+                    pairRows[pairCount++] = row;
+                }
+            }
+        }
+        if (unknownMembers > 0) {
+            LOGGER.debug("{} members of the groups file are not active users", unknownMembers);
+        }
+
+        int[][] byGroup = group(pairGroups, pairRows, pairCount, ids.size());
+        int[][] byUser = group(pairRows, pairGroups, pairCount, store.size());
+        return new UserGroups(ids.toArray(new String[ids.size()]), displayNames.toArray(new String[ids.size()]),
+                groupsById, byGroup[0], byGroup[1], byUser[0], byUser[1]);
+    }
+
+    /**
+     * Group pairs by key, with a counting sort.
+     *
+     * @return the offsets of every key, and the values of every key sorted and without duplicates
+     */
+    private static int[][] group(int[] keys, int[] values, int count, int keyCount) {
+        int[] offsets = new int[keyCount + 1];
+        for (int i = 0; i < count; i++) {
+            offsets[keys[i] + 1]++;
+        }
+        for (int key = 0; key < keyCount; key++) {
+            offsets[key + 1] += offsets[key];
+        }
+        int[] grouped = new int[count];
+        int[] next = Arrays.copyOf(offsets, keyCount);
+        for (int i = 0; i < count; i++) {
+            grouped[next[keys[i]]++] = values[i];
+        }
+        //Sort the values of every key and drop the duplicates, a user listed twice in a group is one member
+        int length = 0;
+        for (int key = 0; key < keyCount; key++) {
+            int from = offsets[key];
+            int to = offsets[key + 1];
+            Arrays.sort(grouped, from, to);
+            offsets[key] = length;
+            for (int i = from; i < to; i++) {
+                if (i == from || grouped[i] != grouped[i - 1]) {
+                    grouped[length++] = grouped[i];
+                }
+            }
+        }
+        offsets[keyCount] = length;
+        return new int[][]{offsets, length == count ? grouped : Arrays.copyOf(grouped, length)};
+    }
+
+    /**
+     * @param config the configuration
+     * @return the separator of the group names and member ids, ';' by default
+     */
+    static String separator(ConnectorConfig config) {
+        String separator = config.getProperty("groupsMembershipSeparator", DEFAULT_SEPARATOR);
+        return separator.isEmpty() ? DEFAULT_SEPARATOR : separator;
+    }
+
+    /**
+     * @return the trimmed, non empty parts of a list
+     */
+    static List<String> split(String list, String separator) {
+        List<String> parts = new ArrayList<String>();
+        if (list == null) {
+            return parts;
+        }
+        int from = 0;
+        while (from <= list.length()) {
+            int to = list.indexOf(separator, from);
+            if (to < 0) {
+                to = list.length();
+            }
+            String part = list.substring(from, to).trim();
+            if (!part.isEmpty()) {
+                parts.add(part);
+            }
+            from = to + separator.length();
+        }
+        return parts;
+    }
+
+    /**
+     * @return the number of groups
+     */
+    public int size() {
+        return ids.length;
+    }
+
+    /**
+     * @param id the id of a group
+     * @return the group, or -1 if there is no group with this id
+     */
+    public int indexOf(String id) {
+        Integer group = groupsById.get(id);
+        return group == null ? -1 : group;
+    }
+
+    public String getId(int group) {
+        return ids[group];
+    }
+
+    public String getDisplayName(int group) {
+        return displayNames[group];
+    }
+
+    public int getMemberCount(int group) {
+        return memberOffsets[group + 1] - memberOffsets[group];
+    }
+
+    /**
+     * @param group the group
+     * @param from  the first member, from 0
+     * @param count the maximum number of members
+     * @return the rows of the members, in row order
+     */
+    public int[] getMembers(int group, int from, int count) {
+        int start = memberOffsets[group] + Math.max(0, from);
+        int end = (int) Math.min(memberOffsets[group + 1], (long) start + Math.max(0, count));
+        return start >= end ? new int[0] : Arrays.copyOfRange(members, start, end);
+    }
+
+    /**
+     * @param row a row of the store the groups were built for
+     * @return the groups of the user, in group order
+     */
+    public int[] getGroupsOf(int row) {
+        if (row + 1 >= userGroupOffsets.length) {
+            return new int[0];
+        }
+        return Arrays.copyOfRange(userGroups, userGroupOffsets[row], userGroupOffsets[row + 1]);
+    }
+}
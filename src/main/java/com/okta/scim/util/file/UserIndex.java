@@ -0,0 +1,153 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Okta, Inc. and/or its affiliates. All rights reserved.
+ ******************************************************************************/
+package com.okta.scim.util.file;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Hash indexes over the rows of one {@link UserSnapshot}, used to answer the equality filters Okta sends.
+ * <p>
+ * userName, name.familyName and name.givenName are matched exactly. Emails and the configured custom attributes are
+ * matched ignoring case, as the filter scan did. Every lookup returns the rows of the store in snapshot order; use
+ * {@link UserSnapshot#getUsers(int[])} to build the users.
+ */
+public final class UserIndex {
+    private static final UserIndex EMPTY = build(CompactUserStore.empty(), Collections.<String>emptyList());
+
+    private final RowIndex byUserName;
+    private final RowIndex byEmail;
+    private final RowIndex byFamilyName;
+    private final RowIndex byGivenName;
+    private final Map<String, RowIndex> byCustomAttribute;
+
+    private UserIndex(RowIndex byUserName, RowIndex byEmail, RowIndex byFamilyName, RowIndex byGivenName,
+                      Map<String, RowIndex> byCustomAttribute) {
+        this.byUserName = byUserName;
+        this.byEmail = byEmail;
+        this.byFamilyName = byFamilyName;
+        this.byGivenName = byGivenName;
+        this.byCustomAttribute = byCustomAttribute;
+    }
+
+    /**
+     * @return an index without any users
+     */
+    public static UserIndex empty() {
+        return EMPTY;
+    }
+
+    /**
+     * Build the indexes for a set of users.
+     *
+     * @param store            the users
+     * @param customAttributes the names of the custom attributes to index. Attributes that are not mapped are ignored.
+     * @return the index
+     */
+    public static UserIndex build(CompactUserStore store, Collection<String> customAttributes) {
+        int size = store.size();
+        Map<String, RowIndex> byCustomAttribute = new HashMap<String, RowIndex>();
+        for (String attribute : customAttributes) {
+            RowIndex.Values values = store.customValues(attribute);
+            if (values != null) {
+                byCustomAttribute.put(attribute, RowIndex.build(size, values, true, false));
+            }
+        }
+        return new UserIndex(RowIndex.build(size, store.userNameValues(), false, false),
+                RowIndex.build(size, store.emailValues(), true, false),
+                RowIndex.build(size, store.familyNameValues(), false, false),
+                RowIndex.build(size, store.givenNameValues(), false, false),
+                byCustomAttribute);
+    }
+
+    /**
+     * Read the indexes written by {@link #writeTo}.
+     *
+     * @param store the users the indexes were built for
+     */
+    static UserIndex readFrom(UserSnapshotFile.Input in, CompactUserStore store) throws IOException {
+        RowIndex byUserName = RowIndex.readFrom(in, store.userNameValues());
+        RowIndex byEmail = RowIndex.readFrom(in, store.emailValues());
+        RowIndex byFamilyName = RowIndex.readFrom(in, store.familyNameValues());
+        RowIndex byGivenName = RowIndex.readFrom(in, store.givenNameValues());
+        Map<String, RowIndex> byCustomAttribute = new HashMap<String, RowIndex>();
+        int customCount = in.readInt();
+        for (int i = 0; i < customCount; i++) {
+            String attribute = in.readString();
+            RowIndex.Values values = store.customValues(attribute);
+            if (values == null) {
+                throw new IOException("The snapshot indexes the unknown custom attribute [" + attribute + "]");
+            }
+            byCustomAttribute.put(attribute, RowIndex.readFrom(in, values));
+        }
+        return new UserIndex(byUserName, byEmail, byFamilyName, byGivenName, byCustomAttribute);
+    }
+
+    /**
+     * Write the index tables to a snapshot file.
+     */
+    void writeTo(UserSnapshotFile.Output out) throws IOException {
+        byUserName.writeTo(out);
+        byEmail.writeTo(out);
+        byFamilyName.writeTo(out);
+        byGivenName.writeTo(out);
+        out.writeInt(byCustomAttribute.size());
+        for (Map.Entry<String, RowIndex> entry : byCustomAttribute.entrySet()) {
+            out.writeString(entry.getKey());
+            entry.getValue().writeTo(out);
+        }
+    }
+
+    /**
+     * @return the custom attributes that are indexed
+     */
+    Set<String> getIndexedCustomAttributes() {
+        return byCustomAttribute.keySet();
+    }
+
+    public int[] findByUserName(String userName) {
+        return byUserName.find(userName);
+    }
+
+    /**
+     * @param email the email, in any case
+     * @return the rows having this email
+     */
+    public int[] findByEmail(String email) {
+        return byEmail.find(email);
+    }
+
+    public int[] findByFamilyName(String familyName) {
+        return byFamilyName.find(familyName);
+    }
+
+    public int[] findByGivenName(String givenName) {
+        return byGivenName.find(givenName);
+    }
+
+    /**
+     * @param attributeName the name of a custom attribute
+     * @return true if the attribute was configured to be indexed
+     */
+    public boolean isCustomAttributeIndexed(String attributeName) {
+        return byCustomAttribute.containsKey(attributeName);
+    }
+
+    /**
+     * @param attributeName the name of an indexed custom attribute
+     * @param value         the value, in any case
+     * @return the rows whose custom attribute has this value
+     */
+    public int[] findByCustomAttribute(String attributeName, String value) {
+        RowIndex index = byCustomAttribute.get(attributeName);
+        if (index == null) {
+            return new int[0];
+        }
+        return index.find(value);
+    }
+}
@@ -0,0 +1,210 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Okta, Inc. and/or its affiliates. All rights reserved.
+ ******************************************************************************/
+package com.okta.scim.util.file;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The append-only file the provisioned {@link UserChange}s are written to, one JSON object per line, so that they
+ * survive a restart and are applied again over the users file.
+ * <p>
+ * {@link #append} writes a whole batch of changes with a single write and a single fsync, and only returns once they
+ * are on disk. A line is only complete with its newline, so a last line cut off by a crash was never acknowledged and
+ * is dropped by {@link #open}. {@link #compact} rewrites the journal with only the changes that still apply, to a
+ * temporary file which is then renamed over the journal. A journal with the passwords an earlier version wrote is
+ * rewritten without them when it is opened.
+ */
+public class UserJournal {
+    private static final Logger LOGGER = LoggerFactory.getLogger(UserJournal.class);
+
+    private static final String UTF_8 = "UTF-8";
+
+    private final File file;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private FileOutputStream output;
+    private int entryCount;
+
+    /**
+     * @param file the journal file. It is created by the first change.
+     */
+    public UserJournal(File file) {
+        this.file = file;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Read the journal and open it for appending.
+     *
+     * @return the last change of every user that still applies, in the order of those changes
+     * @throws IOException if the journal cannot be read or opened
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized Map<String, UserChange> open() throws IOException {
+        Map<String, UserChange> changes = new LinkedHashMap<String, UserChange>();
+        long validLength = 0;
+        boolean passwords = false;
+        entryCount = 0;
+        if (file.isFile()) {
+            InputStream input = new BufferedInputStream(new FileInputStream(file));
+            try {
+                ByteArrayOutputStream line = new ByteArrayOutputStream();
+                long position = 0;
+                int b;
+                while ((b = input.read()) >= 0) {
+                    position++;
+                    if (b != '\n') {
+                        line.write(b);
+                        continue;
+                    }
+                    validLength = position;
+                    try {
+                        Map<String, Object> json = objectMapper.readValue(line.toString(UTF_8), Map.class);
+                        passwords |= json.containsKey("password");
+                        UserChange change = UserChange.fromJson(json);
+                        changes.remove(change.getId());
+                        if (change.getType() != UserChange.Type.FORGET) {
+                            changes.put(change.getId(), change);
+                        }
+                        entryCount++;
+                    } catch (Exception e) {
+                        LOGGER.error("Skipping an unreadable line of the user journal [" + file + "] at byte "
+                                + (position - line.size() - 1), e);
+                    }
+                    line.reset();
+                }
+            } finally {
+                input.close();
+            }
+            if (validLength < file.length()) {
+                LOGGER.warn("Dropping the last " + (file.length() - validLength) + " bytes of the user journal ["
+                        + file + "], an incomplete change written before a crash");
+                RandomAccessFile truncated = new RandomAccessFile(file, "rw");
+                try {
+                    truncated.setLength(validLength);
+                } finally {
+                    truncated.close();
+                }
+            }
+        }
+        output = new FileOutputStream(file, true);
+        LOGGER.info("Opened the user journal [" + file + "] with " + changes.size() + " provisioned users in "
+                + entryCount + " entries");
+        if (passwords) {
+            //Written before the passwords were left out of the changes
+            LOGGER.info("Rewriting the user journal [" + file + "] without the passwords it holds");
+            compact(changes.values());
+        }
+        return changes;
+    }
+
+    /**
+     * Append changes and force them to disk.
+     *
+     * @param changes the changes, in order
+     * @throws IOException if they cannot be written
+     */
+    public synchronized void append(Collection<UserChange> changes) throws IOException {
+        if (output == null) {
+            throw new IOException("The user journal [" + file + "] is not open");
+        }
+        long length = output.getChannel().size();
+        try {
+            write(output, toBytes(changes));
+        } catch (IOException e) {
+            //Do not leave a partial line for the next changes to be appended to
+            try {
+                output.getChannel().truncate(length);
+            } catch (IOException truncateException) {
+                LOGGER.warn("Cannot remove the partial changes from the user journal [" + file + "]",
+                        truncateException);
+            }
+            throw e;
+        }
+        entryCount += changes.size();
+    }
+
+    /**
+     * Write bytes at the end of the journal and force them to disk.
+     */
+    void write(FileOutputStream journalOutput, byte[] bytes) throws IOException {
+        journalOutput.write(bytes);
+        journalOutput.getChannel().force(false);
+    }
+
+    /**
+     * Replace the journal with the given changes.
+     *
+     * @param changes the changes that still apply
+     * @throws IOException if the journal cannot be rewritten. The previous journal is then kept.
+     */
+    public synchronized void compact(Collection<UserChange> changes) throws IOException {
+        File compacted = new File(file.getPath() + ".tmp");
+        FileOutputStream compactedOutput = new FileOutputStream(compacted);
+        try {
+            compactedOutput.write(toBytes(changes));
+            compactedOutput.getChannel().force(false);
+        } finally {
+            compactedOutput.close();
+        }
+        try {
+            if (output != null) {
+                output.close();
+            }
+            Files.move(compacted.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            output = new FileOutputStream(file, true);
+        }
+        LOGGER.info("Compacted the user journal [" + file + "] from " + entryCount + " to " + changes.size()
+                + " entries");
+        entryCount = changes.size();
+    }
+
+    private byte[] toBytes(Collection<UserChange> changes) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(changes.size() * 256);
+        for (UserChange change : changes) {
+            bytes.write(objectMapper.writeValueAsString(change.toJson()).getBytes(UTF_8));
+            bytes.write('\n');
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @return the number of entries in the journal, including the ones replaced by later changes
+     */
+    public synchronized int getEntryCount() {
+        return entryCount;
+    }
+
+    public synchronized void close() {
+        if (output == null) {
+            return;
+        }
+        try {
+            output.close();
+        } catch (IOException e) {
+            LOGGER.warn("Cannot close the user journal [" + file + "]", e);
+        }
+        output = null;
+    }
+}
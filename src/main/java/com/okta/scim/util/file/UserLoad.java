@@ -0,0 +1,297 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Okta, Inc. and/or its affiliates. All rights reserved.
+ ******************************************************************************/
+package com.okta.scim.util.file;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Collects the users of one load of the users file into a {@link CompactUserStore}, in file order, and the
+ * {@link Rejection}s of the records that could not be loaded.
+ * <p>
+ * An incremental load is based on the previous snapshot: it records the content hash of every row, copies the
+ * unchanged rows of that snapshot's store, and counts the users added, changed and removed compared to it.
+ */
+public final class UserLoad {
+    //The rejections kept for the quarantine file, the others are only counted
+    private static final int MAX_REJECTIONS = 100000;
+
+    private final boolean incremental;
+    private final CompactUserStore previous;
+
+    private CompactUserStore.Builder builder;
+    private CompactUserStore store = CompactUserStore.empty();
+    private int addedCount;
+    private int changedCount;
+    private int removedCount;
+    private long inactiveCount;
+    private long rejectedCount;
+    private final List<Rejection> rejections = new ArrayList<Rejection>();
+    private final List<FileStats> fileStats = new ArrayList<FileStats>();
+
+    /**
+     * @param previous    the snapshot of the previous load, or null
+     * @param incremental true to reuse the unchanged rows of the previous snapshot and record the row hashes for the
+     *                    next load
+     */
+    public UserLoad(UserSnapshot previous, boolean incremental) {
+        this.incremental = incremental;
+        this.previous = previous == null ? null : previous.getStore();
+    }
+
+    /**
+     * Get a converter for the rows of one file. The files of a load may have their columns in a different order, but
+     * must be read with the same column mapping. Can be called by several threads.
+     *
+     * @param mappingPlan the plan of the file
+     * @param fileName    the name of the file
+     * @return a converter to extract the rows of this load with
+     */
+    synchronized UserRowConverter converter(CSVMappingPlan mappingPlan, String fileName) {
+        if (builder == null) {
+            builder = new CompactUserStore.Builder(mappingPlan, incremental);
+        }
+        if (!incremental) {
+            return new UserRowConverter(mappingPlan, false, null, fileName);
+        }
+        if (previous == null || !previous.hasRowHashes()) {
+            return new UserRowConverter(mappingPlan, true, null, fileName);
+        }
+        return new UserRowConverter(mappingPlan, true, previous, fileName);
+    }
+
+    /**
+     * Add a converted row. A later row with the same id replaces the earlier one.
+     */
+    void add(UserRowConverter.Row row) {
+        if (row.getValues() == null) {
+            builder.copy(previous, row.getPreviousRow());
+        } else {
+            builder.add(row.getValues(), row.getContentHash());
+        }
+    }
+
+    /**
+     * Record a record that could not be loaded.
+     */
+    void reject(Rejection rejection) {
+        rejectedCount++;
+        if (rejections.size() < MAX_REJECTIONS) {
+            rejections.add(rejection);
+        }
+    }
+
+    /**
+     * Count the records of inactive users, which were not added.
+     */
+    void countInactive(long inactive) {
+        inactiveCount += inactive;
+    }
+
+    /**
+     * Record how the rows of one of several files were read.
+     */
+    void addFileStats(FileStats stats) {
+        fileStats.add(stats);
+    }
+
+    /**
+     * Build the store and compare it with the previous snapshot. Called once all the rows have been added.
+     */
+    void finish() {
+        if (builder != null) {
+            for (int row = 0; row < builder.size(); row++) {
+                if (previous == null || previous.rowOf(builder.getId(row)) < 0) {
+                    addedCount++;
+                } else if (!builder.isReused(row)) {
+                    changedCount++;
+                }
+            }
+            store = builder.build();
+            builder = null;
+        }
+        if (previous != null) {
+            for (int row = 0; row < previous.size(); row++) {
+                if (store.rowOf(previous.getId(row)) < 0) {
+                    removedCount++;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the loaded users, empty until the load is finished
+     */
+    public CompactUserStore getStore() {
+        return store;
+    }
+
+    /**
+     * @return the number of users that were not in the previous snapshot
+     */
+    public int getAddedCount() {
+        return addedCount;
+    }
+
+    /**
+     * @return the number of users of the previous snapshot that were built again. For an incremental load these are
+     * the users whose row changed.
+     */
+    public int getChangedCount() {
+        return changedCount;
+    }
+
+    /**
+     * @return the number of users of the previous snapshot that are no longer loaded
+     */
+    public int getRemovedCount() {
+        return removedCount;
+    }
+
+    /**
+     * @return the number of records skipped because the user is inactive
+     */
+    public long getInactiveCount() {
+        return inactiveCount;
+    }
+
+    /**
+     * @return the number of records rejected because they are short, a mandatory field is empty or a number cannot be
+     * parsed
+     */
+    public long getRejectedCount() {
+        return rejectedCount;
+    }
+
+    /**
+     * @return the rejected records, in file order, up to the first 100000
+     */
+    public List<Rejection> getRejections() {
+        return Collections.unmodifiableList(rejections);
+    }
+
+    /**
+     * @return the counts of every file, in merge order, when the load read several files. Empty otherwise.
+     */
+    public List<FileStats> getFileStats() {
+        return Collections.unmodifiableList(fileStats);
+    }
+
+    /**
+     * The records read from one file of a load.
+     */
+    public static final class FileStats {
+        private final String fileName;
+        private final long recordCount;
+        private final long inactiveCount;
+        private final long rejectedCount;
+        private final long elapsedMillis;
+
+        FileStats(String fileName, long recordCount, long inactiveCount, long rejectedCount, long elapsedMillis) {
+            this.fileName = fileName;
+            this.recordCount = recordCount;
+            this.inactiveCount = inactiveCount;
+            this.rejectedCount = rejectedCount;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        public String getFileName() {
+            return fileName;
+        }
+
+        public long getRecordCount() {
+            return recordCount;
+        }
+
+        /**
+         * @return the records that were converted to users. A user may still be replaced by a later file.
+         */
+        public long getAcceptedCount() {
+            return recordCount - inactiveCount - rejectedCount;
+        }
+
+        public long getInactiveCount() {
+            return inactiveCount;
+        }
+
+        public long getRejectedCount() {
+            return rejectedCount;
+        }
+
+        /**
+         * @return the time spent reading and converting the file
+         */
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+
+        @Override
+        public String toString() {
+            return "[" + fileName + "]: records=" + recordCount + " accepted=" + getAcceptedCount() + " inactive="
+                    + inactiveCount + " rejected=" + rejectedCount + " in " + elapsedMillis + "ms";
+        }
+    }
+
+    /**
+     * A record that could not be loaded, with the reason, to be written to the quarantine file.
+     */
+    public static final class Rejection {
+        private final String fileName;
+        private final String[] header;
+        private final long recordNumber;
+        private final String reason;
+        private final String[] fields;
+
+        Rejection(String fileName, String[] header, long recordNumber, String reason, String[] fields) {
+            this.fileName = fileName;
+            this.header = header;
+            this.recordNumber = recordNumber;
+            this.reason = reason;
+            this.fields = fields;
+        }
+
+        /**
+         * @param recordOffset the number of records before the chunk the record was numbered in
+         * @return the rejection with the number of the record in the file
+         */
+        Rejection withRecordOffset(long recordOffset) {
+            return new Rejection(fileName, header, recordOffset + recordNumber, reason, fields);
+        }
+
+        public String getFileName() {
+            return fileName;
+        }
+
+        /**
+         * @return the names of the columns of the file
+         */
+        String[] getHeader() {
+            return header;
+        }
+
+        /**
+         * @return the number of the record in the file, from 1 for the record after the header
+         */
+        public long getRecordNumber() {
+            return recordNumber;
+        }
+
+        public String getReason() {
+            return reason;
+        }
+
+        /**
+         * @return the fields of the record, as read
+         */
+        String[] getFields() {
+            return fields;
+        }
+
+        @Override
+        public String toString() {
+            return "[" + fileName + "] record " + recordNumber + ": " + reason;
+        }
+    }
+}
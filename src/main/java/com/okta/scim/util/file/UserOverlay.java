@@ -0,0 +1,376 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Okta, Inc. and/or its affiliates. All rights reserved.
+ ******************************************************************************/
+package com.okta.scim.util.file;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The users provisioned over the store of a {@link UserSnapshot}, kept apart from it so that publishing a change does
+ * not copy and index all the users again.
+ * <p>
+ * The added and replaced users are held in a small {@link CompactUserStore} of their own, with a {@link UserIndex}
+ * and their groups. A replaced user is served at the row it has in the base store, an added user after the last base
+ * row, and the base rows of the replaced and removed users are hidden. Building an overlay only looks at the changed
+ * users, and the {@link UserCache} folds it into a new base store on a background thread once it holds
+ * 'usersJournalOverlayMaxUsers' users.
+ * <p>
+ * The rows of a snapshot with an overlay are the base rows, then baseSize + i for the i-th added user. An overlay is
+ * immutable.
+ */
+final class UserOverlay {
+    private static final int[] NO_ROWS = new int[0];
+
+    static final UserOverlay EMPTY = new UserOverlay(Collections.<String, UserChange>emptyMap(), 0,
+            CompactUserStore.empty(), UserIndex.empty(), NO_ROWS, NO_ROWS, NO_ROWS, NO_ROWS, NO_ROWS,
+            new ArrayList<String>(0), new HashMap<String, Integer>(), 0, new int[0][], new HashMap<Integer, int[]>());
+
+    //The last change of every user, in the order the users were first changed
+    private final Map<String, UserChange> changes;
+    private final int baseSize;
+    private final CompactUserStore store;
+    private final UserIndex index;
+    //The snapshot row of every row of the overlay store
+    private final int[] rows;
+    //The base rows of the replaced and removed users, sorted, and the overlay row replacing each one, -1 if removed
+    private final int[] hiddenRows;
+    private final int[] replacements;
+    //The base rows of the removed users, sorted
+    private final int[] removedRows;
+    //The overlay row of every added user, in the order they were added
+    private final int[] addedRows;
+    //The groups of the overlay users that the base groups do not have, numbered after them
+    private final List<String> addedGroupIds;
+    private final Map<String, Integer> addedGroupsById;
+    private final int baseGroupCount;
+    //The groups of every overlay row, sorted, and the snapshot rows of the overlay members of every group, sorted
+    private final int[][] groupsOf;
+    private final Map<Integer, int[]> members;
+
+    private UserOverlay(Map<String, UserChange> changes, int baseSize, CompactUserStore store, UserIndex index,
+                        int[] rows, int[] hiddenRows, int[] replacements, int[] removedRows, int[] addedRows,
+                        List<String> addedGroupIds, Map<String, Integer> addedGroupsById, int baseGroupCount,
+                        int[][] groupsOf, Map<Integer, int[]> members) {
+        this.changes = changes;
+        this.baseSize = baseSize;
+        this.store = store;
+        this.index = index;
+        this.rows = rows;
+        this.hiddenRows = hiddenRows;
+        this.replacements = replacements;
+        this.removedRows = removedRows;
+        this.addedRows = addedRows;
+        this.addedGroupIds = addedGroupIds;
+        this.addedGroupsById = addedGroupsById;
+        this.baseGroupCount = baseGroupCount;
+        this.groupsOf = groupsOf;
+        this.members = members;
+    }
+
+    /**
+     * Build the overlay of changes over a base store. Takes time in the number of changed users only.
+     *
+     * @param base                    the users of the snapshot
+     * @param baseGroups              the groups of the base users
+     * @param changes                 the last change of every user, in the order the users were first changed. The
+     *                                PUT changes must have passed {@link CompactUserStore#check}.
+     * @param indexedCustomAttributes the custom attributes to build equality indexes for
+     * @param groupSource             where the groups of the users come from
+     */
+    static UserOverlay build(CompactUserStore base, UserGroups baseGroups, Map<String, UserChange> changes,
+                             Collection<String> indexedCustomAttributes, UserGroups.Source groupSource) {
+        List<UserChange> puts = new ArrayList<UserChange>(changes.size());
+        for (UserChange change : changes.values()) {
+            if (change.getType() == UserChange.Type.PUT) {
+                puts.add(change);
+            }
+        }
+        //Every id is changed once, so the i-th put is row i of the overlay store
+        CompactUserStore store = base.emptyCopy().withChanges(puts);
+        UserIndex index = UserIndex.build(store, indexedCustomAttributes);
+
+        int baseSize = base.size();
+        int[] rows = new int[puts.size()];
+        int[] addedRows = new int[puts.size()];
+        int addedCount = 0;
+        //The base row in the high half and the replacing overlay row in the low half, to sort them together
+        long[] hidden = new long[changes.size()];
+        int hiddenCount = 0;
+        int removedCount = 0;
+        for (int row = 0; row < puts.size(); row++) {
+            int baseRow = base.rowOf(puts.get(row).getId());
+            if (baseRow >= 0) {
+                rows[row] = baseRow;
+                hidden[hiddenCount++] = ((long) baseRow << 32) | row;
+            } else {
+                rows[row] = baseSize + addedCount;
+                addedRows[addedCount++] = row;
+            }
+        }
+        for (UserChange change : changes.values()) {
+            int baseRow = change.getType() == UserChange.Type.REMOVE ? base.rowOf(change.getId()) : -1;
+            if (baseRow >= 0) {
+                hidden[hiddenCount++] = ((long) baseRow << 32) | 0xFFFFFFFFL;
+                removedCount++;
+            }
+        }
+        Arrays.sort(hidden, 0, hiddenCount);
+        int[] hiddenRows = new int[hiddenCount];
+        int[] replacements = new int[hiddenCount];
+        int[] removedRows = new int[removedCount];
+        for (int i = 0, removed = 0; i < hiddenCount; i++) {
+            hiddenRows[i] = (int) (hidden[i] >>> 32);
+            replacements[i] = (int) hidden[i];
+            if (replacements[i] < 0) {
+                removedRows[removed++] = hiddenRows[i];
+            }
+        }
+
+        List<String> addedGroupIds = new ArrayList<String>();
+        Map<String, Integer> addedGroupsById = new HashMap<String, Integer>();
+        int[][] groupsOf = new int[store.size()][];
+        Map<Integer, List<Integer>> memberLists = new HashMap<Integer, List<Integer>>();
+        String attribute = groupSource.getMembershipAttribute();
+        GroupsFile groupsFile = groupSource.getGroupsFile();
+        for (int row = 0; row < store.size(); row++) {
+            List<String> groupIds = new ArrayList<String>();
+            if (groupsFile != null) {
+                groupIds.addAll(groupsFile.getGroupIdsOf(store.getId(row)));
+            }
+            if (attribute != null && store.hasCustomAttribute(attribute)) {
+                groupIds.addAll(UserGroups.split(store.getCustomText(attribute, row), groupSource.getSeparator()));
+            }
+            int[] groups = new int[groupIds.size()];
+            for (int i = 0; i < groups.length; i++) {
+                String id = groupIds.get(i);
+                int group = baseGroups.indexOf(id);
+                if (group < 0) {
+                    Integer added = addedGroupsById.get(id);
+                    if (added == null) {
+                        added = addedGroupIds.size();
+                        addedGroupsById.put(id, added);
+                        addedGroupIds.add(id);
+                    }
+                    group = baseGroups.size() + added;
+                }
+                groups[i] = group;
+            }
+            groups = sortedUnique(groups, groups.length);
+            groupsOf[row] = groups;
+            for (int group : groups) {
+                List<Integer> list = memberLists.get(group);
+                if (list == null) {
+                    list = new ArrayList<Integer>();
+                    memberLists.put(group, list);
+                }
+                list.add(rows[row]);
+            }
+        }
+        Map<Integer, int[]> members = new HashMap<Integer, int[]>();
+        for (Map.Entry<Integer, List<Integer>> group : memberLists.entrySet()) {
+            int[] memberRows = new int[group.getValue().size()];
+            for (int i = 0; i < memberRows.length; i++) {
+                memberRows[i] = group.getValue().get(i);
+            }
+            members.put(group.getKey(), sortedUnique(memberRows, memberRows.length));
+        }
+        return new UserOverlay(changes, baseSize, store, index, rows, hiddenRows, replacements, removedRows,
+                Arrays.copyOf(addedRows, addedCount), addedGroupIds, addedGroupsById, baseGroups.size(), groupsOf,
+                members);
+    }
+
+    /**
+     * @param more changes made after the ones of this overlay, in order
+     * @return the last change of every user, with the users first changed by the new changes after the others
+     */
+    Map<String, UserChange> withChanges(Collection<UserChange> more) {
+        Map<String, UserChange> merged = new LinkedHashMap<String, UserChange>(changes);
+        for (UserChange change : more) {
+            merged.put(change.getId(), change);
+        }
+        return merged;
+    }
+
+    /**
+     * @return the last change of every user, in the order the users were first changed
+     */
+    Map<String, UserChange> getChanges() {
+        return Collections.unmodifiableMap(changes);
+    }
+
+    boolean isEmpty() {
+        return changes.isEmpty();
+    }
+
+    /**
+     * @return the number of users that were changed
+     */
+    int changedCount() {
+        return changes.size();
+    }
+
+    CompactUserStore getStore() {
+        return store;
+    }
+
+    UserIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * @return the number of users of the snapshot
+     */
+    int size() {
+        return baseSize - removedRows.length + addedRows.length;
+    }
+
+    /**
+     * @param id   the id of a user
+     * @param base the base store
+     * @return the snapshot row of the user, or -1 if there is no user with this id
+     */
+    int rowOf(String id, CompactUserStore base) {
+        int row = store.rowOf(id);
+        if (row >= 0) {
+            return rows[row];
+        }
+        return changes.containsKey(id) ? -1 : base.rowOf(id);
+    }
+
+    /**
+     * @param row a snapshot row
+     * @return the row of the user in the overlay store, or -1 if the base store holds it
+     */
+    int overlayRow(int row) {
+        if (row >= baseSize) {
+            return addedRows[row - baseSize];
+        }
+        int hidden = Arrays.binarySearch(hiddenRows, row);
+        return hidden < 0 ? -1 : replacements[hidden];
+    }
+
+    /**
+     * @param from  the position of the first user, from 0
+     * @param count the number of users, within the size
+     * @return the snapshot rows of a page, in page order
+     */
+    int[] pageRows(int from, int count) {
+        int[] page = new int[count];
+        //The base row at the position, after the removed rows before it
+        int row = from;
+        int removed = 0;
+        while (removed < removedRows.length && removedRows[removed] <= row) {
+            removed++;
+            row++;
+        }
+        for (int i = 0; i < count; i++, row++) {
+            while (removed < removedRows.length && removedRows[removed] == row) {
+                removed++;
+                row++;
+            }
+            //Past the base rows, the added rows are baseSize, baseSize + 1...
+            page[i] = row;
+        }
+        return page;
+    }
+
+    /**
+     * @param baseRows    rows of the base store, sorted
+     * @param overlayRows rows of the overlay store
+     * @return the snapshot rows of the base rows that are not hidden and of the overlay rows, sorted
+     */
+    int[] merge(int[] baseRows, int[] overlayRows) {
+        int[] merged = new int[baseRows.length + overlayRows.length];
+        int count = 0;
+        for (int row : baseRows) {
+            if (Arrays.binarySearch(hiddenRows, row) < 0) {
+                merged[count++] = row;
+            }
+        }
+        if (overlayRows.length == 0) {
+            return count == merged.length ? merged : Arrays.copyOf(merged, count);
+        }
+        for (int row : overlayRows) {
+            merged[count++] = rows[row];
+        }
+        return sortedUnique(merged, count);
+    }
+
+    /**
+     * @param baseCount the number of groups of the base users
+     * @return the number of groups of the snapshot
+     */
+    int groupCount(int baseCount) {
+        return baseCount + addedGroupIds.size();
+    }
+
+    /**
+     * @param id the id of a group
+     * @return the group, if only the overlay users have it, or -1
+     */
+    int indexOfAddedGroup(String id) {
+        Integer group = addedGroupsById.get(id);
+        return group == null ? -1 : baseGroupCount + group;
+    }
+
+    /**
+     * @param group a group numbered after the base groups
+     * @return its id, which is also its display name
+     */
+    String getAddedGroupId(int group) {
+        return addedGroupIds.get(group - baseGroupCount);
+    }
+
+    /**
+     * @param overlayRow a row of the overlay store
+     * @return the groups of the user, sorted
+     */
+    int[] getGroupsOf(int overlayRow) {
+        return groupsOf[overlayRow];
+    }
+
+    /**
+     * @param group       a group
+     * @param baseMembers the rows of its members in the base store, sorted
+     * @return the snapshot rows of its members, sorted
+     */
+    int[] getMembers(int group, int[] baseMembers) {
+        int[] overlayMembers = members.get(group);
+        if (hiddenRows.length == 0 && overlayMembers == null) {
+            return baseMembers;
+        }
+        int[] merged = new int[baseMembers.length + (overlayMembers == null ? 0 : overlayMembers.length)];
+        int count = 0;
+        for (int row : baseMembers) {
+            if (Arrays.binarySearch(hiddenRows, row) < 0) {
+                merged[count++] = row;
+            }
+        }
+        if (overlayMembers != null) {
+            System.arraycopy(overlayMembers, 0, merged, count, overlayMembers.length);
+            count += overlayMembers.length;
+        }
+        return sortedUnique(merged, count);
+    }
+
+    /**
+     * @return the first values of an array, sorted and without duplicates
+     */
+    private static int[] sortedUnique(int[] values, int count) {
+        Arrays.sort(values, 0, count);
+        int length = 0;
+        for (int i = 0; i < count; i++) {
+            if (i == 0 || values[i] != values[length - 1]) {
+                values[length++] = values[i];
+            }
+        }
+        return length == values.length ? values : Arrays.copyOf(values, length);
+    }
+}
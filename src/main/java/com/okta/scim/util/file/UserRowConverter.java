@@ -0,0 +1,128 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Okta, Inc. and/or its affiliates. All rights reserved.
+ ******************************************************************************/
+package com.okta.scim.util.file;
+
+/**
+ * Turns CSV records of one file into rows for one load, or into the {@link UserLoad.Rejection} of a record a user
+ * cannot be built from.
+ * <p>
+ * For an incremental load, the content hash of every accepted row is computed and compared with the hash the same
+ * id had in the previous store. If it is unchanged, the row refers to the previous row instead of carrying its values,
+ * and is copied over without converting it again. The converter only reads shared state, so one instance can be used
+ * by several threads.
+ */
+final class UserRowConverter {
+    private final CSVMappingPlan mappingPlan;
+    private final boolean hashRows;
+    private final CompactUserStore previous;
+    private final String fileName;
+    private final String[] header;
+
+    /**
+     * @param mappingPlan the plan to check and extract the rows with
+     * @param hashRows    true to compute the content hash of every row
+     * @param previous    the store of the previous load, or null to convert every row
+     * @param fileName    the name of the file the records are read from
+     */
+    UserRowConverter(CSVMappingPlan mappingPlan, boolean hashRows, CompactUserStore previous, String fileName) {
+        this.mappingPlan = mappingPlan;
+        this.hashRows = hashRows;
+        this.previous = previous;
+        this.fileName = fileName;
+        this.header = mappingPlan.getHeader();
+    }
+
+    /**
+     * @param record       a CSV record
+     * @param recordNumber the number of the record in the file, or in the chunk of the file, from 1
+     * @return the row, a rejected row if the record is short, a mandatory field is empty or a number cannot be
+     * parsed, or null if the user is inactive
+     */
+    Row convert(CSVFields record, long recordNumber) {
+        if (!mappingPlan.hasMappedColumns(record)) {
+            return reject(record, recordNumber, "The record has " + record.size() + " of the " + header.length
+                    + " columns of the header");
+        }
+        // Only load the user if they are an active user and all the mandatory fields are populated.
+        if (!mappingPlan.isActive(record)) {
+            return null;
+        }
+        String problem = mappingPlan.validate(record);
+        if (problem != null) {
+            return reject(record, recordNumber, problem);
+        }
+        if (!hashRows) {
+            return new Row(mappingPlan.values(record), -1, 0);
+        }
+        long contentHash = mappingPlan.contentHash(record);
+        if (previous != null) {
+            int previousRow = previous.rowOf(mappingPlan.getId(record));
+            if (previousRow >= 0 && previous.getRowHash(previousRow) == contentHash) {
+                return new Row(null, previousRow, contentHash);
+            }
+        }
+        return new Row(mappingPlan.values(record), -1, contentHash);
+    }
+
+    private Row reject(CSVFields record, long recordNumber, String reason) {
+        return new Row(new UserLoad.Rejection(fileName, header, recordNumber, reason, record.toArray()));
+    }
+
+    /**
+     * The mapped values of an accepted record, or the row of the previous store it is unchanged from, or the
+     * rejection of a record that cannot be loaded.
+     */
+    static final class Row {
+        private final String[] values;
+        private final int previousRow;
+        private final long contentHash;
+        private final UserLoad.Rejection rejection;
+
+        Row(String[] values, int previousRow, long contentHash) {
+            this.values = values;
+            this.previousRow = previousRow;
+            this.contentHash = contentHash;
+            this.rejection = null;
+        }
+
+        private Row(UserLoad.Rejection rejection) {
+            this.values = null;
+            this.previousRow = -1;
+            this.contentHash = 0;
+            this.rejection = rejection;
+        }
+
+        /**
+         * @return true if the record cannot be loaded, see {@link #getRejection()}
+         */
+        boolean isRejected() {
+            return rejection != null;
+        }
+
+        /**
+         * @return why the record cannot be loaded, or null if it is accepted
+         */
+        UserLoad.Rejection getRejection() {
+            return rejection;
+        }
+
+        /**
+         * @return the values extracted by {@link CSVMappingPlan#values}, or null if the row is unchanged
+         */
+        String[] getValues() {
+            return values;
+        }
+
+        /**
+         * @return the row of the previous store, or -1 if the row is new or changed
+         */
+        int getPreviousRow() {
+            return previousRow;
+        }
+
+        long getContentHash() {
+            return contentHash;
+        }
+    }
+}
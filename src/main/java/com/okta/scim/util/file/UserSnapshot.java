@@ -0,0 +1,341 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Okta, Inc. and/or its affiliates. All rights reserved.
+ ******************************************************************************/
+package com.okta.scim.util.file;
+
+import com.okta.scim.util.model.Membership;
+import com.okta.scim.util.model.SCIMGroup;
+import com.okta.scim.util.model.SCIMUser;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * An immutable, fully loaded version of the users.
+ * <p>
+ * A snapshot is built completely before it is published by {@link UserCache}, so a request that holds on to one
+ * sees the same users from start to end, even if a newer version is published in the meantime.
+ * <p>
+ * The users are kept in a {@link CompactUserStore} in the order of the CSV file, so a page is a direct range of its
+ * rows and paging through one snapshot never skips or repeats a user. Only the users that are returned are built as
+ * {@link SCIMUser} objects, and every call returns new instances.
+ * <p>
+ * The {@link UserGroups} of a snapshot are built for its rows, so the members of a group are always users of the
+ * same snapshot.
+ * <p>
+ * The users provisioned since the store was built are held in a {@link UserOverlay} over it: a replaced user keeps
+ * its page position, an added user comes after the users of the store, and the rows, pages, lookups and groups of
+ * the snapshot take both into account. A group that only had members through the removed or replaced users is still
+ * listed, without them, until the overlay is folded into a new store.
+ */
+public final class UserSnapshot {
+    private static final UserSnapshot EMPTY = new UserSnapshot(0, CompactUserStore.empty(), UserIndex.empty(),
+            UserGroups.empty(), UserOverlay.EMPTY, null, 0);
+
+    private final long version;
+    private final CompactUserStore store;
+    private final UserIndex index;
+    private final UserGroups groups;
+    private final UserOverlay overlay;
+    private final FileFingerprint fingerprint;
+    private final long loadedAtMillis;
+
+    private UserSnapshot(long version, CompactUserStore store, UserIndex index, UserGroups groups, UserOverlay overlay,
+                         FileFingerprint fingerprint, long loadedAtMillis) {
+        this.version = version;
+        this.store = store;
+        this.index = index;
+        this.groups = groups;
+        this.overlay = overlay;
+        this.fingerprint = fingerprint;
+        this.loadedAtMillis = loadedAtMillis;
+    }
+
+    /**
+     * Build a snapshot and its indexes.
+     *
+     * @param store                   the loaded users, in the order the pages should have
+     * @param indexedCustomAttributes the custom attributes to build equality indexes for
+     * @param groupSource             where the groups of the users come from
+     */
+    static UserSnapshot build(long version, CompactUserStore store, Collection<String> indexedCustomAttributes,
+                              UserGroups.Source groupSource, FileFingerprint fingerprint, long loadedAtMillis) {
+        return new UserSnapshot(version, store, UserIndex.build(store, indexedCustomAttributes),
+                groupSource.build(store), UserOverlay.EMPTY, fingerprint, loadedAtMillis);
+    }
+
+    /**
+     * Recreate a snapshot read from a {@link UserSnapshotFile}, as the first version. It has no groups until
+     * {@link #withGroups} is called.
+     */
+    static UserSnapshot restore(CompactUserStore store, UserIndex index, FileFingerprint fingerprint,
+                                long loadedAtMillis) {
+        return new UserSnapshot(1, store, index, UserGroups.empty(), UserOverlay.EMPTY, fingerprint, loadedAtMillis);
+    }
+
+    /**
+     * @return the snapshot used before anything has been loaded
+     */
+    public static UserSnapshot empty() {
+        return EMPTY;
+    }
+
+    /**
+     * @return increases by one with every published snapshot, 0 for the empty snapshot
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return the users the snapshot was built with, by row, without the provisioned users of the overlay
+     */
+    public CompactUserStore getStore() {
+        return store;
+    }
+
+    /**
+     * @return the users provisioned over the store
+     */
+    UserOverlay getOverlay() {
+        return overlay;
+    }
+
+    /**
+     * @param id the id of a user
+     * @return the user, or null if there is no user with this id
+     */
+    public SCIMUser getUser(String id) {
+        int row = rowOf(id);
+        return row < 0 ? null : toUser(row);
+    }
+
+    /**
+     * @param id the id of a user
+     * @return the row of the user, or -1 if there is no user with this id
+     */
+    int rowOf(String id) {
+        return overlay.isEmpty() ? store.rowOf(id) : overlay.rowOf(id, store);
+    }
+
+    /**
+     * @return the user of a row, with the groups it is a member of
+     */
+    private SCIMUser toUser(int row) {
+        int overlayRow = overlay.isEmpty() ? -1 : overlay.overlayRow(row);
+        SCIMUser user = overlayRow < 0 ? store.toUser(row) : overlay.getStore().toUser(overlayRow);
+        int[] userGroups = overlayRow < 0 ? groups.getGroupsOf(row) : overlay.getGroupsOf(overlayRow);
+        if (userGroups.length > 0) {
+            List<Membership> memberships = new ArrayList<Membership>(userGroups.length);
+            for (int group : userGroups) {
+                memberships.add(new Membership(getGroupId(group), getGroupDisplayName(group)));
+            }
+            user.setGroups(memberships);
+        }
+        return user;
+    }
+
+    /**
+     * @param rows rows of the snapshot, e.g. found with the {@link UserFilterEngine}
+     * @return the users of the rows, in the same order
+     */
+    public List<SCIMUser> getUsers(int[] rows) {
+        List<SCIMUser> users = new ArrayList<SCIMUser>(rows.length);
+        for (int row : rows) {
+            users.add(toUser(row));
+        }
+        return users;
+    }
+
+    /**
+     * @return the equality indexes of the store, without the provisioned users of the overlay
+     */
+    public UserIndex getIndex() {
+        return index;
+    }
+
+    public int size() {
+        return overlay.isEmpty() ? store.size() : overlay.size();
+    }
+
+    /**
+     * Get one page of users.
+     *
+     * @param startIndex the 1-based index of the first user, as in SCIM. Values below 1 are treated as 1.
+     * @param count      the maximum number of users to return
+     * @return the users of the page, empty if the start index is past the last user
+     */
+    public List<SCIMUser> getPage(long startIndex, int count) {
+        long from = Math.max(startIndex, 1) - 1;
+        int size = size();
+        if (from >= size || count <= 0) {
+            return new ArrayList<SCIMUser>(0);
+        }
+        int to = (int) Math.min(size, from + count);
+        List<SCIMUser> users = new ArrayList<SCIMUser>(to - (int) from);
+        if (overlay.isEmpty()) {
+            for (int row = (int) from; row < to; row++) {
+                users.add(toUser(row));
+            }
+        } else {
+            for (int row : overlay.pageRows((int) from, to - (int) from)) {
+                users.add(toUser(row));
+            }
+        }
+        return users;
+    }
+
+    /**
+     * @return all the users in page order
+     */
+    public List<SCIMUser> getAllUsers() {
+        return getPage(1, size());
+    }
+
+    /**
+     * @return the number of groups
+     */
+    public int getGroupCount() {
+        return overlay.groupCount(groups.size());
+    }
+
+    /**
+     * @param id the id of a group
+     * @return true if the users have a group with this id
+     */
+    public boolean hasGroup(String id) {
+        return indexOfGroup(id) >= 0;
+    }
+
+    private int indexOfGroup(String id) {
+        int group = groups.indexOf(id);
+        return group >= 0 ? group : overlay.indexOfAddedGroup(id);
+    }
+
+    private String getGroupId(int group) {
+        return group < groups.size() ? groups.getId(group) : overlay.getAddedGroupId(group);
+    }
+
+    private String getGroupDisplayName(int group) {
+        return group < groups.size() ? groups.getDisplayName(group) : overlay.getAddedGroupId(group);
+    }
+
+    /**
+     * @param id the id of a group
+     * @return the group with all its members, or null if there is no group with this id
+     */
+    public SCIMGroup getGroup(String id) {
+        int group = indexOfGroup(id);
+        return group < 0 ? null : toGroup(group);
+    }
+
+    /**
+     * Get one page of groups, each with all its members.
+     *
+     * @param startIndex the 1-based index of the first group, as in SCIM. Values below 1 are treated as 1.
+     * @param count      the maximum number of groups to return
+     * @return the groups of the page, empty if the start index is past the last group
+     */
+    public List<SCIMGroup> getGroupPage(long startIndex, int count) {
+        long from = Math.max(startIndex, 1) - 1;
+        int groupCount = getGroupCount();
+        if (from >= groupCount || count <= 0) {
+            return new ArrayList<SCIMGroup>(0);
+        }
+        int to = (int) Math.min(groupCount, from + count);
+        List<SCIMGroup> page = new ArrayList<SCIMGroup>(to - (int) from);
+        for (int group = (int) from; group < to; group++) {
+            page.add(toGroup(group));
+        }
+        return page;
+    }
+
+    private SCIMGroup toGroup(int group) {
+        SCIMGroup scimGroup = new SCIMGroup();
+        scimGroup.setId(getGroupId(group));
+        scimGroup.setDisplayName(getGroupDisplayName(group));
+        int[] rows = group < groups.size() ? groups.getMembers(group, 0, groups.getMemberCount(group)) : new int[0];
+        if (!overlay.isEmpty()) {
+            rows = overlay.getMembers(group, rows);
+        }
+        List<Membership> members = new ArrayList<Membership>(rows.length);
+        for (int row : rows) {
+            int overlayRow = overlay.isEmpty() ? -1 : overlay.overlayRow(row);
+            if (overlayRow < 0) {
+                members.add(new Membership(store.getId(row), store.getUserName(row)));
+            } else {
+                members.add(new Membership(overlay.getStore().getId(overlayRow),
+                        overlay.getStore().getUserName(overlayRow)));
+            }
+        }
+        scimGroup.setMembers(members);
+        return scimGroup;
+    }
+
+    /**
+     * @return the fingerprint of the file this snapshot was loaded from, or null for the empty snapshot
+     */
+    public FileFingerprint getFingerprint() {
+        return fingerprint;
+    }
+
+    public long getLoadedAtMillis() {
+        return loadedAtMillis;
+    }
+
+    /**
+     * Add provisioned changes to the overlay. The store and its indexes are shared, so this takes time in the number
+     * of users in the overlay only.
+     *
+     * @param changes     provisioned changes of type PUT or REMOVE, in the order they were made. The PUT changes must
+     *                    have passed {@link CompactUserStore#check}.
+     * @param groupSource where the groups of the users come from
+     * @return the next version, with the changes applied to the users of this one
+     */
+    UserSnapshot withChanges(Collection<UserChange> changes, UserGroups.Source groupSource) {
+        UserOverlay changed = UserOverlay.build(store, groups, overlay.withChanges(changes),
+                index.getIndexedCustomAttributes(), groupSource);
+        return new UserSnapshot(version + 1, store, index, groups, changed, fingerprint, loadedAtMillis);
+    }
+
+    /**
+     * Apply the overlay to a copy of the store and build its indexes and groups again, which takes time in the
+     * number of users.
+     *
+     * @param groupSource where the groups of the users come from
+     * @return the next version, with the same users and an empty overlay
+     */
+    UserSnapshot fold(UserGroups.Source groupSource) {
+        CompactUserStore folded = store.withChanges(overlay.getChanges().values());
+        return new UserSnapshot(version + 1, folded, UserIndex.build(folded, index.getIndexedCustomAttributes()),
+                groupSource.build(folded), UserOverlay.EMPTY, fingerprint, loadedAtMillis);
+    }
+
+    /**
+     * @param groupSource where the groups of the users come from
+     * @return the next version, with the same users and their groups built again
+     */
+    UserSnapshot withGroups(UserGroups.Source groupSource) {
+        UserGroups rebuilt = groupSource.build(store);
+        UserOverlay regrouped = overlay.isEmpty() ? overlay : UserOverlay.build(store, rebuilt, overlay.getChanges(),
+                index.getIndexedCustomAttributes(), groupSource);
+        return new UserSnapshot(version + 1, store, index, rebuilt, regrouped, fingerprint, loadedAtMillis);
+    }
+
+    /**
+     * @return the same users and version, recorded as loaded from a file with another fingerprint but identical content
+     */
+    UserSnapshot withFingerprint(FileFingerprint newFingerprint) {
+        return new UserSnapshot(version, store, index, groups, overlay, newFingerprint, loadedAtMillis);
+    }
+
+    /**
+     * @param published the snapshot published in the meantime, loaded from the same file
+     * @return the same users, as the version after the published one
+     */
+    UserSnapshot after(UserSnapshot published) {
+        return new UserSnapshot(published.version + 1, store, index, groups, overlay, published.fingerprint,
+                published.loadedAtMillis);
+    }
+}
@@ -0,0 +1,480 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Okta, Inc. and/or its affiliates. All rights reserved.
+ ******************************************************************************/
+package com.okta.scim.util.file;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Persists the last loaded {@link UserSnapshot}, with its indexes, to a binary file so that a restart does not have
+ * to parse the users file again.
+ * <p>
+ * The file records the fingerprint of the users file and a description of the configuration the users were loaded
+ * with. {@link #load} memory maps it and reads the columns and the index tables back in bulk; it returns null if the
+ * file is missing, damaged or was written with another column mapping, inactive value, schema name or charset. The
+ * caller still has to compare the fingerprint with the users file, and reload it if it changed.
+ * <p>
+ * {@link #save} writes on a background thread, to a temporary file which is then renamed over the previous one. When
+ * several snapshots are saved in a row, only the newest one is written. The users of a column mapping with a password
+ * column are not persisted, so that their passwords are only ever on disk in the users file.
+ */
+public class UserSnapshotFile {
+    private static final Logger LOGGER = LoggerFactory.getLogger(UserSnapshotFile.class);
+
+    private static final int MAGIC = 0x53434d55;
+    //2 no longer has the passwords column
+    private static final int FORMAT_VERSION = 2;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File file;
+    private final AtomicReference<Pending> pending = new AtomicReference<Pending>();
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "scim-user-snapshot-writer");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * @param file the snapshot file
+     */
+    public UserSnapshotFile(File file) {
+        this.file = file;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Read the persisted snapshot.
+     *
+     * @param config                  the current configuration, which the snapshot must have been loaded with
+     * @param indexedCustomAttributes the custom attributes to index. The persisted indexes are used if they cover the
+     *                                same attributes, otherwise the index is built again.
+     * @return the snapshot, as version 1, or null if there is no usable snapshot
+     */
+    public UserSnapshot load(ConnectorConfig config, Collection<String> indexedCustomAttributes) {
+        if (!file.isFile()) {
+            LOGGER.info("There is no user snapshot [" + file + "] yet");
+            return null;
+        }
+        long start = System.currentTimeMillis();
+        try {
+            FileInputStream input = new FileInputStream(file);
+            try {
+                Input in = new Input(input.getChannel());
+                if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+                    LOGGER.warn("[" + file + "] is not a user snapshot of this version, ignoring it");
+                    return null;
+                }
+                if (!definition(config).equals(in.readString())) {
+                    LOGGER.info("The user snapshot [" + file + "] was written with another configuration, ignoring it");
+                    return null;
+                }
+                FileFingerprint fingerprint = FileFingerprint.restore(in.readString(), in.readLong(), in.readLong(),
+                        in.readString());
+                long loadedAtMillis = in.readLong();
+                CompactUserStore store = CompactUserStore.readFrom(in);
+                UserIndex index = UserIndex.readFrom(in, store);
+                if (in.readInt() != MAGIC) {
+                    throw new IOException("The snapshot is truncated");
+                }
+                if (!new HashSet<String>(indexedCustomAttributes).equals(index.getIndexedCustomAttributes())) {
+                    index = UserIndex.build(store, indexedCustomAttributes);
+                }
+                LOGGER.info("Read " + store.size() + " users of " + fingerprint + " from the user snapshot [" + file
+                        + "] in " + (System.currentTimeMillis() - start) + "ms");
+                return UserSnapshot.restore(store, index, fingerprint, loadedAtMillis);
+            } finally {
+                input.close();
+            }
+        } catch (Exception e) {
+            LOGGER.error("Cannot read the user snapshot [" + file + "], ignoring it", e);
+            return null;
+        }
+    }
+
+    /**
+     * Queue a snapshot to be written. Returns right away.
+     *
+     * @param snapshot the loaded snapshot
+     * @param config   the configuration it was loaded with
+     */
+    public void save(UserSnapshot snapshot, ConnectorConfig config) {
+        if (snapshot.getStore().hasPasswords()) {
+            LOGGER.info("Not writing the user snapshot [" + file + "], the users have passwords");
+            executor.execute(new Runnable() {
+                public void run() {
+                    //An older snapshot may still hold passwords
+                    if (file.isFile() && !file.delete()) {
+                        LOGGER.warn("Cannot delete the user snapshot [" + file + "]");
+                    }
+                }
+            });
+            return;
+        }
+        if (pending.getAndSet(new Pending(snapshot, definition(config))) != null) {
+            //The queued write picks up this snapshot instead
+            return;
+        }
+        executor.execute(new Runnable() {
+            public void run() {
+                Pending next = pending.getAndSet(null);
+                try {
+                    write(next.snapshot, next.definition);
+                } catch (Exception e) {
+                    LOGGER.error("Cannot write the user snapshot [" + file + "]", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Stop accepting snapshots and wait for the queued write to finish.
+     */
+    public void shutdown() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+                LOGGER.warn("Gave up waiting for the user snapshot to be written");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void write(UserSnapshot snapshot, String definition) throws IOException {
+        long start = System.currentTimeMillis();
+        File folder = file.getAbsoluteFile().getParentFile();
+        if (!folder.isDirectory() && !folder.mkdirs()) {
+            throw new IOException("Cannot create the folder [" + folder + "]");
+        }
+        File temp = File.createTempFile("users_", ".tmp", folder);
+        try {
+            Output out = new Output(new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp),
+                    BUFFER_SIZE)));
+            try {
+                FileFingerprint fingerprint = snapshot.getFingerprint();
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                out.writeString(definition);
+                out.writeString(fingerprint.getPath());
+                out.writeLong(fingerprint.getSize());
+                out.writeLong(fingerprint.getLastModified());
+                out.writeString(fingerprint.getContentHash());
+                out.writeLong(snapshot.getLoadedAtMillis());
+                snapshot.getStore().writeTo(out);
+                snapshot.getIndex().writeTo(out);
+                out.writeInt(MAGIC);
+            } finally {
+                out.close();
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            LOGGER.info("Wrote " + snapshot.size() + " users to the user snapshot [" + file + "] in "
+                    + (System.currentTimeMillis() - start) + "ms");
+        } finally {
+            if (temp.exists() && !temp.delete()) {
+                LOGGER.warn("Cannot delete the temporary file [" + temp + "]");
+            }
+        }
+    }
+
+    /**
+     * @return everything in the configuration that changes which users are loaded or what they hold
+     */
+    private static String definition(ConnectorConfig config) {
+        StringBuilder definition = new StringBuilder();
+        for (CSVColumnMapping.Column column : config.getColumnMapping().getColumns()) {
+            definition.append(column.getAttributeName()).append('=').append(column.getCsvColumnName()).append(',')
+                    .append(column.getType()).append(',').append(column.isScimVariable()).append(',')
+                    .append(column.isMandatory()).append('|');
+        }
+        return definition.append(config.getUserInactiveValue()).append('|').append(config.getCustomSchemaName())
+                .append('|').append(config.getProperty("csvCharset", "")).toString();
+    }
+
+    private static final class Pending {
+        private final UserSnapshot snapshot;
+        private final String definition;
+
+        Pending(UserSnapshot snapshot, String definition) {
+            this.snapshot = snapshot;
+            this.definition = definition;
+        }
+    }
+
+    /**
+     * Writes the snapshot. A shared string that was already written is written as its number instead.
+     */
+    static final class Output {
+        private static final int NULL = -1;
+        private static final int NEW = -2;
+        private static final int UNSHARED = -3;
+
+        private final DataOutputStream out;
+        private final Map<String, Integer> strings = new HashMap<String, Integer>();
+
+        Output(DataOutputStream out) {
+            this.out = out;
+        }
+
+        void writeInt(int value) throws IOException {
+            out.writeInt(value);
+        }
+
+        void writeLong(long value) throws IOException {
+            out.writeLong(value);
+        }
+
+        void writeBoolean(boolean value) throws IOException {
+            out.writeBoolean(value);
+        }
+
+        void writeString(String value) throws IOException {
+            if (value == null) {
+                out.writeInt(NULL);
+                return;
+            }
+            out.writeInt(UNSHARED);
+            out.writeInt(value.length());
+            out.writeChars(value);
+        }
+
+        /**
+         * Write a string that is likely to be repeated, e.g. a name or a custom value.
+         */
+        void writeSharedString(String value) throws IOException {
+            if (value == null) {
+                out.writeInt(NULL);
+                return;
+            }
+            Integer number = strings.get(value);
+            if (number != null) {
+                out.writeInt(number);
+                return;
+            }
+            strings.put(value, strings.size());
+            out.writeInt(NEW);
+            out.writeInt(value.length());
+            out.writeChars(value);
+        }
+
+        /**
+         * @param values the values, or null
+         * @param shared true if the values are likely to be repeated
+         */
+        void writeStrings(String[] values, boolean shared) throws IOException {
+            out.writeInt(values == null ? NULL : values.length);
+            if (values != null) {
+                for (String value : values) {
+                    if (shared) {
+                        writeSharedString(value);
+                    } else {
+                        writeString(value);
+                    }
+                }
+            }
+        }
+
+        /**
+         * @param values the values, or null
+         */
+        void writeInts(int[] values) throws IOException {
+            out.writeInt(values == null ? NULL : values.length);
+            if (values != null) {
+                for (int value : values) {
+                    out.writeInt(value);
+                }
+            }
+        }
+
+        void writeLongs(long[] values) throws IOException {
+            out.writeInt(values == null ? NULL : values.length);
+            if (values != null) {
+                for (long value : values) {
+                    out.writeLong(value);
+                }
+            }
+        }
+
+        void writeDoubles(double[] values) throws IOException {
+            out.writeInt(values.length);
+            for (double value : values) {
+                out.writeDouble(value);
+            }
+        }
+
+        void close() throws IOException {
+            out.close();
+        }
+    }
+
+    /**
+     * Reads a snapshot from a memory mapped file, in windows of up to 256MB.
+     */
+    static final class Input {
+        private static final int WINDOW_SIZE = 256 * 1024 * 1024;
+
+        private final FileChannel channel;
+        private final long size;
+        private final List<String> strings = new ArrayList<String>();
+        private MappedByteBuffer window;
+        private long windowStart;
+        private char[] chars = new char[256];
+
+        Input(FileChannel channel) throws IOException {
+            this.channel = channel;
+            this.size = channel.size();
+            map(0, 0);
+        }
+
+        int readInt() throws IOException {
+            ensure(4);
+            return window.getInt();
+        }
+
+        long readLong() throws IOException {
+            ensure(8);
+            return window.getLong();
+        }
+
+        boolean readBoolean() throws IOException {
+            ensure(1);
+            return window.get() != 0;
+        }
+
+        /**
+         * Read a string written by either {@link Output#writeString} or {@link Output#writeSharedString}.
+         */
+        String readString() throws IOException {
+            int number = readInt();
+            if (number == Output.NULL) {
+                return null;
+            }
+            if (number >= 0) {
+                return strings.get(number);
+            }
+            int length = readInt();
+            if (chars.length < length) {
+                chars = new char[Math.max(length, chars.length * 2)];
+            }
+            ensure(length * 2L);
+            for (int i = 0; i < length; i++) {
+                chars[i] = window.getChar();
+            }
+            String value = new String(chars, 0, length);
+            if (number == Output.NEW) {
+                strings.add(value);
+            }
+            return value;
+        }
+
+        String[] readStrings() throws IOException {
+            int length = readInt();
+            if (length == Output.NULL) {
+                return null;
+            }
+            String[] values = new String[length];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = readString();
+            }
+            return values;
+        }
+
+        int[] readInts() throws IOException {
+            int length = readInt();
+            if (length == Output.NULL) {
+                return null;
+            }
+            int[] values = new int[length];
+            int read = 0;
+            while (read < length) {
+                ensure(4);
+                int count = Math.min(length - read, window.remaining() / 4);
+                window.asIntBuffer().get(values, read, count);
+                window.position(window.position() + count * 4);
+                read += count;
+            }
+            return values;
+        }
+
+        long[] readLongs() throws IOException {
+            int length = readInt();
+            if (length == Output.NULL) {
+                return null;
+            }
+            long[] values = new long[length];
+            int read = 0;
+            while (read < length) {
+                ensure(8);
+                int count = Math.min(length - read, window.remaining() / 8);
+                window.asLongBuffer().get(values, read, count);
+                window.position(window.position() + count * 8);
+                read += count;
+            }
+            return values;
+        }
+
+        double[] readDoubles() throws IOException {
+            double[] values = new double[readInt()];
+            int read = 0;
+            while (read < values.length) {
+                ensure(8);
+                int count = Math.min(values.length - read, window.remaining() / 8);
+                window.asDoubleBuffer().get(values, read, count);
+                window.position(window.position() + count * 8);
+                read += count;
+            }
+            return values;
+        }
+
+        /**
+         * Make sure the next <code>length</code> bytes are in the window, mapping a new window if they are not.
+         */
+        private void ensure(long length) throws IOException {
+            if (window.remaining() >= length) {
+                return;
+            }
+            long position = windowStart + window.position();
+            if (position + length > size) {
+                throw new IOException("The snapshot is truncated");
+            }
+            map(position, length);
+        }
+
+        private void map(long position, long length) throws IOException {
+            long windowSize = Math.min(size - position, Math.max(WINDOW_SIZE, length));
+            if (windowSize > Integer.MAX_VALUE) {
+                windowSize = Integer.MAX_VALUE;
+            }
+            window = channel.map(FileChannel.MapMode.READ_ONLY, position, windowSize);
+            windowStart = position;
+        }
+    }
+}
@@ -0,0 +1,227 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Okta, Inc. and/or its affiliates. All rights reserved.
+ ******************************************************************************/
+package com.okta.scim.util.file;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches the users file (or drop directory) on a background thread and reloads the {@link UserCache} as soon as a
+ * new version of the file has settled, so that request threads never have to parse the file themselves.
+ * <p>
+ * File system events are used to wake up early where the platform supports them; the file is also polled every
+ * <code>pollIntervalMillis</code>, which is all that is done when no watch service is available. A change is only
+ * loaded once the file has not changed for <code>quietPeriodMillis</code>, so a file that is still being copied into
+ * place is not loaded half written. If a ready marker suffix is configured, the file is only loaded once a marker
+ * file (e.g. <code>users.csv.done</code>) at least as new as the file exists next to it. A modified
+ * {@link ConnectorConfig} is picked up the same way.
+ * <p>
+ * When every CSV file of the drop directory is loaded ('usersFileMergeAll'), all of them must have settled, and each
+ * needs its own marker.
+ */
+public class UsersFileWatcher implements Runnable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(UsersFileWatcher.class);
+
+    private final UserCache userCache;
+    private final File watchedDirectory;
+    private final long pollIntervalMillis;
+    private final long quietPeriodMillis;
+    private final String readyMarkerSuffix;
+
+    private volatile boolean running;
+    private Thread thread;
+    private WatchService watchService;
+
+    //Only used by the watcher thread
+    private String lastPath;
+    private String lastState;
+    private long lastConfigVersion = -1;
+    private long changedAtMillis;
+    private boolean pending;
+
+    /**
+     * @param userCache          the cache to reload
+     * @param usersFilePath      the users file or drop directory the cache reads from
+     * @param pollIntervalMillis the maximum time between two looks at the file
+     * @param quietPeriodMillis  how long the file must stay unchanged before it is loaded
+     * @param readyMarkerSuffix  the suffix of the marker file that must exist before the file is loaded, or null
+     */
+    public UsersFileWatcher(UserCache userCache, String usersFilePath, long pollIntervalMillis, long quietPeriodMillis,
+                            String readyMarkerSuffix) {
+        this.userCache = userCache;
+        File usersFile = new File(usersFilePath).getAbsoluteFile();
+        this.watchedDirectory = usersFile.isDirectory() ? usersFile : usersFile.getParentFile();
+        this.pollIntervalMillis = Math.max(1, pollIntervalMillis);
+        this.quietPeriodMillis = Math.max(0, quietPeriodMillis);
+        this.readyMarkerSuffix = readyMarkerSuffix == null || readyMarkerSuffix.isEmpty() ? null : readyMarkerSuffix;
+    }
+
+    /**
+     * Start watching on a daemon thread.
+     */
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        try {
+            Path directory = watchedDirectory.toPath();
+            watchService = FileSystems.getDefault().newWatchService();
+            directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException e) {
+            pollInstead(e);
+        } catch (UnsupportedOperationException e) {
+            pollInstead(e);
+        }
+        //The cache was loaded at startup, only changes from now on need loading
+        observe(System.currentTimeMillis());
+        pending = false;
+
+        running = true;
+        thread = new Thread(this, "scim-users-file-watcher");
+        thread.setDaemon(true);
+        thread.start();
+        LOGGER.info("Watching [" + watchedDirectory + "] for new users files");
+    }
+
+    /**
+     * Stop watching and wait for a reload in progress to finish.
+     */
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        thread.interrupt();
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(30));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        closeWatchService();
+        thread = null;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                waitForChange();
+                long now = System.currentTimeMillis();
+                observe(now);
+                if (pending && now - changedAtMillis >= quietPeriodMillis && isReady()) {
+                    pending = false;
+                    userCache.refreshNow();
+                }
+            } catch (InterruptedException e) {
+                //Stopped
+                return;
+            } catch (Exception e) {
+                //Keep serving the loaded users and try again with the next version of the file
+                pending = false;
+                LOGGER.error("Cannot reload the users from [" + lastPath + "]", e);
+            }
+        }
+    }
+
+    /**
+     * Wait for a file system event or the poll interval, whichever comes first. While a change is settling, wait
+     * no longer than the quiet period.
+     */
+    private void waitForChange() throws InterruptedException {
+        long timeout = pending ? Math.min(pollIntervalMillis, Math.max(1, quietPeriodMillis)) : pollIntervalMillis;
+        if (watchService == null) {
+            Thread.sleep(timeout);
+            return;
+        }
+        WatchKey key = watchService.poll(timeout, TimeUnit.MILLISECONDS);
+        if (key != null) {
+            //The file is looked at directly, the events only wake the thread up
+            key.pollEvents();
+            if (!key.reset()) {
+                LOGGER.warn("[" + watchedDirectory + "] can no longer be watched, polling it instead");
+                closeWatchService();
+            }
+        }
+    }
+
+    /**
+     * Look at the files and remember when they were last seen changing.
+     */
+    private void observe(long now) {
+        List<File> usersFiles = userCache.resolveUsersFiles();
+        //The path, size and modification time of every file and of its marker
+        StringBuilder state = new StringBuilder();
+        boolean exist = !usersFiles.isEmpty();
+        for (File usersFile : usersFiles) {
+            File marker = markerFile(usersFile);
+            state.append(usersFile.getAbsolutePath()).append('|').append(usersFile.length()).append('|')
+                    .append(usersFile.lastModified()).append('|').append(marker == null ? -1 : marker.lastModified())
+                    .append('\n');
+            exist &= usersFile.isFile();
+        }
+        long configVersion = ConnectorConfig.get().getVersion();
+        if (!state.toString().equals(lastState) || configVersion != lastConfigVersion) {
+            lastPath = usersFiles.size() == 1 ? usersFiles.get(0).getAbsolutePath() : usersFiles.toString();
+            lastState = state.toString();
+            lastConfigVersion = configVersion;
+            changedAtMillis = now;
+            pending = exist;
+        }
+    }
+
+    /**
+     * @return true if every file has a marker at least as new as itself, or no marker is needed
+     */
+    private boolean isReady() {
+        if (readyMarkerSuffix == null) {
+            return true;
+        }
+        for (File usersFile : userCache.resolveUsersFiles()) {
+            File marker = markerFile(usersFile);
+            if (!marker.isFile() || marker.lastModified() < usersFile.lastModified()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private File markerFile(File usersFile) {
+        if (readyMarkerSuffix == null || usersFile == null) {
+            return null;
+        }
+        return new File(usersFile.getPath() + readyMarkerSuffix);
+    }
+
+    private void pollInstead(Exception cause) {
+        LOGGER.warn("Cannot watch [" + watchedDirectory + "] for changes, polling it every " + pollIntervalMillis
+                + "ms instead", cause);
+        closeWatchService();
+    }
+
+    private void closeWatchService() {
+        if (watchService == null) {
+            return;
+        }
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            LOGGER.warn("Cannot close the watch service of [" + watchedDirectory + "]", e);
+        }
+        watchService = null;
+    }
+}
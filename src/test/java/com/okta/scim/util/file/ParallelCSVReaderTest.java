@@ -0,0 +1,144 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Okta, Inc. and/or its affiliates. All rights reserved.
+ ******************************************************************************/
+package com.okta.scim.util.file;
+
+import com.okta.scim.util.SCIMUtil;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.util.Properties;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * The parallel readers must load exactly the users the sequential reader loads, whatever the records contain.
+ */
+public class ParallelCSVReaderTest {
+    private static final int ROWS = 40000;
+
+    private File folder;
+
+    @BeforeClass
+    public void createFolder() throws IOException {
+        folder = Files.createTempDirectory("parallel-csv").toFile();
+    }
+
+    @AfterClass(alwaysRun = true)
+    public void deleteFolder() {
+        TestFiles.delete(folder);
+    }
+
+    @DataProvider
+    public Object[][] readers() {
+        //byte order mark, mapped reader
+        return new Object[][]{{false, false}, {false, true}, {true, false}, {true, true}};
+    }
+
+    @Test(dataProvider = "readers")
+    public void loadsTheSameUsersAsTheSequentialReader(boolean bom, boolean mapped) throws Exception {
+        File csv = writeUsers(bom ? "bom.csv" : "users.csv", bom);
+
+        UserLoad sequential = new UserLoad(null, false);
+        long sequentialRecords = SCIMConnectorUtil.readUsersFromCSV(sequential, csv.getPath(), config(false, false));
+        UserLoad parallel = new UserLoad(null, false);
+        long parallelRecords = SCIMConnectorUtil.readUsersFromCSV(parallel, csv.getPath(), config(true, mapped));
+
+        assertEquals(parallelRecords, sequentialRecords);
+        assertEquals(parallel.getInactiveCount(), sequential.getInactiveCount());
+        assertEquals(parallel.getRejectedCount(), sequential.getRejectedCount());
+        for (int i = 0; i < sequential.getRejections().size(); i++) {
+            assertEquals(parallel.getRejections().get(i).getRecordNumber(),
+                    sequential.getRejections().get(i).getRecordNumber());
+        }
+        CompactUserStore expected = sequential.getStore();
+        CompactUserStore actual = parallel.getStore();
+        assertTrue(expected.size() > ROWS / 2, "Only " + expected.size() + " users were loaded");
+        assertEquals(actual.size(), expected.size());
+        for (int row = 0; row < expected.size(); row++) {
+            assertEquals(SCIMUtil.marshalSCIMUser(actual.toUser(row)), SCIMUtil.marshalSCIMUser(expected.toUser(row)),
+                    "row " + row);
+        }
+    }
+
+    @Test
+    public void splitsTheFileAtRecordStarts() throws Exception {
+        File csv = writeUsers("boundaries.csv", true);
+        byte[] bytes = Files.readAllBytes(csv.toPath());
+        ForkJoinPool pool = new ForkJoinPool(4);
+        FileInputStream input = new FileInputStream(csv);
+        try {
+            long[] boundaries = ParallelCSVReader.findRecordBoundaries(input.getChannel(), 3, pool, 16);
+            assertEquals(boundaries.length, 17);
+            for (int i = 1; i + 1 < boundaries.length; i++) {
+                //Every record starts with its id, never inside a quoted or an unquoted field
+                int start = (int) boundaries[i];
+                assertEquals(bytes[start - 1], (byte) '\n');
+                assertTrue(bytes[start] >= '0' && bytes[start] <= '9', "Boundary " + start + " is inside a record");
+            }
+        } finally {
+            input.close();
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Users with quoted line breaks, commas and escaped quotes, quotes inside unquoted fields, duplicate ids, inactive
+     * users and rejected records.
+     */
+    private File writeUsers(String name, boolean bom) throws IOException {
+        File csv = new File(folder, name);
+        FileOutputStream output = new FileOutputStream(csv);
+        if (bom) {
+            output.write(new byte[]{(byte) 0xEF, (byte) 0xBB, (byte) 0xBF});
+        }
+        Writer writer = new BufferedWriter(new OutputStreamWriter(output, "UTF-8"));
+        try {
+            writer.write("empid,email,last,first,active,dept\r\n");
+            for (int i = 0; i < ROWS; i++) {
+                //Every 13th user has the id of the previous one, and replaces it
+                int id = i % 13 == 0 && i > 0 ? i - 1 : i;
+                String last = i % 7 == 0 ? "O\"Brien" + i : i % 19 == 0 ? "" : "Last" + i;
+                String first = i % 11 == 0 ? "\"Multi\nline, \"\"quoted\"\" " + i + "\"" : "First" + i;
+                String dept = i % 5 == 0 ? "\"Sales\r\nEMEA\"" : i % 3 == 0 ? "R\"D" : "Dept" + (i % 10);
+                writer.write(id + ",user" + id + "@example.com," + last + "," + first + ","
+                        + (i % 17 == 0 ? "F" : "T") + "," + dept + "\r\n");
+            }
+        } finally {
+            writer.close();
+        }
+        return csv;
+    }
+
+    private static ConnectorConfig config(boolean parallel, boolean mapped) {
+        Properties application = new Properties();
+        application.setProperty("customSchemaName", "urn:okta:test:1.0:user:custom");
+        application.setProperty("userInactiveValueInCSV", "F");
+        application.setProperty("csvCharset", "UTF-8");
+        application.setProperty("csvParallelLoad", String.valueOf(parallel));
+        application.setProperty("csvParallelLoadMinFileSize", "0");
+        application.setProperty("csvParallelLoadThreads", "4");
+        application.setProperty("csvMappedReader", String.valueOf(mapped));
+        Properties mapping = new Properties();
+        mapping.setProperty("userName", "email,String,isSCIMVariable,isMandatory");
+        mapping.setProperty("id", "empid,String,isSCIMVariable,isMandatory");
+        mapping.setProperty("familyName", "last,String,isSCIMVariable,isMandatory");
+        mapping.setProperty("givenName", "first,String,isSCIMVariable,isMandatory");
+        mapping.setProperty("email", "email,String,isSCIMVariable,isMandatory");
+        mapping.setProperty("active", "active,Boolean,isSCIMVariable,isMandatory");
+        mapping.setProperty("dept", "dept,String,isNotSCIMVariable,isNotMandatory");
+        return ConnectorConfig.of(application, mapping);
+    }
+}
@@ -0,0 +1,32 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Okta, Inc. and/or its affiliates. All rights reserved.
+ ******************************************************************************/
+package com.okta.scim.util.file;
+
+import java.io.File;
+
+/**
+ * Helpers for the files the tests write.
+ */
+final class TestFiles {
+    private TestFiles() {
+    }
+
+    /**
+     * Delete a file, or a folder with its content.
+     */
+    static void delete(File file) {
+        if (file == null) {
+            return;
+        }
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        if (!file.delete()) {
+            System.err.println("Cannot delete [" + file + "]");
+        }
+    }
+}
@@ -0,0 +1,269 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Okta, Inc. and/or its affiliates. All rights reserved.
+ ******************************************************************************/
+package com.okta.scim.util.file;
+
+import com.okta.scim.util.model.Email;
+import com.okta.scim.util.model.Name;
+import com.okta.scim.util.model.SCIMUser;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+/**
+ * The journal must give back exactly the acknowledged changes after a crash, a failed write or a compaction, and a
+ * reload must drop the changes the users file came to hold.
+ */
+public class UserJournalTest {
+    private static final String CUSTOM_SCHEMA = "urn:okta:test:1.0:user:custom";
+
+    private File folder;
+    private String catalinaBase;
+
+    @BeforeClass
+    public void createFolder() throws IOException {
+        folder = Files.createTempDirectory("user-journal").toFile();
+        catalinaBase = System.getProperty("catalina.base");
+    }
+
+    @AfterClass(alwaysRun = true)
+    public void deleteFolder() {
+        if (catalinaBase == null) {
+            System.clearProperty("catalina.base");
+        } else {
+            System.setProperty("catalina.base", catalinaBase);
+        }
+        TestFiles.delete(folder);
+    }
+
+    @Test
+    public void replaysTheLastChangeOfEveryUser() throws IOException {
+        File file = new File(folder, "replay.journal");
+        UserJournal journal = new UserJournal(file);
+        assertTrue(journal.open().isEmpty());
+        journal.append(Arrays.asList(put("1", "First"), put("2", "Second")));
+        journal.append(Arrays.asList(put("1", "Again"), UserChange.remove("2")));
+        journal.close();
+
+        journal = new UserJournal(file);
+        Map<String, UserChange> changes = journal.open();
+        assertEquals(journal.getEntryCount(), 4);
+        assertEquals(changes.size(), 2);
+        assertEquals(changes.get("1").getFamilyName(), "Again");
+        assertEquals(changes.get("2").getType(), UserChange.Type.REMOVE);
+
+        journal.append(Collections.singletonList(UserChange.forget("1")));
+        journal.close();
+        changes = new UserJournal(file).open();
+        assertEquals(changes.keySet(), Collections.singleton("2"));
+    }
+
+    @Test
+    public void dropsAChangeCutOffByACrash() throws IOException {
+        File file = new File(folder, "torn.journal");
+        UserJournal journal = new UserJournal(file);
+        journal.open();
+        journal.append(Arrays.asList(put("1", "First"), put("2", "Second")));
+        journal.close();
+        long acknowledged = file.length();
+
+        //The process died in the middle of the next append
+        FileOutputStream output = new FileOutputStream(file, true);
+        try {
+            output.write("{\"op\":\"put\",\"id\":\"3\",\"userNa".getBytes("UTF-8"));
+        } finally {
+            output.close();
+        }
+
+        journal = new UserJournal(file);
+        Map<String, UserChange> changes = journal.open();
+        assertEquals(file.length(), acknowledged);
+        assertEquals(changes.keySet(), new HashSet<String>(Arrays.asList("1", "2")));
+        assertEquals(journal.getEntryCount(), 2);
+        assertNull(changes.get("3"));
+
+        //The next change is a line of its own, not glued to the cut off one
+        journal.append(Collections.singletonList(put("4", "Fourth")));
+        journal.close();
+        changes = new UserJournal(file).open();
+        assertEquals(changes.size(), 3);
+        assertEquals(changes.get("4").getFamilyName(), "Fourth");
+    }
+
+    @Test
+    public void removesAPartialAppendThatFailed() throws IOException {
+        File file = new File(folder, "failed.journal");
+        FailingJournal journal = new FailingJournal(file);
+        journal.open();
+        journal.append(Collections.singletonList(put("1", "First")));
+        long length = file.length();
+
+        journal.failing = true;
+        try {
+            journal.append(Arrays.asList(put("2", "Second"), put("3", "Third")));
+            fail("The append should have failed");
+        } catch (IOException e) {
+            assertEquals(file.length(), length);
+        }
+        assertEquals(journal.getEntryCount(), 1);
+
+        journal.failing = false;
+        journal.append(Collections.singletonList(put("4", "Fourth")));
+        journal.close();
+        Map<String, UserChange> changes = new UserJournal(file).open();
+        assertEquals(changes.size(), 2);
+        assertNotNull(changes.get("1"));
+        assertNotNull(changes.get("4"));
+    }
+
+    @Test
+    public void compactsToTheChangesThatStillApply() throws IOException {
+        File file = new File(folder, "compact.journal");
+        UserJournal journal = new UserJournal(file);
+        journal.open();
+        for (int i = 0; i < 20; i++) {
+            journal.append(Collections.singletonList(put("1", "Name" + i)));
+        }
+        journal.append(Collections.singletonList(put("2", "Second")));
+        assertEquals(journal.getEntryCount(), 21);
+
+        journal.compact(Arrays.asList(put("1", "Name19"), put("2", "Second")));
+        assertEquals(journal.getEntryCount(), 2);
+        assertEquals(lines(file).size(), 2);
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+
+        //Still open for appending, to the compacted file
+        journal.append(Collections.singletonList(UserChange.remove("2")));
+        journal.close();
+        assertEquals(lines(file).size(), 3);
+        Map<String, UserChange> changes = new UserJournal(file).open();
+        assertEquals(changes.get("1").getFamilyName(), "Name19");
+        assertEquals(changes.get("2").getType(), UserChange.Type.REMOVE);
+    }
+
+    @Test
+    public void forgetsTheChangesTheUsersFileNowHolds() throws Exception {
+        File conf = new File(folder, "conf");
+        assertTrue(conf.mkdirs());
+        writeConfiguration(conf);
+        System.setProperty("catalina.base", folder.getPath());
+        File usersFile = new File(folder, "users.csv");
+        writeUsers(usersFile, "1,one@example.com,One,First,T\n2,two@example.com,Two,Second,T\n");
+        File journalFile = new File(folder, "users.csv.journal");
+
+        UserCache cache = new UserCache(usersFile.getPath(), 0, Collections.<String>emptyList(), false);
+        cache.setJournal(new UserJournal(journalFile), 0, 10000);
+        try {
+            cache.refreshNow();
+            cache.write(put("3", "Third"), false);
+            cache.write(put("2", "Changed"), true);
+            assertEquals(cache.getJournalSize(), 2);
+
+            //The users file now holds user 3 as provisioned, but not the change of user 2
+            writeUsers(usersFile, "1,one@example.com,One,First,T\n2,two@example.com,Two,Second,T\n"
+                    + "3,3@example.com,Third,Given3,T\n");
+            assertTrue(usersFile.setLastModified(usersFile.lastModified() + 2000));
+            UserSnapshot reloaded = cache.refreshNow();
+
+            assertEquals(cache.getJournalSize(), 1);
+            assertEquals(reloaded.size(), 3);
+            assertEquals(reloaded.getUser("2").getName().getLastName(), "Changed");
+            assertEquals(reloaded.getUser("3").getName().getLastName(), "Third");
+        } finally {
+            cache.closeJournal();
+        }
+        Map<String, UserChange> changes = new UserJournal(journalFile).open();
+        assertEquals(changes.keySet(), Collections.singleton("2"));
+    }
+
+    private static UserChange put(String id, String familyName) {
+        SCIMUser user = new SCIMUser();
+        user.setId(id);
+        user.setUserName(id + "@example.com");
+        user.setName(new Name(familyName + " Given" + id, familyName, "Given" + id));
+        user.setEmails(Collections.singletonList(new Email(id + "@example.com", "work", true)));
+        user.setActive(true);
+        return UserChange.put(id, user, CUSTOM_SCHEMA);
+    }
+
+    private static List<String> lines(File file) throws IOException {
+        return Files.readAllLines(file.toPath(), Charset.forName("UTF-8"));
+    }
+
+    private static void writeUsers(File file, String rows) throws IOException {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            writer.write("empid,email,last,first,active\n");
+            writer.write(rows);
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static void writeConfiguration(File conf) throws IOException {
+        Properties application = new Properties();
+        application.setProperty("customSchemaName", CUSTOM_SCHEMA);
+        application.setProperty("csvCharset", "UTF-8");
+        application.setProperty("userInactiveValueInCSV", "F");
+        store(application, new File(conf, "application.properties"));
+        Properties mapping = new Properties();
+        mapping.setProperty("userName", "email,String,isSCIMVariable,isMandatory");
+        mapping.setProperty("id", "empid,String,isSCIMVariable,isMandatory");
+        mapping.setProperty("familyName", "last,String,isSCIMVariable,isMandatory");
+        mapping.setProperty("givenName", "first,String,isSCIMVariable,isMandatory");
+        mapping.setProperty("email", "email,String,isSCIMVariable,isMandatory");
+        mapping.setProperty("active", "active,Boolean,isSCIMVariable,isMandatory");
+        store(mapping, new File(conf, "CSVColumnMapping.properties"));
+    }
+
+    private static void store(Properties properties, File file) throws IOException {
+        FileOutputStream output = new FileOutputStream(file);
+        try {
+            properties.store(output, null);
+        } finally {
+            output.close();
+        }
+    }
+
+    /**
+     * Writes only the first half of an append before failing, as a full disk would.
+     */
+    private static final class FailingJournal extends UserJournal {
+        private boolean failing;
+
+        private FailingJournal(File file) {
+            super(file);
+        }
+
+        @Override
+        void write(FileOutputStream journalOutput, byte[] bytes) throws IOException {
+            if (!failing) {
+                super.write(journalOutput, bytes);
+                return;
+            }
+            journalOutput.write(bytes, 0, bytes.length / 2);
+            throw new IOException("No space left on device");
+        }
+    }
+}